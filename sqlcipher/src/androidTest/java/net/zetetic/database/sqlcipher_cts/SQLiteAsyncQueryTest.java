@@ -0,0 +1,145 @@
+package net.zetetic.database.sqlcipher_cts;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.core.Is.is;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+
+import net.zetetic.database.sqlcipher.SQLiteDatabase;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SQLiteAsyncQueryTest extends AndroidSQLCipherTestCase {
+
+  @Before
+  public void setUp() {
+    super.setUp();
+    database.execSQL("create table t1(a,b);");
+  }
+
+  @Test
+  public void shouldExecuteAndQueryOnWorkerThread() throws Exception {
+    Future<Integer> inserted = database.executeAsync(
+      "insert into t1(a,b) values(?,?)", new Object[]{1, 2}, null);
+    assertThat(inserted.get(5, TimeUnit.SECONDS), is(1));
+
+    Cursor cursor = database.queryAsync("select a, b from t1;", null, null)
+      .get(5, TimeUnit.SECONDS);
+    try {
+      assertThat(cursor.moveToFirst(), is(true));
+      assertThat(cursor.getInt(0), is(1));
+      assertThat(cursor.getInt(1), is(2));
+    } finally {
+      cursor.close();
+    }
+  }
+
+  @Test
+  public void shouldDeliverResultToCallback() throws Exception {
+    database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{1, 2});
+    CountDownLatch latch = new CountDownLatch(1);
+    AtomicReference<Integer> count = new AtomicReference<>();
+    AtomicReference<Thread> callbackThread = new AtomicReference<>();
+    database.queryAsync("select count(*) from t1;", null, new SQLiteDatabase.AsyncCallback<Cursor>() {
+      @Override
+      public void onResult(Cursor result) {
+        result.moveToFirst();
+        count.set(result.getInt(0));
+        result.close();
+        callbackThread.set(Thread.currentThread());
+        latch.countDown();
+      }
+
+      @Override
+      public void onError(Throwable error) {
+        latch.countDown();
+      }
+    });
+    assertThat(latch.await(5, TimeUnit.SECONDS), is(true));
+    assertThat(count.get(), is(1));
+    assertThat(callbackThread.get(), not(Thread.currentThread()));
+  }
+
+  @Test
+  public void shouldDeliverFailureToCallbackAndFuture() throws Exception {
+    CountDownLatch latch = new CountDownLatch(1);
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    Future<Cursor> future = database.queryAsync("select * from missing;", null,
+      new SQLiteDatabase.AsyncCallback<Cursor>() {
+        @Override
+        public void onResult(Cursor result) {
+          result.close();
+          latch.countDown();
+        }
+
+        @Override
+        public void onError(Throwable error) {
+          failure.set(error);
+          latch.countDown();
+        }
+      });
+    assertThat(latch.await(5, TimeUnit.SECONDS), is(true));
+    assertThat(failure.get(), instanceOf(SQLiteException.class));
+    try {
+      future.get();
+      throw new AssertionError("expected failure");
+    } catch (ExecutionException ex) {
+      assertThat(ex.getCause(), instanceOf(SQLiteException.class));
+    }
+  }
+
+  @Test
+  public void shouldNotOpenMoreConnectionsThanThePoolAllows() throws Exception {
+    database.enableWriteAheadLogging();
+    database.setReaderConnectionLimits(0, 2);
+    database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{1, 2});
+    List<Future<Cursor>> futures = new ArrayList<>();
+    for (int index = 0; index < 20; index++) {
+      futures.add(database.queryAsync("select count(*) from t1;", null, null));
+    }
+    for (Future<Cursor> future : futures) {
+      Cursor cursor = future.get(5, TimeUnit.SECONDS);
+      cursor.moveToFirst();
+      assertThat(cursor.getInt(0), is(1));
+      cursor.close();
+    }
+    assertThat(database.getConnectionPoolMetrics().connectionsOpened, lessThanOrEqualTo(3L));
+  }
+
+  @Test
+  public void shouldReleaseDatabaseWhenQueuedOperationIsCanceled() throws Exception {
+    // Without write-ahead logging there is one worker, which the first query blocks.
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    database.addCustomFunction("block", 1, args -> {
+      blocked.countDown();
+      try {
+        release.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    Future<Cursor> running = database.queryAsync("select block(1);", null, null);
+    assertThat(blocked.await(5, TimeUnit.SECONDS), is(true));
+    Future<Cursor> queued = database.queryAsync("select count(*) from t1;", null, null);
+    assertThat(queued.cancel(false), is(true));
+    release.countDown();
+    running.get(5, TimeUnit.SECONDS).close();
+
+    database.close();
+    assertThat(database.isOpen(), is(false));
+  }
+}
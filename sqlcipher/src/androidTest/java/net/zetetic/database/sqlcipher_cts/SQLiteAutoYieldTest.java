@@ -0,0 +1,102 @@
+package net.zetetic.database.sqlcipher_cts;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+
+import net.zetetic.database.DatabaseUtils;
+import net.zetetic.database.sqlcipher.SQLiteConnectionPoolMetrics;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SQLiteAutoYieldTest extends AndroidSQLCipherTestCase {
+
+  @Before
+  public void setUp() {
+    super.setUp();
+    database.execSQL("create table t1(a,b);");
+  }
+
+  @Test
+  public void shouldYieldWhenBudgetRunsOut() throws Exception {
+    database.beginTransactionWithAutoYield(1);
+    try {
+      database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{1, 2});
+      Thread.sleep(10);
+      assertThat(database.yieldIfNeeded(), is(true));
+      assertThat(database.inTransaction(), is(true));
+      database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{3, 4});
+    } finally {
+      database.endTransaction();
+    }
+    // The row committed by the yield survives the rollback of the rest.
+    assertThat(DatabaseUtils.longForQuery(database, "select count(*) from t1;", null), is(1L));
+    SQLiteConnectionPoolMetrics metrics = database.getConnectionPoolMetrics();
+    assertThat(metrics.transactionYields, is(1L));
+    assertThat(metrics.contendedTransactionYields, is(0L));
+    assertThat(metrics.yieldedTransactionTime.getCount(), is(1L));
+  }
+
+  @Test
+  public void shouldNotYieldWithinBudget() {
+    database.beginTransactionWithAutoYield(60000);
+    try {
+      database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{1, 2});
+      assertThat(database.yieldIfNeeded(), is(false));
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+    assertThat(database.getConnectionPoolMetrics().transactionYields, is(0L));
+  }
+
+  @Test
+  public void shouldYieldToWaitingThread() throws Exception {
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread writer;
+    database.beginTransactionWithAutoYield(0);
+    try {
+      writer = new Thread(() -> {
+        try {
+          database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{1, 2});
+        } catch (Throwable t) {
+          failure.set(t);
+        }
+      });
+      writer.start();
+      long deadline = System.currentTimeMillis() + 5000;
+      while (database.getConnectionPoolMetrics().currentWaiters == 0
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(5);
+      }
+      assertThat(database.yieldIfNeeded(), is(true));
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+    writer.join(5000);
+    assertThat(failure.get(), nullValue());
+    assertThat(database.getConnectionPoolMetrics().contendedTransactionYields, is(1L));
+  }
+
+  @Test
+  public void shouldNotYieldOutsideTopLevelTransaction() {
+    assertThat(database.yieldIfNeeded(), is(false));
+    database.beginTransactionWithAutoYield(0);
+    try {
+      database.beginTransaction();
+      try {
+        assertThat(database.yieldIfNeeded(), is(false));
+        database.setTransactionSuccessful();
+      } finally {
+        database.endTransaction();
+      }
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+  }
+}
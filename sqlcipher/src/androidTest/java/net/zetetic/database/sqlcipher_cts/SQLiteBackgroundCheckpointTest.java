@@ -0,0 +1,134 @@
+package net.zetetic.database.sqlcipher_cts;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.core.Is.is;
+
+import net.zetetic.database.DatabaseUtils;
+import net.zetetic.database.sqlcipher.SQLiteConnectionPoolMetrics;
+import net.zetetic.database.sqlcipher.SQLiteSnapshot;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+public class SQLiteBackgroundCheckpointTest extends AndroidSQLCipherTestCase {
+
+  @Before
+  public void setUp() {
+    super.setUp();
+    database.enableWriteAheadLogging();
+    database.execSQL("create table t1(a,b);");
+  }
+
+  @Test
+  public void shouldDisableAutomaticCheckpoints() {
+    database.setBackgroundCheckpointPolicy(50, 4 * 1024 * 1024);
+    assertThat(autoCheckpointOnPrimary(), is(0L));
+    database.setBackgroundCheckpointPolicy(Long.MAX_VALUE, 4 * 1024 * 1024);
+    assertThat(autoCheckpointOnPrimary(), greaterThan(0L));
+  }
+
+  @Test
+  public void shouldCheckpointWhenIdle() throws Exception {
+    database.setBackgroundCheckpointPolicy(50, 4 * 1024 * 1024);
+    insertRows(100);
+    SQLiteConnectionPoolMetrics metrics = awaitCheckpoints();
+    assertThat(metrics.walCheckpoints, greaterThanOrEqualTo(1L));
+    assertThat(metrics.peakWalPendingBytes, greaterThan(0L));
+    assertThat(metrics.walCheckpointTime.getCount(), greaterThanOrEqualTo(1L));
+  }
+
+  @Test
+  public void shouldTruncateLargeLog() throws Exception {
+    database.setBackgroundCheckpointPolicy(50, 0);
+    insertRows(100);
+    SQLiteConnectionPoolMetrics metrics = awaitCheckpoints();
+    assertThat(metrics.truncatingWalCheckpoints, greaterThanOrEqualTo(1L));
+    assertThat(new File(database.getPath() + "-wal").length(), is(0L));
+    assertThat(DatabaseUtils.longForQuery(database, "select count(*) from t1;", null), is(100L));
+  }
+
+  @Test
+  public void shouldRetryCheckpointKeptShortByReader() throws Exception {
+    database.setBackgroundCheckpointPolicy(50, 0);
+    insertRows(10);
+    long checkpoints;
+    SQLiteSnapshot snapshot = database.openSnapshot();
+    try {
+      insertRows(100);
+      long deadline = System.currentTimeMillis() + 5000;
+      SQLiteConnectionPoolMetrics metrics = database.getConnectionPoolMetrics();
+      while (metrics.incompleteWalCheckpoints == 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+        metrics = database.getConnectionPoolMetrics();
+      }
+      assertThat(metrics.incompleteWalCheckpoints, greaterThanOrEqualTo(1L));
+      assertThat(metrics.walPendingBytes, greaterThan(0L));
+      checkpoints = metrics.walCheckpoints;
+    } finally {
+      snapshot.close();
+    }
+
+    long deadline = System.currentTimeMillis() + 5000;
+    SQLiteConnectionPoolMetrics metrics = database.getConnectionPoolMetrics();
+    while (metrics.walCheckpoints == checkpoints && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+      metrics = database.getConnectionPoolMetrics();
+    }
+    assertThat(metrics.walCheckpoints, greaterThan(checkpoints));
+    assertThat(new File(database.getPath() + "-wal").length(), is(0L));
+  }
+
+  @Test
+  public void shouldCheckpointPassivelyAlongsideReader() throws Exception {
+    database.setBackgroundCheckpointPolicy(50, 0);
+    insertRows(100);
+    SQLiteSnapshot snapshot = database.openSnapshot();
+    try {
+      SQLiteConnectionPoolMetrics metrics = awaitCheckpoints();
+      assertThat(metrics.walCheckpoints, greaterThanOrEqualTo(1L));
+      assertThat(metrics.truncatingWalCheckpoints, is(0L));
+      assertThat(metrics.incompleteWalCheckpoints, is(0L));
+
+      // The primary connection is left to writers meanwhile.
+      insertRows(10);
+    } finally {
+      snapshot.close();
+    }
+    assertThat(DatabaseUtils.longForQuery(database, "select count(*) from t1;", null), is(110L));
+  }
+
+  private long autoCheckpointOnPrimary() {
+    database.beginTransaction();
+    try {
+      return DatabaseUtils.longForQuery(database, "PRAGMA wal_autocheckpoint", null);
+    } finally {
+      database.endTransaction();
+    }
+  }
+
+  private void insertRows(int count) {
+    database.beginTransaction();
+    try {
+      for (int index = 0; index < count; index++) {
+        database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{index, "value " + index});
+      }
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+  }
+
+  private SQLiteConnectionPoolMetrics awaitCheckpoints() throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    SQLiteConnectionPoolMetrics metrics = database.getConnectionPoolMetrics();
+    while (metrics.walCheckpoints == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+      metrics = database.getConnectionPoolMetrics();
+    }
+    return metrics;
+  }
+}
@@ -0,0 +1,142 @@
+package net.zetetic.database.sqlcipher_cts;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.core.Is.is;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import net.zetetic.database.DatabaseUtils;
+import net.zetetic.database.sqlcipher.SQLiteBackupOptions;
+import net.zetetic.database.sqlcipher.SQLiteConnection;
+import net.zetetic.database.sqlcipher.SQLiteDatabase;
+import net.zetetic.database.sqlcipher.SQLiteDatabaseHook;
+import net.zetetic.database.sqlcipher.SQLiteStatement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SQLiteBackupTest extends AndroidSQLCipherTestCase {
+
+  private final byte[] backupKey = "bar".getBytes(StandardCharsets.UTF_8);
+  private File backupFile;
+
+  @Before
+  public void setUp() {
+    super.setUp();
+    backupFile = context.getDatabasePath("backup.db");
+    SQLiteDatabase.deleteDatabase(backupFile);
+    database.execSQL("create table t1(a,b);");
+    insertRows(2000);
+  }
+
+  @After
+  public void tearDown() {
+    SQLiteDatabase.deleteDatabase(backupFile);
+    super.tearDown();
+  }
+
+  @Test
+  public void shouldCopyDatabaseAndReportProgress() {
+    final List<Integer> progress = new ArrayList<>();
+    SQLiteBackupOptions options = new SQLiteBackupOptions();
+    options.pagesPerStep = 8;
+    options.stepIntervalMillis = 0;
+    options.progressListener = (copiedPages, totalPages) -> progress.add(copiedPages);
+    database.backupTo(backupFile.getPath(), backupKey, options);
+
+    assertThat(progress.size(), greaterThan(1));
+    SQLiteDatabase backup = SQLiteDatabase.openOrCreateDatabase(backupFile, "bar", null, null, null);
+    try {
+      assertThat(DatabaseUtils.longForQuery(backup, "select count(*) from t1;", null), is(2000L));
+    } finally {
+      backup.close();
+    }
+  }
+
+  @Test
+  public void shouldApplyDestinationCipherSettings() {
+    SQLiteBackupOptions options = new SQLiteBackupOptions();
+    options.destinationPragmas.add("PRAGMA cipher_kdf_iter = 64000;");
+    database.backupTo(backupFile.getPath(), backupKey, options);
+
+    SQLiteDatabaseHook hook = new SQLiteDatabaseHook() {
+      public void preKey(SQLiteConnection connection) {}
+      public void postKey(SQLiteConnection connection) {
+        connection.execute("PRAGMA cipher_kdf_iter = 64000;", null, null);
+      }
+    };
+    SQLiteDatabase backup = SQLiteDatabase.openDatabase(backupFile.getPath(), "bar", null,
+        SQLiteDatabase.OPEN_READWRITE, null, hook);
+    try {
+      assertThat(DatabaseUtils.longForQuery(backup, "select count(*) from t1;", null), is(2000L));
+    } finally {
+      backup.close();
+    }
+  }
+
+  @Test
+  public void shouldCarryOverWritesMadeBetweenSteps() {
+    SQLiteBackupOptions options = new SQLiteBackupOptions();
+    options.pagesPerStep = 4;
+    options.stepIntervalMillis = 0;
+    final int[] writes = new int[1];
+    options.progressListener = (copiedPages, totalPages) -> {
+      if (writes[0]++ < 50) {
+        database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{-writes[0], "concurrent"});
+      }
+    };
+    database.backupTo(backupFile.getPath(), backupKey, options);
+
+    long expected = DatabaseUtils.longForQuery(database, "select count(*) from t1;", null);
+    assertThat(expected, greaterThan(2000L));
+    SQLiteDatabase backup = SQLiteDatabase.openOrCreateDatabase(backupFile, "bar", null, null, null);
+    try {
+      assertThat(DatabaseUtils.longForQuery(backup, "select count(*) from t1;", null), is(expected));
+    } finally {
+      backup.close();
+    }
+  }
+
+  @Test
+  public void shouldDeleteCopyWhenCanceled() {
+    final CancellationSignal signal = new CancellationSignal();
+    SQLiteBackupOptions options = new SQLiteBackupOptions();
+    options.pagesPerStep = 4;
+    options.cancellationSignal = signal;
+    options.progressListener = (copiedPages, totalPages) -> signal.cancel();
+
+    Exception failure = null;
+    try {
+      database.backupTo(backupFile.getPath(), backupKey, options);
+    } catch (Exception ex) {
+      failure = ex;
+    }
+    assertThat(failure, instanceOf(OperationCanceledException.class));
+    assertThat(backupFile.exists(), is(false));
+  }
+
+  private void insertRows(int count) {
+    SQLiteStatement statement = database.compileStatement("insert into t1(a,b) values(?,?)");
+    database.beginTransaction();
+    try {
+      for (int index = 0; index < count; index++) {
+        statement.bindLong(1, index);
+        statement.bindString(2, "value " + index);
+        statement.executeInsert();
+      }
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+      statement.close();
+    }
+  }
+}
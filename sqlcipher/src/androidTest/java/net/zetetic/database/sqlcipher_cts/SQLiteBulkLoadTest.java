@@ -0,0 +1,184 @@
+package net.zetetic.database.sqlcipher_cts;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.core.Is.is;
+
+import net.zetetic.database.DatabaseUtils;
+import net.zetetic.database.sqlcipher.SQLiteBulkLoadOptions;
+import net.zetetic.database.sqlcipher.SQLiteDatabase;
+import net.zetetic.database.sqlcipher.SQLiteDatabaseConfiguration;
+import net.zetetic.database.sqlcipher.SQLiteStatement;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+public class SQLiteBulkLoadTest extends AndroidSQLCipherTestCase {
+
+  @Before
+  public void setUp() {
+    super.setUp();
+    database.execSQL("create table t1(a,b);");
+    database.execSQL("create index t1_a on t1(a);");
+    database.execSQL("create index t1_b on t1(b);");
+  }
+
+  @Test
+  public void shouldDropAndRecreateIndexes() {
+    SQLiteBulkLoadOptions options = new SQLiteBulkLoadOptions();
+    options.deferredIndexTables.add("t1");
+    database.beginBulkLoad(options);
+    assertThat(database.isBulkLoadActive(), is(true));
+    assertThat(indexCount(), is(0L));
+    insertRows(1000);
+    database.endBulkLoad();
+
+    assertThat(database.isBulkLoadActive(), is(false));
+    assertThat(indexCount(), is(2L));
+    assertThat(DatabaseUtils.longForQuery(database,
+        "select count(*) from sqlite_master where name = 'sqlcipher_android_bulk_load';", null), is(0L));
+    assertThat(DatabaseUtils.longForQuery(database, "select count(*) from t1;", null), is(1000L));
+  }
+
+  @Test
+  public void shouldRelaxAndRestoreSettings() {
+    long synchronous = pragmaOnPrimary("PRAGMA synchronous");
+    long cacheSize = pragmaOnPrimary("PRAGMA cache_size");
+
+    SQLiteBulkLoadOptions options = new SQLiteBulkLoadOptions();
+    options.cacheSizeKiB = 32 * 1024;
+    database.beginBulkLoad(options);
+    assertThat(pragmaOnPrimary("PRAGMA synchronous"), is(0L));
+    assertThat(pragmaOnPrimary("PRAGMA cache_size"), is(-32L * 1024));
+    database.endBulkLoad();
+
+    assertThat(pragmaOnPrimary("PRAGMA synchronous"), is(synchronous));
+    assertThat(pragmaOnPrimary("PRAGMA cache_size"), is(cacheSize));
+  }
+
+  @Test
+  public void shouldRecreateIndexesOfInterruptedBulkLoad() {
+    SQLiteBulkLoadOptions options = new SQLiteBulkLoadOptions();
+    options.deferredIndexTables.add("t1");
+    database.beginBulkLoad(options);
+    insertRows(10);
+    database.close();
+    File marker = new File(databaseFilePath.getPath() + "-bulkload");
+    assertThat(marker.exists(), is(true));
+
+    database = SQLiteDatabase.openOrCreateDatabase(databaseFilePath, "foo", null, null, null);
+    assertThat(database.isBulkLoadActive(), is(false));
+    assertThat(indexCount(), is(2L));
+    assertThat(marker.exists(), is(false));
+  }
+
+  @Test
+  public void shouldLeaveReaderCacheAlone() {
+    database.enableWriteAheadLogging();
+    long readerCacheSize = DatabaseUtils.longForQuery(database, "PRAGMA cache_size", null);
+
+    SQLiteBulkLoadOptions options = new SQLiteBulkLoadOptions();
+    options.cacheSizeKiB = 32 * 1024;
+    database.beginBulkLoad(options);
+    try {
+      assertThat(pragmaOnPrimary("PRAGMA cache_size"), is(-32L * 1024));
+      assertThat(DatabaseUtils.longForQuery(database, "PRAGMA cache_size", null), is(readerCacheSize));
+    } finally {
+      database.endBulkLoad();
+    }
+  }
+
+  @Test
+  public void shouldRejectNestedBulkLoad() {
+    database.beginBulkLoad(new SQLiteBulkLoadOptions());
+    Exception failure = null;
+    try {
+      database.beginBulkLoad(new SQLiteBulkLoadOptions());
+    } catch (Exception ex) {
+      failure = ex;
+    }
+    database.endBulkLoad();
+    assertThat(failure, instanceOf(IllegalStateException.class));
+  }
+
+  @Test
+  public void shouldNotLeaveMarkerForInMemoryDatabase() {
+    database.close();
+    database = SQLiteDatabase.openOrCreateDatabase(SQLiteDatabaseConfiguration.MEMORY_DB_PATH, "foo", null, null, null);
+    database.execSQL("create table t1(a,b);");
+    database.execSQL("create index t1_a on t1(a);");
+    database.execSQL("create index t1_b on t1(b);");
+
+    SQLiteBulkLoadOptions options = new SQLiteBulkLoadOptions();
+    options.deferredIndexTables.add("t1");
+    database.beginBulkLoad(options);
+    assertThat(new File(SQLiteDatabaseConfiguration.MEMORY_DB_PATH + "-bulkload").exists(), is(false));
+    insertRows(10);
+    database.endBulkLoad();
+    assertThat(indexCount(), is(2L));
+  }
+
+  // Not an assertion: logs how long loading rows into a fresh table takes with and
+  // without a bulk load, counting the checkpoint that follows in both cases.
+  @Test
+  public void benchmarkBulkLoad() {
+    final int rows = 50000;
+    database.enableWriteAheadLogging();
+    database.execSQL("create table t2(a,b);");
+    database.execSQL("create index t2_a on t2(a);");
+    database.execSQL("create index t2_b on t2(b);");
+
+    long start = System.nanoTime();
+    insertRows("t1", rows);
+    DatabaseUtils.longForQuery(database, "PRAGMA wal_checkpoint(TRUNCATE)", null);
+    long normalMillis = (System.nanoTime() - start) / 1000000;
+
+    SQLiteBulkLoadOptions options = new SQLiteBulkLoadOptions();
+    options.deferredIndexTables.add("t2");
+    start = System.nanoTime();
+    database.beginBulkLoad(options);
+    insertRows("t2", rows);
+    database.endBulkLoad();
+    long bulkMillis = (System.nanoTime() - start) / 1000000;
+
+    log("Inserted %d indexed rows in %d ms normally and %d ms in a bulk load",
+        rows, normalMillis, bulkMillis);
+    assertThat(DatabaseUtils.longForQuery(database, "select count(*) from t2;", null), is((long) rows));
+  }
+
+  private long indexCount() {
+    return DatabaseUtils.longForQuery(database,
+        "select count(*) from sqlite_master where type = 'index' and tbl_name = 't1';", null);
+  }
+
+  private long pragmaOnPrimary(String pragma) {
+    database.beginTransaction();
+    try {
+      return DatabaseUtils.longForQuery(database, pragma, null);
+    } finally {
+      database.endTransaction();
+    }
+  }
+
+  private void insertRows(int count) {
+    insertRows("t1", count);
+  }
+
+  private void insertRows(String table, int count) {
+    SQLiteStatement statement = database.compileStatement("insert into " + table + "(a,b) values(?,?)");
+    database.beginTransaction();
+    try {
+      for (int index = 0; index < count; index++) {
+        statement.bindLong(1, index);
+        statement.bindString(2, "value " + index);
+        statement.executeInsert();
+      }
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+      statement.close();
+    }
+  }
+}
@@ -0,0 +1,156 @@
+package net.zetetic.database.sqlcipher_cts;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.core.Is.is;
+
+import android.database.sqlite.SQLiteException;
+
+import net.zetetic.database.DatabaseUtils;
+import net.zetetic.database.sqlcipher.SQLiteChangeSession;
+import net.zetetic.database.sqlcipher.SQLiteChangesetConflictHandler;
+import net.zetetic.database.sqlcipher.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SQLiteChangeSessionTest extends AndroidSQLCipherTestCase {
+
+  private File targetFile;
+  private SQLiteDatabase target;
+
+  @Before
+  public void setUp() {
+    super.setUp();
+    database.execSQL("create table t1(a primary key,b);");
+    database.execSQL("create table t2(a primary key,b);");
+    targetFile = context.getDatabasePath("changeset-target.db");
+    targetFile.delete();
+    target = SQLiteDatabase.openOrCreateDatabase(targetFile, "bar", null, null, null);
+    target.execSQL("create table t1(a primary key,b);");
+    target.execSQL("create table t2(a primary key,b);");
+  }
+
+  @After
+  public void tearDown() {
+    target.close();
+    SQLiteDatabase.deleteDatabase(targetFile);
+    super.tearDown();
+  }
+
+  @Test
+  public void shouldRecordAndApplyChanges() {
+    database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{1, "one"});
+    SQLiteChangeSession changes = database.openChangeSession("t1");
+    byte[] changeset;
+    try {
+      database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{2, "two"});
+      database.execSQL("insert into t2(a,b) values(?,?)", new Object[]{3, "three"});
+      changeset = changes.getChangeset();
+    } finally {
+      changes.close();
+    }
+
+    target.applyChangeset(changeset, null);
+    assertThat(DatabaseUtils.longForQuery(target, "select count(*) from t1;", null), is(1L));
+    assertThat(DatabaseUtils.stringForQuery(target, "select b from t1 where a = 2;", null), is("two"));
+    assertThat(DatabaseUtils.longForQuery(target, "select count(*) from t2;", null), is(0L));
+  }
+
+  @Test
+  public void shouldCollectSmallerPatchset() {
+    for (int index = 0; index < 10; index++) {
+      database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{index, "value " + index});
+    }
+    SQLiteChangeSession changes = database.openChangeSession();
+    try {
+      database.execSQL("update t1 set b = 'changed';");
+      byte[] changeset = changes.getChangeset();
+      byte[] patchset = changes.getPatchset();
+      assertThat(patchset.length, lessThan(changeset.length));
+    } finally {
+      changes.close();
+    }
+  }
+
+  @Test
+  public void shouldNotRecordRolledBackChanges() {
+    SQLiteChangeSession changes = database.openChangeSession("t1");
+    try {
+      database.beginTransaction();
+      try {
+        database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{1, "one"});
+      } finally {
+        database.endTransaction();
+      }
+      assertThat(changes.getChangeset().length, is(0));
+    } finally {
+      changes.close();
+    }
+  }
+
+  @Test
+  public void shouldCallConflictHandler() {
+    target.execSQL("insert into t1(a,b) values(?,?)", new Object[]{1, "existing"});
+    SQLiteChangeSession changes = database.openChangeSession("t1");
+    byte[] changeset;
+    try {
+      database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{1, "new"});
+      changeset = changes.getChangeset();
+    } finally {
+      changes.close();
+    }
+
+    final List<String> conflicts = new ArrayList<>();
+    target.applyChangeset(changeset, (table, conflictType, operation) -> {
+      conflicts.add(table + " " + conflictType + " " + operation);
+      return SQLiteChangesetConflictHandler.RESULT_REPLACE;
+    });
+    assertThat(conflicts.size(), is(1));
+    assertThat(conflicts.get(0), is("t1 " + SQLiteChangesetConflictHandler.CONFLICT_CONFLICT
+        + " " + SQLiteChangesetConflictHandler.OPERATION_INSERT));
+    assertThat(DatabaseUtils.stringForQuery(target, "select b from t1 where a = 1;", null), is("new"));
+  }
+
+  @Test
+  public void shouldAbortWithoutHandler() {
+    target.execSQL("insert into t1(a,b) values(?,?)", new Object[]{1, "existing"});
+    SQLiteChangeSession changes = database.openChangeSession("t1");
+    byte[] changeset;
+    try {
+      database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{1, "new"});
+      database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{2, "other"});
+      changeset = changes.getChangeset();
+    } finally {
+      changes.close();
+    }
+
+    Exception failure = null;
+    try {
+      target.applyChangeset(changeset, null);
+    } catch (Exception ex) {
+      failure = ex;
+    }
+    assertThat(failure, instanceOf(SQLiteException.class));
+    assertThat(DatabaseUtils.longForQuery(target, "select count(*) from t1;", null), is(1L));
+  }
+
+  @Test
+  public void shouldRejectUseAfterClose() {
+    SQLiteChangeSession changes = database.openChangeSession("t1");
+    changes.close();
+    Exception failure = null;
+    try {
+      changes.getChangeset();
+    } catch (Exception ex) {
+      failure = ex;
+    }
+    assertThat(failure, instanceOf(IllegalStateException.class));
+  }
+}
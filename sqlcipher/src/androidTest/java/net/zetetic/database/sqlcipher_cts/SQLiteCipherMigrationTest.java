@@ -0,0 +1,141 @@
+package net.zetetic.database.sqlcipher_cts;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.core.Is.is;
+
+import android.database.sqlite.SQLiteDatabaseLockedException;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import net.zetetic.database.DatabaseUtils;
+import net.zetetic.database.sqlcipher.SQLiteCipherMigration;
+import net.zetetic.database.sqlcipher.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class SQLiteCipherMigrationTest extends AndroidSQLCipherTestCase {
+
+  private final byte[] legacyPassword = "test".getBytes(StandardCharsets.UTF_8);
+  private File legacyFile;
+
+  @Before
+  public void setUp() {
+    super.setUp();
+    legacyFile = extractAssetToDatabaseDirectory("sqlcipher-1.x-test.db");
+  }
+
+  @After
+  public void tearDown() {
+    SQLiteDatabase.deleteDatabase(legacyFile);
+    super.tearDown();
+  }
+
+  @Test
+  public void shouldDetectFormat() {
+    assertThat(SQLiteCipherMigration.detectFormat(legacyFile.getPath(), legacyPassword), is(1));
+    assertThat(SQLiteCipherMigration.detectFormat(databaseFilePath.getPath(),
+        "foo".getBytes(StandardCharsets.UTF_8)), is(SQLiteCipherMigration.FORMAT_CURRENT));
+    assertThat(SQLiteCipherMigration.detectFormat(legacyFile.getPath(),
+        "wrong".getBytes(StandardCharsets.UTF_8)), is(SQLiteCipherMigration.FORMAT_UNKNOWN));
+  }
+
+  @Test
+  public void shouldMigrateInBackgroundAndReportProgress() throws Exception {
+    final List<String> progress = new ArrayList<>();
+    int format = SQLiteCipherMigration.migrateAsync(legacyFile.getPath(), legacyPassword,
+        (copiedRows, totalRows) -> progress.add(copiedRows + "/" + totalRows), null)
+        .get(30, TimeUnit.SECONDS);
+
+    assertThat(format, is(1));
+    assertThat(progress.get(0).startsWith("0/"), is(true));
+    String last = progress.get(progress.size() - 1);
+    assertThat(last.substring(0, last.indexOf('/')), is(last.substring(last.indexOf('/') + 1)));
+    assertThat(SQLiteCipherMigration.detectFormat(legacyFile.getPath(), legacyPassword),
+        is(SQLiteCipherMigration.FORMAT_CURRENT));
+    assertLegacyRows(SQLiteDatabase.openDatabase(legacyFile.getPath(), legacyPassword, null,
+        SQLiteDatabase.OPEN_READWRITE, null, null));
+  }
+
+  @Test
+  public void shouldKeepLegacyDatabaseReadableWhileMigrating() {
+    SQLiteDatabase reader = SQLiteDatabase.openDatabase(legacyFile.getPath(), legacyPassword, null,
+        SQLiteDatabase.OPEN_READONLY, null, SQLiteCipherMigration.getCompatibilityHook(1));
+    try {
+      SQLiteCipherMigration.migrate(legacyFile.getPath(), legacyPassword,
+          (copiedRows, totalRows) -> assertThat(DatabaseUtils.stringForQuery(reader,
+              "select a from t1;", null), is("one for the money")), null);
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void shouldKeepLegacyDatabaseFromBeingWrittenUntilReplaced() {
+    SQLiteDatabase writer = SQLiteDatabase.openDatabase(legacyFile.getPath(), legacyPassword, null,
+        SQLiteDatabase.OPEN_READWRITE, null, SQLiteCipherMigration.getCompatibilityHook(1));
+    final long rows = DatabaseUtils.longForQuery(writer, "select count(*) from t1;", null);
+    final List<Exception> failures = new ArrayList<>();
+    try {
+      SQLiteCipherMigration.migrate(legacyFile.getPath(), legacyPassword,
+          (copiedRows, totalRows) -> {
+            try {
+              writer.execSQL("insert into t1(a,b) values(?,?);", new Object[]{"lost", "write"});
+            } catch (Exception ex) {
+              failures.add(ex);
+            }
+          }, null);
+    } finally {
+      writer.close();
+    }
+    assertThat(failures.isEmpty(), is(false));
+    for (Exception failure : failures) {
+      assertThat(failure, instanceOf(SQLiteDatabaseLockedException.class));
+    }
+    SQLiteDatabase migrated = SQLiteDatabase.openDatabase(legacyFile.getPath(), legacyPassword,
+        null, SQLiteDatabase.OPEN_READONLY, null, null);
+    try {
+      assertThat(DatabaseUtils.longForQuery(migrated, "select count(*) from t1;", null), is(rows));
+    } finally {
+      migrated.close();
+    }
+  }
+
+  @Test
+  public void shouldLeaveLegacyDatabaseWhenCanceled() {
+    CancellationSignal signal = new CancellationSignal();
+    signal.cancel();
+    Exception failure = null;
+    try {
+      SQLiteCipherMigration.migrate(legacyFile.getPath(), legacyPassword, null, signal);
+    } catch (Exception ex) {
+      failure = ex;
+    }
+    assertThat(failure, instanceOf(OperationCanceledException.class));
+    assertThat(SQLiteCipherMigration.detectFormat(legacyFile.getPath(), legacyPassword), is(1));
+    assertThat(new File(legacyFile.getPath() + "-migrate").exists(), is(false));
+  }
+
+  @Test
+  public void shouldNotMigrateCurrentFormat() {
+    assertThat(SQLiteCipherMigration.migrate(databaseFilePath.getPath(),
+        "foo".getBytes(StandardCharsets.UTF_8), null, null), is(SQLiteCipherMigration.FORMAT_CURRENT));
+  }
+
+  private void assertLegacyRows(SQLiteDatabase migrated) {
+    try {
+      assertThat(DatabaseUtils.stringForQuery(migrated, "select a from t1;", null), is("one for the money"));
+      assertThat(DatabaseUtils.stringForQuery(migrated, "select b from t1;", null), is("two for the show"));
+    } finally {
+      migrated.close();
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package net.zetetic.database.sqlcipher_cts;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.core.Is.is;
+
+import net.zetetic.database.DatabaseUtils;
+import net.zetetic.database.sqlcipher.SQLiteCipherProfiler;
+import net.zetetic.database.sqlcipher.SQLiteCipherSettings;
+import net.zetetic.database.sqlcipher.SQLiteDatabase;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SQLiteCipherProfilerTest extends AndroidSQLCipherTestCase {
+
+  @Test
+  public void shouldApplySettingsThroughHook() {
+    SQLiteCipherSettings settings = new SQLiteCipherSettings();
+    settings.pageSize = 8192;
+    settings.kdfIter = 64000;
+    settings.hmacAlgorithm = "HMAC_SHA256";
+    File file = context.getDatabasePath("cipher-settings.db");
+    SQLiteDatabase.deleteDatabase(file);
+    SQLiteDatabase db = SQLiteDatabase.openDatabase(file.getPath(), "bar", null,
+        SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.CREATE_IF_NECESSARY, null, settings.getHook());
+    try {
+      db.execSQL("create table t1(a,b);");
+      assertThat(DatabaseUtils.stringForQuery(db, "PRAGMA cipher_page_size;", null), is("8192"));
+      assertThat(DatabaseUtils.stringForQuery(db, "PRAGMA kdf_iter;", null), is("64000"));
+      assertThat(DatabaseUtils.stringForQuery(db, "PRAGMA cipher_hmac_algorithm;", null), is("HMAC_SHA256"));
+    } finally {
+      db.close();
+      SQLiteDatabase.deleteDatabase(file);
+    }
+  }
+
+  // Not an assertion on speed: logs the profile of a few candidate settings.
+  @Test
+  public void shouldProfileCandidates() {
+    List<SQLiteCipherSettings> candidates = new ArrayList<>();
+    candidates.add(new SQLiteCipherSettings());
+    SQLiteCipherSettings large = new SQLiteCipherSettings();
+    large.pageSize = 16384;
+    large.cacheSizeKiB = 8 * 1024;
+    candidates.add(large);
+    SQLiteCipherSettings light = new SQLiteCipherSettings();
+    light.kdfIter = 64000;
+    light.hmacAlgorithm = "HMAC_SHA256";
+    light.kdfAlgorithm = "PBKDF2_HMAC_SHA256";
+    candidates.add(light);
+
+    List<SQLiteCipherProfiler.Result> results = SQLiteCipherProfiler.profile(
+        context.getCacheDir(), candidates, 2000);
+    assertThat(results.size(), is(3));
+    for (SQLiteCipherProfiler.Result result : results) {
+      log("%s", result);
+      assertThat(result.fileSize, greaterThan(0L));
+      assertThat(result.fileSize, greaterThan(result.plaintextFileSize));
+    }
+    log("Fastest: %s", SQLiteCipherProfiler.getFastest(results).settings);
+  }
+}
@@ -0,0 +1,112 @@
+package net.zetetic.database.sqlcipher_cts;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+
+import net.zetetic.database.sqlcipher.SQLiteConnectionPoolBusyException;
+import net.zetetic.database.sqlcipher.SQLiteConnectionPoolMetrics;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SQLiteConnectionPoolBusyTest extends AndroidSQLCipherTestCase {
+
+  @Before
+  public void setUp() {
+    super.setUp();
+    database.execSQL("create table t1(a,b);");
+  }
+
+  @Test
+  public void shouldTimeOutWaitingForPrimaryConnection() throws Exception {
+    database.setConnectionAcquireTimeout(100);
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    database.beginTransaction();
+    try {
+      Thread writer = startWriter(failure);
+      writer.join(5000);
+      assertThat(writer.isAlive(), is(false));
+    } finally {
+      database.endTransaction();
+    }
+    assertThat(failure.get(), instanceOf(SQLiteConnectionPoolBusyException.class));
+    SQLiteConnectionPoolBusyException ex = (SQLiteConnectionPoolBusyException) failure.get();
+    assertThat(ex.isRejected(), is(false));
+    assertThat(ex.getWaitMillis(), greaterThanOrEqualTo(100L));
+    SQLiteConnectionPoolMetrics metrics = database.getConnectionPoolMetrics();
+    assertThat(metrics.timedOutWaits, is(1L));
+    assertThat(metrics.currentWaiters, is(0));
+  }
+
+  @Test
+  public void shouldUseThreadTimeoutOverDatabaseTimeout() throws Exception {
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    database.beginTransaction();
+    try {
+      Thread writer = new Thread(() -> {
+        database.setThreadConnectionAcquireTimeout(50);
+        try {
+          database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{1, 2});
+        } catch (Throwable t) {
+          failure.set(t);
+        }
+      });
+      writer.start();
+      writer.join(5000);
+      assertThat(writer.isAlive(), is(false));
+    } finally {
+      database.endTransaction();
+    }
+    assertThat(failure.get(), instanceOf(SQLiteConnectionPoolBusyException.class));
+  }
+
+  @Test
+  public void shouldRejectWhenTooManyWaiters() throws Exception {
+    database.setMaxConnectionWaiters(1);
+    AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+    AtomicReference<Throwable> secondFailure = new AtomicReference<>();
+    Thread first;
+    database.beginTransaction();
+    try {
+      first = startWriter(firstFailure);
+      awaitWaiters(1);
+      Thread second = startWriter(secondFailure);
+      second.join(5000);
+      assertThat(second.isAlive(), is(false));
+      assertThat(first.isAlive(), is(true));
+    } finally {
+      database.endTransaction();
+    }
+    first.join(5000);
+    assertThat(firstFailure.get(), nullValue());
+    assertThat(secondFailure.get(), instanceOf(SQLiteConnectionPoolBusyException.class));
+    assertThat(((SQLiteConnectionPoolBusyException) secondFailure.get()).isRejected(), is(true));
+    assertThat(database.getConnectionPoolMetrics().rejectedAcquisitions, is(1L));
+  }
+
+  private Thread startWriter(AtomicReference<Throwable> failure) {
+    Thread writer = new Thread(() -> {
+      try {
+        database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{1, 2});
+      } catch (Throwable t) {
+        failure.set(t);
+      }
+    });
+    writer.start();
+    return writer;
+  }
+
+  private void awaitWaiters(int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (database.getConnectionPoolMetrics().currentWaiters < count
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertThat(database.getConnectionPoolMetrics().currentWaiters, is(count));
+  }
+}
@@ -0,0 +1,88 @@
+package net.zetetic.database.sqlcipher_cts;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.core.Is.is;
+
+import android.database.Cursor;
+
+import net.zetetic.database.sqlcipher.SQLiteConnectionPoolMetrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class SQLiteConnectionPoolMetricsTest extends AndroidSQLCipherTestCase {
+
+  @Test
+  public void shouldCountPrimaryAcquisitionsAndOpens() {
+    SQLiteConnectionPoolMetrics before = database.getConnectionPoolMetrics();
+    database.execSQL("create table t1(a,b);");
+    database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{1, 2});
+    SQLiteConnectionPoolMetrics after = database.getConnectionPoolMetrics();
+    assertThat(after.connectionsOpened, is(1L));
+    assertThat(after.getOpenConnections(), is(1L));
+    assertThat(after.primaryAcquisitions - before.primaryAcquisitions, greaterThanOrEqualTo(2L));
+    assertThat(after.primaryWaitTime.getCount(), is(after.primaryAcquisitions));
+    assertThat(after.holdTime.getCount(), is(after.primaryAcquisitions));
+    assertThat(after.holdTimeByConnection.size(), is(1));
+  }
+
+  @Test
+  public void shouldRecordReaderAcquisitionsInWalMode() {
+    database.enableWriteAheadLogging();
+    database.execSQL("create table t1(a,b);");
+    database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{1, 2});
+    database.beginTransaction();
+    try {
+      // The primary connection is held by this thread, so a query from
+      // another thread must be served by a reader connection.
+      Thread reader = new Thread(() -> {
+        Cursor cursor = database.rawQuery("select count(*) from t1;", null);
+        cursor.moveToFirst();
+        cursor.close();
+      });
+      reader.start();
+      reader.join();
+    } catch (InterruptedException ex) {
+      throw new RuntimeException(ex);
+    } finally {
+      database.endTransaction();
+    }
+    SQLiteConnectionPoolMetrics metrics = database.getConnectionPoolMetrics();
+    assertThat(metrics.nonPrimaryAcquisitions, greaterThan(0L));
+    assertThat(metrics.nonPrimaryWaitTime.getCount(), is(metrics.nonPrimaryAcquisitions));
+    assertThat(metrics.connectionsOpened, is(2L));
+  }
+
+  @Test
+  public void shouldReportWaitersWhilePrimaryConnectionIsHeld() throws Exception {
+    database.execSQL("create table t1(a,b);");
+    CountDownLatch started = new CountDownLatch(1);
+    database.beginTransaction();
+    Thread writer = new Thread(() -> {
+      started.countDown();
+      database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{1, 2});
+    });
+    try {
+      writer.start();
+      assertThat(started.await(5, TimeUnit.SECONDS), is(true));
+      long deadline = System.currentTimeMillis() + 5000;
+      while (database.getConnectionPoolMetrics().currentWaiters == 0
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertThat(database.getConnectionPoolMetrics().currentWaiters, is(1));
+    } finally {
+      database.endTransaction();
+    }
+    writer.join();
+    SQLiteConnectionPoolMetrics metrics = database.getConnectionPoolMetrics();
+    assertThat(metrics.currentWaiters, is(0));
+    assertThat(metrics.peakWaiters, is(1));
+    assertThat(metrics.primaryWaits, is(1L));
+    assertThat(metrics.primaryWaitTime.getMaxMicros(), greaterThan(0L));
+  }
+}
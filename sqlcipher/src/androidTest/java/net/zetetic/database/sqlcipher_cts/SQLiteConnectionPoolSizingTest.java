@@ -0,0 +1,84 @@
+package net.zetetic.database.sqlcipher_cts;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.core.Is.is;
+
+import android.database.Cursor;
+
+import net.zetetic.database.sqlcipher.SQLiteConnectionPoolMetrics;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class SQLiteConnectionPoolSizingTest extends AndroidSQLCipherTestCase {
+
+  @Before
+  public void setUp() {
+    super.setUp();
+    database.enableWriteAheadLogging();
+    database.execSQL("create table t1(a,b);");
+    database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{1, 2});
+  }
+
+  @Test
+  public void shouldCloseIdleReaderConnectionsAboveMinimum() throws Exception {
+    database.setReaderConnectionLimits(0, 2);
+    database.setIdleConnectionTimeout(100);
+    runReadersWhilePrimaryIsHeld(1);
+    assertThat(database.getConnectionPoolMetrics().getOpenConnections(), is(2L));
+
+    long deadline = System.currentTimeMillis() + 5000;
+    while (database.getConnectionPoolMetrics().idleConnectionsClosed == 0
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(20);
+    }
+    SQLiteConnectionPoolMetrics metrics = database.getConnectionPoolMetrics();
+    assertThat(metrics.idleConnectionsClosed, is(1L));
+    assertThat(metrics.getOpenConnections(), is(1L));
+  }
+
+  @Test
+  public void shouldKeepMinimumReaderConnectionsWhenIdle() throws Exception {
+    database.setReaderConnectionLimits(1, 2);
+    database.setIdleConnectionTimeout(50);
+    runReadersWhilePrimaryIsHeld(1);
+    Thread.sleep(500);
+    SQLiteConnectionPoolMetrics metrics = database.getConnectionPoolMetrics();
+    assertThat(metrics.idleConnectionsClosed, is(0L));
+    assertThat(metrics.getOpenConnections(), is(2L));
+  }
+
+  @Test
+  public void shouldNotOpenMoreThanMaximumReaderConnections() throws Exception {
+    database.setReaderConnectionLimits(0, 1);
+    runReadersWhilePrimaryIsHeld(4);
+    assertThat(database.getConnectionPoolMetrics().connectionsOpened, lessThanOrEqualTo(2L));
+  }
+
+  private void runReadersWhilePrimaryIsHeld(int readerCount) throws InterruptedException {
+    List<Thread> readers = new ArrayList<>();
+    database.beginTransaction();
+    try {
+      for (int index = 0; index < readerCount; index++) {
+        Thread reader = new Thread(() -> {
+          for (int query = 0; query < 20; query++) {
+            Cursor cursor = database.rawQuery("select count(*) from t1;", null);
+            cursor.moveToFirst();
+            cursor.close();
+          }
+        });
+        readers.add(reader);
+        reader.start();
+      }
+      for (Thread reader : readers) {
+        reader.join();
+      }
+    } finally {
+      database.endTransaction();
+    }
+  }
+}
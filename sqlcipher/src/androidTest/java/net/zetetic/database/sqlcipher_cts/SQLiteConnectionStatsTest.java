@@ -0,0 +1,74 @@
+package net.zetetic.database.sqlcipher_cts;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.core.Is.is;
+
+import net.zetetic.database.DatabaseUtils;
+import net.zetetic.database.sqlcipher.SQLiteConnectionStats;
+import net.zetetic.database.sqlcipher.SQLiteDatabase;
+import net.zetetic.database.sqlcipher.SQLiteStatement;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+public class SQLiteConnectionStatsTest extends AndroidSQLCipherTestCase {
+
+  @Before
+  public void setUp() {
+    super.setUp();
+    database.execSQL("create table t1(a,b);");
+  }
+
+  @Test
+  public void shouldCountPageWrites() {
+    insertRows(1000);
+    SQLiteConnectionStats stats = primaryStats();
+    assertThat(stats.encrypted, is(true));
+    assertThat(stats.cacheWrites, greaterThan(0L));
+    assertThat(stats.cacheUsedBytes, greaterThan(0L));
+  }
+
+  @Test
+  public void shouldCountPageReads() {
+    insertRows(1000);
+    database.close();
+    database = SQLiteDatabase.openOrCreateDatabase(databaseFilePath, "foo", null, null, null);
+
+    assertThat(DatabaseUtils.longForQuery(database, "select count(*) from t1;", null), is(1000L));
+    SQLiteConnectionStats stats = primaryStats();
+    assertThat(stats.cacheMisses, greaterThan(0L));
+
+    DatabaseUtils.longForQuery(database, "select count(*) from t1;", null);
+    assertThat(primaryStats().cacheHits, greaterThan(stats.cacheHits));
+    log("%s", primaryStats());
+  }
+
+  private SQLiteConnectionStats primaryStats() {
+    List<SQLiteConnectionStats> statsList = database.getConnectionStats();
+    for (SQLiteConnectionStats stats : statsList) {
+      if (stats.primary) {
+        return stats;
+      }
+    }
+    throw new AssertionError("No primary connection in " + statsList);
+  }
+
+  private void insertRows(int count) {
+    SQLiteStatement statement = database.compileStatement("insert into t1(a,b) values(?,?)");
+    database.beginTransaction();
+    try {
+      for (int index = 0; index < count; index++) {
+        statement.bindLong(1, index);
+        statement.bindString(2, "value " + index);
+        statement.executeInsert();
+      }
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+      statement.close();
+    }
+  }
+}
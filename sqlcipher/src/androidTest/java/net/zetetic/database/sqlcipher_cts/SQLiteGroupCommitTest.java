@@ -0,0 +1,98 @@
+package net.zetetic.database.sqlcipher_cts;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.core.Is.is;
+
+import android.database.sqlite.SQLiteConstraintException;
+
+import net.zetetic.database.DatabaseUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class SQLiteGroupCommitTest extends AndroidSQLCipherTestCase {
+
+  private static final int WRITER_COUNT = 16;
+
+  @Before
+  public void setUp() {
+    super.setUp();
+    database.enableWriteAheadLogging();
+    database.execSQL("create table t1(a integer primary key, b);");
+  }
+
+  @Test
+  public void shouldCommitConcurrentWritesTogether() throws Exception {
+    database.setGroupCommitPolicy(50, WRITER_COUNT);
+    long acquisitionsBefore = database.getConnectionPoolMetrics().primaryAcquisitions;
+    AtomicReferenceArray<Object> results = runWriters();
+    for (int index = 0; index < WRITER_COUNT; index++) {
+      assertThat(results.get(index), is((Object) 1));
+    }
+    assertThat(DatabaseUtils.longForQuery(database, "select count(*) from t1;", null),
+      is((long) WRITER_COUNT));
+    long acquisitions = database.getConnectionPoolMetrics().primaryAcquisitions - acquisitionsBefore;
+    assertThat(acquisitions, lessThan((long) WRITER_COUNT));
+  }
+
+  @Test
+  public void shouldOnlyFailTheWriteThatFailed() throws Exception {
+    database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{3, "existing"});
+    database.setGroupCommitPolicy(50, WRITER_COUNT);
+    AtomicReferenceArray<Object> results = runWriters();
+    for (int index = 0; index < WRITER_COUNT; index++) {
+      if (index == 3) {
+        assertThat(results.get(index), instanceOf(SQLiteConstraintException.class));
+      } else {
+        assertThat(results.get(index), is((Object) 1));
+      }
+    }
+    assertThat(DatabaseUtils.longForQuery(database, "select count(*) from t1;", null),
+      is((long) WRITER_COUNT));
+  }
+
+  @Test
+  public void shouldJoinCallersTransaction() {
+    database.beginTransaction();
+    try {
+      assertThat(database.executeGrouped("insert into t1(a,b) values(?,?)", new Object[]{1, 2}), is(1));
+    } finally {
+      database.endTransaction();
+    }
+    assertThat(DatabaseUtils.longForQuery(database, "select count(*) from t1;", null), is(0L));
+  }
+
+  // Runs one writer per row id and collects each writer's result or exception.
+  private AtomicReferenceArray<Object> runWriters() throws InterruptedException {
+    AtomicReferenceArray<Object> results = new AtomicReferenceArray<>(WRITER_COUNT);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Thread> writers = new ArrayList<>();
+    for (int index = 0; index < WRITER_COUNT; index++) {
+      final int id = index;
+      Thread writer = new Thread(() -> {
+        try {
+          start.await();
+          results.set(id, database.executeGrouped("insert into t1(a,b) values(?,?)",
+            new Object[]{id, "row " + id}));
+        } catch (Throwable t) {
+          results.set(id, t);
+        }
+      });
+      writers.add(writer);
+      writer.start();
+    }
+    start.countDown();
+    for (Thread writer : writers) {
+      writer.join(10000);
+      assertThat(writer.isAlive(), is(false));
+    }
+    return results;
+  }
+}
@@ -0,0 +1,135 @@
+package net.zetetic.database.sqlcipher_cts;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.core.Is.is;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import net.zetetic.database.DatabaseUtils;
+import net.zetetic.database.sqlcipher.SQLiteDatabase;
+import net.zetetic.database.sqlcipher.SQLiteImportOptions;
+import net.zetetic.database.sqlcipher.SQLiteStatement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SQLiteImportTest extends AndroidSQLCipherTestCase {
+
+  private File plaintextFile;
+
+  @Before
+  public void setUp() {
+    super.setUp();
+    plaintextFile = context.getDatabasePath("import-plaintext.db");
+    SQLiteDatabase.deleteDatabase(plaintextFile);
+    SQLiteDatabase plaintext = SQLiteDatabase.openOrCreateDatabase(plaintextFile, null);
+    try {
+      plaintext.execSQL("create table t1(a,b);");
+      plaintext.execSQL("create index t1_a on t1(a);");
+      plaintext.execSQL("create table t2(a primary key,b) without rowid;");
+      plaintext.execSQL("create view v1 as select a from t1;");
+      SQLiteStatement statement = plaintext.compileStatement("insert into t1(a,b) values(?,?)");
+      plaintext.beginTransaction();
+      try {
+        for (int index = 0; index < 2500; index++) {
+          statement.bindLong(1, index);
+          statement.bindString(2, "value " + index);
+          statement.executeInsert();
+        }
+        plaintext.execSQL("insert into t2(a,b) values(1,2),(3,4);");
+        plaintext.setTransactionSuccessful();
+      } finally {
+        plaintext.endTransaction();
+        statement.close();
+      }
+    } finally {
+      plaintext.close();
+    }
+  }
+
+  @After
+  public void tearDown() {
+    SQLiteDatabase.deleteDatabase(plaintextFile);
+    super.tearDown();
+  }
+
+  @Test
+  public void shouldImportInBatchesAndKeepWal() {
+    database.enableWriteAheadLogging();
+    final List<String> progress = new ArrayList<>();
+    SQLiteImportOptions options = new SQLiteImportOptions();
+    options.rowsPerTransaction = 1000;
+    options.progressListener = (table, copiedRows, copiedTables, totalTables) ->
+        progress.add(table + " " + copiedRows + " " + copiedTables + "/" + totalTables);
+    database.importUnencryptedDatabase(plaintextFile.getPath(), options);
+
+    assertThat(progress.toString(),
+        is("[t1 1000 0/2, t1 2000 0/2, t1 2500 1/2, t2 2 2/2]"));
+    assertThat(database.isWriteAheadLoggingEnabled(), is(true));
+    assertThat(DatabaseUtils.longForQuery(database, "select count(*) from t1;", null), is(2500L));
+    assertThat(DatabaseUtils.longForQuery(database, "select count(*) from t2;", null), is(2L));
+    assertThat(DatabaseUtils.longForQuery(database, "select count(*) from v1;", null), is(2500L));
+    assertThat(DatabaseUtils.longForQuery(database,
+        "select count(*) from sqlite_master where name = 't1_a';", null), is(1L));
+    database.beginTransaction();
+    try {
+      // The source is detached from the primary connection again.
+      assertThat(DatabaseUtils.longForQuery(database,
+          "select count(*) from pragma_database_list;", null), is(1L));
+    } finally {
+      database.endTransaction();
+    }
+  }
+
+  @Test
+  public void shouldAppendToExistingTable() {
+    database.execSQL("create table t1(a,b);");
+    database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{-1, "existing"});
+    database.importUnencryptedDatabase(plaintextFile.getPath(), null);
+    assertThat(DatabaseUtils.longForQuery(database, "select count(*) from t1;", null), is(2501L));
+  }
+
+  @Test
+  public void shouldSkipShadowTablesOnly() {
+    SQLiteDatabase plaintext = SQLiteDatabase.openOrCreateDatabase(plaintextFile, null);
+    try {
+      plaintext.execSQL("create virtual table notes using fts4(body);");
+      plaintext.execSQL("insert into notes(body) values('current');");
+      plaintext.execSQL("create table notes_archive(body);");
+      plaintext.execSQL("insert into notes_archive(body) values('archived');");
+    } finally {
+      plaintext.close();
+    }
+    database.importUnencryptedDatabase(plaintextFile.getPath(), null);
+
+    assertThat(DatabaseUtils.stringForQuery(database, "select body from notes_archive;", null),
+        is("archived"));
+    assertThat(DatabaseUtils.longForQuery(database,
+        "select count(*) from sqlite_master where name like 'notes%';", null), is(1L));
+  }
+
+  @Test
+  public void shouldKeepCommittedBatchesWhenCanceled() {
+    final CancellationSignal signal = new CancellationSignal();
+    SQLiteImportOptions options = new SQLiteImportOptions();
+    options.rowsPerTransaction = 1000;
+    options.cancellationSignal = signal;
+    options.progressListener = (table, copiedRows, copiedTables, totalTables) -> signal.cancel();
+
+    Exception failure = null;
+    try {
+      database.importUnencryptedDatabase(plaintextFile.getPath(), options);
+    } catch (Exception ex) {
+      failure = ex;
+    }
+    assertThat(failure, instanceOf(OperationCanceledException.class));
+    assertThat(DatabaseUtils.longForQuery(database, "select count(*) from t1;", null), is(1000L));
+  }
+}
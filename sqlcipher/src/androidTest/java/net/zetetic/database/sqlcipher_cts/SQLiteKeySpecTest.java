@@ -0,0 +1,152 @@
+package net.zetetic.database.sqlcipher_cts;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.core.Is.is;
+
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+
+import net.zetetic.database.DatabaseUtils;
+import net.zetetic.database.sqlcipher.SQLiteDatabase;
+import net.zetetic.database.sqlcipher.SQLiteKeySpec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+public class SQLiteKeySpecTest extends AndroidSQLCipherTestCase {
+
+  private static final String KEYSTORE_ALIAS = "sqlcipher-key-spec-test";
+
+  private SecretKey keyWrappingKey;
+  private File rawKeyFile;
+
+  @Before
+  public void setUp() {
+    super.setUp();
+    byte[] keyWrappingBytes = new byte[32];
+    new SecureRandom().nextBytes(keyWrappingBytes);
+    keyWrappingKey = new SecretKeySpec(keyWrappingBytes, "AES");
+    rawKeyFile = context.getDatabasePath("raw-key.db");
+    SQLiteDatabase.deleteDatabase(rawKeyFile);
+    database.execSQL("create table t1(a,b);");
+    database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{1, "one"});
+  }
+
+  @After
+  public void tearDown() {
+    SQLiteDatabase.deleteDatabase(rawKeyFile);
+    super.tearDown();
+  }
+
+  @Test
+  public void shouldOpenWithExportedDerivedKey() {
+    byte[] wrappedKey = database.exportWrappedKey(keyWrappingKey);
+    database.close();
+
+    database = SQLiteDatabase.openDatabaseWithWrappedKey(databaseFilePath.getPath(), wrappedKey,
+        keyWrappingKey, null, SQLiteDatabase.OPEN_READWRITE, null, null);
+    assertThat(DatabaseUtils.stringForQuery(database, "select b from t1;", null), is("one"));
+
+    // A key exported from a database opened with a wrapped key opens it too.
+    byte[] rewrappedKey = database.exportWrappedKey(keyWrappingKey);
+    database.close();
+    database = SQLiteDatabase.openDatabaseWithWrappedKey(databaseFilePath.getPath(), rewrappedKey,
+        keyWrappingKey, null, SQLiteDatabase.OPEN_READWRITE, null, null);
+    assertThat(DatabaseUtils.stringForQuery(database, "select b from t1;", null), is("one"));
+  }
+
+  @Test
+  public void shouldOpenWithWrappedRawKey() {
+    byte[] key = new byte[SQLiteKeySpec.KEY_SIZE];
+    new SecureRandom().nextBytes(key);
+    byte[] wrappedKey = SQLiteKeySpec.wrapRawKey(key, keyWrappingKey);
+    SQLiteDatabase db = SQLiteDatabase.openDatabaseWithWrappedKey(rawKeyFile.getPath(), wrappedKey,
+        keyWrappingKey, null, SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.CREATE_IF_NECESSARY,
+        null, null);
+    try {
+      db.execSQL("create table t2(a);");
+      db.execSQL("insert into t2(a) values(2);");
+    } finally {
+      db.close();
+    }
+
+    StringBuilder keySpec = new StringBuilder("x'");
+    for (byte b : key) {
+      keySpec.append(String.format("%02x", b));
+    }
+    keySpec.append("'");
+    db = SQLiteDatabase.openDatabase(rawKeyFile.getPath(), keySpec.toString(), null,
+        SQLiteDatabase.OPEN_READWRITE, null, null);
+    try {
+      assertThat(DatabaseUtils.longForQuery(db, "select a from t2;", null), is(2L));
+    } finally {
+      db.close();
+    }
+  }
+
+  @Test
+  public void shouldRejectWrongKeyWrappingKey() {
+    byte[] wrappedKey = database.exportWrappedKey(keyWrappingKey);
+    byte[] otherBytes = keyWrappingKey.getEncoded();
+    otherBytes[0] ^= 1;
+    SecretKey otherKey = new SecretKeySpec(otherBytes, "AES");
+    Exception failure = null;
+    try {
+      SQLiteDatabase.openDatabaseWithWrappedKey(databaseFilePath.getPath(), wrappedKey,
+          otherKey, null, SQLiteDatabase.OPEN_READWRITE, null, null);
+    } catch (Exception ex) {
+      failure = ex;
+    }
+    assertThat(failure, instanceOf(IllegalArgumentException.class));
+  }
+
+  @Test
+  public void shouldWrapWithAndroidKeyStoreKey() throws Exception {
+    if (android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.M) {
+      return;
+    }
+    KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES,
+        "AndroidKeyStore");
+    generator.init(new KeyGenParameterSpec.Builder(KEYSTORE_ALIAS,
+        KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+        .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+        .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+        .build());
+    SecretKey keyStoreKey = generator.generateKey();
+    try {
+      byte[] wrappedKey = database.exportWrappedKey(keyStoreKey);
+      database.close();
+      database = SQLiteDatabase.openDatabaseWithWrappedKey(databaseFilePath.getPath(), wrappedKey,
+          keyStoreKey, null, SQLiteDatabase.OPEN_READWRITE, null, null);
+      assertThat(DatabaseUtils.stringForQuery(database, "select b from t1;", null), is("one"));
+    } finally {
+      KeyStore keyStore = KeyStore.getInstance("AndroidKeyStore");
+      keyStore.load(null);
+      keyStore.deleteEntry(KEYSTORE_ALIAS);
+    }
+  }
+
+  @Test
+  public void shouldUsePasswordAfterChangingIt() {
+    byte[] wrappedKey = database.exportWrappedKey(keyWrappingKey);
+    database.close();
+    database = SQLiteDatabase.openDatabaseWithWrappedKey(databaseFilePath.getPath(), wrappedKey,
+        keyWrappingKey, null, SQLiteDatabase.OPEN_READWRITE, null, null);
+    database.changePassword("bar");
+    database.close();
+
+    database = SQLiteDatabase.openDatabase(databaseFilePath.getPath(), "bar", null,
+        SQLiteDatabase.OPEN_READWRITE, null, null);
+    assertThat(DatabaseUtils.stringForQuery(database, "select b from t1;", null), is("one"));
+  }
+}
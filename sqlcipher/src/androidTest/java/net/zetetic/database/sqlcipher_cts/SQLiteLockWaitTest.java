@@ -0,0 +1,85 @@
+package net.zetetic.database.sqlcipher_cts;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+
+import android.database.sqlite.SQLiteDatabaseLockedException;
+
+import net.zetetic.database.DatabaseUtils;
+import net.zetetic.database.sqlcipher.SQLiteConnectionPoolMetrics;
+import net.zetetic.database.sqlcipher.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SQLiteLockWaitTest extends AndroidSQLCipherTestCase {
+
+  private SQLiteDatabase lockHolder;
+
+  @Before
+  public void setUp() {
+    super.setUp();
+    database.execSQL("create table t1(a,b);");
+    lockHolder = SQLiteDatabase.openOrCreateDatabase(databaseFilePath, "foo", null, null, null);
+  }
+
+  @After
+  public void tearDown() {
+    if (lockHolder != null) {
+      lockHolder.close();
+    }
+    super.tearDown();
+  }
+
+  @Test
+  public void shouldFailWithLockedExceptionWhenBusyTimeoutElapses() {
+    database.setBusyTimeout(100);
+    lockHolder.execSQL("BEGIN EXCLUSIVE;");
+    Throwable failure = null;
+    try {
+      database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{1, 2});
+    } catch (Throwable t) {
+      failure = t;
+    } finally {
+      lockHolder.execSQL("COMMIT;");
+    }
+    assertThat(failure, instanceOf(SQLiteDatabaseLockedException.class));
+    SQLiteConnectionPoolMetrics metrics = database.getConnectionPoolMetrics();
+    assertThat(metrics.busyTimeouts, is(1L));
+    assertThat(metrics.busyRetries, greaterThan(0L));
+    assertThat(metrics.busyWaitMicros, greaterThan(0L));
+  }
+
+  @Test
+  public void shouldRetryUntilLockIsReleased() throws Exception {
+    database.setBusyTimeout(5000);
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    lockHolder.execSQL("BEGIN EXCLUSIVE;");
+    Thread writer = new Thread(() -> {
+      try {
+        database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{1, 2});
+      } catch (Throwable t) {
+        failure.set(t);
+      }
+    });
+    try {
+      writer.start();
+      Thread.sleep(200);
+    } finally {
+      lockHolder.execSQL("COMMIT;");
+    }
+    writer.join(5000);
+    assertThat(writer.isAlive(), is(false));
+    assertThat(failure.get(), nullValue());
+    SQLiteConnectionPoolMetrics metrics = database.getConnectionPoolMetrics();
+    assertThat(metrics.busyTimeouts, is(0L));
+    assertThat(metrics.busyRetries, greaterThan(0L));
+    assertThat(DatabaseUtils.longForQuery(database, "select count(*) from t1;", null), is(1L));
+  }
+}
@@ -0,0 +1,167 @@
+package net.zetetic.database.sqlcipher_cts;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.core.Is.is;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import net.zetetic.database.DatabaseUtils;
+import net.zetetic.database.sqlcipher.SQLiteBackupOptions;
+import net.zetetic.database.sqlcipher.SQLiteCipherSettings;
+import net.zetetic.database.sqlcipher.SQLiteDatabase;
+import net.zetetic.database.sqlcipher.SQLiteStatement;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SQLiteOnlineRekeyTest extends AndroidSQLCipherTestCase {
+
+  private final byte[] newPassword = "bar".getBytes(StandardCharsets.UTF_8);
+
+  @Before
+  public void setUp() {
+    super.setUp();
+    database.execSQL("create table t1(a,b);");
+    insertRows(2000);
+  }
+
+  @Test
+  public void shouldChangePasswordAndReportProgress() {
+    final List<Integer> progress = new ArrayList<>();
+    SQLiteBackupOptions options = new SQLiteBackupOptions();
+    options.pagesPerStep = 8;
+    options.stepIntervalMillis = 0;
+    options.progressListener = (copiedPages, totalPages) -> progress.add(copiedPages);
+    database.changePasswordOnline(newPassword, options);
+
+    assertThat(progress.size(), greaterThan(1));
+    assertThat(DatabaseUtils.longForQuery(database, "select count(*) from t1;", null), is(2000L));
+    assertThat(new File(databaseFilePath.getPath() + "-rekey").exists(), is(false));
+
+    database.close();
+    database = SQLiteDatabase.openOrCreateDatabase(databaseFilePath, "bar", null, null, null);
+    assertThat(DatabaseUtils.longForQuery(database, "select count(*) from t1;", null), is(2000L));
+  }
+
+  @Test
+  public void shouldRejectOldPasswordAfterChange() {
+    database.changePasswordOnline(newPassword, null);
+    database.close();
+
+    Exception failure = null;
+    try {
+      database = SQLiteDatabase.openOrCreateDatabase(databaseFilePath, "foo", null, null, null);
+      DatabaseUtils.longForQuery(database, "select count(*) from t1;", null);
+    } catch (Exception ex) {
+      failure = ex;
+    }
+    assertThat(failure, instanceOf(Exception.class));
+  }
+
+  @Test
+  public void shouldCarryOverConcurrentWrites() throws InterruptedException {
+    final SQLiteBackupOptions options = new SQLiteBackupOptions();
+    options.pagesPerStep = 4;
+    options.stepIntervalMillis = 1;
+    Thread rekey = new Thread(() -> database.changePasswordOnline(newPassword, options));
+    rekey.start();
+    for (int index = 0; index < 50; index++) {
+      database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{-index, "concurrent"});
+    }
+    rekey.join();
+
+    database.close();
+    database = SQLiteDatabase.openOrCreateDatabase(databaseFilePath, "bar", null, null, null);
+    assertThat(DatabaseUtils.longForQuery(database, "select count(*) from t1;", null), is(2050L));
+  }
+
+  @Test
+  public void shouldReplaceDatabaseInWalMode() {
+    database.enableWriteAheadLogging();
+    insertRows(100);
+    database.changePasswordOnline(newPassword, null);
+
+    assertThat(DatabaseUtils.longForQuery(database, "select count(*) from t1;", null), is(2100L));
+    for (String suffix : new String[]{"-rekey", "-rekey-journal", "-rekey-wal", "-rekey-shm"}) {
+      assertThat(new File(databaseFilePath.getPath() + suffix).exists(), is(false));
+    }
+
+    database.close();
+    database = SQLiteDatabase.openOrCreateDatabase(databaseFilePath, "bar", null, null, null);
+    assertThat(DatabaseUtils.longForQuery(database, "select count(*) from t1;", null), is(2100L));
+  }
+
+  @Test
+  public void shouldKeepOldPasswordWhenCanceled() {
+    final CancellationSignal signal = new CancellationSignal();
+    SQLiteBackupOptions options = new SQLiteBackupOptions();
+    options.pagesPerStep = 4;
+    options.cancellationSignal = signal;
+    options.progressListener = (copiedPages, totalPages) -> signal.cancel();
+
+    Exception failure = null;
+    try {
+      database.changePasswordOnline(newPassword, options);
+    } catch (Exception ex) {
+      failure = ex;
+    }
+    assertThat(failure, instanceOf(OperationCanceledException.class));
+    assertThat(new File(databaseFilePath.getPath() + "-rekey").exists(), is(false));
+
+    database.close();
+    database = SQLiteDatabase.openOrCreateDatabase(databaseFilePath, "foo", null, null, null);
+    assertThat(DatabaseUtils.longForQuery(database, "select count(*) from t1;", null), is(2000L));
+  }
+
+  @Test
+  public void shouldKeepCipherSettingsAppliedByHook() {
+    SQLiteCipherSettings settings = new SQLiteCipherSettings();
+    settings.kdfIter = 64000;
+    File file = context.getDatabasePath("online-rekey-settings.db");
+    SQLiteDatabase.deleteDatabase(file);
+    SQLiteDatabase db = SQLiteDatabase.openDatabase(file.getPath(), "foo", null,
+        SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.CREATE_IF_NECESSARY, null, settings.getHook());
+    try {
+      db.execSQL("create table t1(a,b);");
+      db.execSQL("insert into t1(a,b) values(1,'one');");
+      db.changePasswordOnline(newPassword, null);
+      assertThat(DatabaseUtils.longForQuery(db, "select count(*) from t1;", null), is(1L));
+    } finally {
+      db.close();
+    }
+
+    SQLiteDatabase reopened = SQLiteDatabase.openDatabase(file.getPath(), "bar", null,
+        SQLiteDatabase.OPEN_READWRITE, null, settings.getHook());
+    try {
+      assertThat(DatabaseUtils.longForQuery(reopened, "select count(*) from t1;", null), is(1L));
+      assertThat(DatabaseUtils.stringForQuery(reopened, "PRAGMA kdf_iter;", null), is("64000"));
+    } finally {
+      reopened.close();
+      SQLiteDatabase.deleteDatabase(file);
+    }
+  }
+
+  private void insertRows(int count) {
+    SQLiteStatement statement = database.compileStatement("insert into t1(a,b) values(?,?)");
+    database.beginTransaction();
+    try {
+      for (int index = 0; index < count; index++) {
+        statement.bindLong(1, index);
+        statement.bindString(2, "value " + index);
+        statement.executeInsert();
+      }
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+      statement.close();
+    }
+  }
+}
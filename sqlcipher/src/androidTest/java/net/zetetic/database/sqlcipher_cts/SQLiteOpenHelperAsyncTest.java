@@ -0,0 +1,188 @@
+package net.zetetic.database.sqlcipher_cts;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.hamcrest.core.Is.is;
+
+import android.content.Context;
+
+import net.zetetic.database.sqlcipher.SQLiteDatabase;
+import net.zetetic.database.sqlcipher.SQLiteOpenHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SQLiteOpenHelperAsyncTest extends AndroidSQLCipherTestCase {
+
+  private static final String DATABASE_NAME = "async-open.db";
+  private CountingHelper helper;
+
+  @Before
+  public void setUp() {
+    super.setUp();
+    context.deleteDatabase(DATABASE_NAME);
+    helper = new CountingHelper(context);
+  }
+
+  @After
+  public void tearDown() {
+    helper.close();
+    context.deleteDatabase(DATABASE_NAME);
+    super.tearDown();
+  }
+
+  @Test
+  public void shouldShareSingleOpenBetweenCallers() throws Exception {
+    final CountDownLatch notified = new CountDownLatch(3);
+    final List<SQLiteDatabase> results = new ArrayList<>();
+    SQLiteDatabase.AsyncCallback<SQLiteDatabase> callback = new SQLiteDatabase.AsyncCallback<SQLiteDatabase>() {
+      @Override
+      public void onResult(SQLiteDatabase result) {
+        synchronized (results) {
+          results.add(result);
+        }
+        notified.countDown();
+      }
+
+      @Override
+      public void onError(Throwable error) {
+        log("Async open failed: %s", error);
+      }
+    };
+
+    List<Future<SQLiteDatabase>> futures = new ArrayList<>();
+    for (int index = 0; index < 3; index++) {
+      futures.add(helper.getWritableDatabaseAsync(callback));
+    }
+    SQLiteDatabase db = futures.get(0).get(30, TimeUnit.SECONDS);
+    assertThat(notified.await(30, TimeUnit.SECONDS), is(true));
+
+    for (Future<SQLiteDatabase> future : futures) {
+      assertThat(future.get(), sameInstance(db));
+    }
+    for (SQLiteDatabase result : results) {
+      assertThat(result, sameInstance(db));
+    }
+    assertThat(helper.getWritableDatabase(), sameInstance(db));
+    assertThat(helper.createCount.get(), is(1));
+    assertThat(helper.openCount.get(), is(1));
+  }
+
+  @Test
+  public void shouldWaitForPendingOpenWhenOpeningSynchronously() throws Exception {
+    Future<SQLiteDatabase> future = helper.getWritableDatabaseAsync(null);
+    SQLiteDatabase db = helper.getWritableDatabase();
+    assertThat(future.get(30, TimeUnit.SECONDS), sameInstance(db));
+    assertThat(helper.openCount.get(), is(1));
+  }
+
+  @Test
+  public void shouldReturnDoneFutureOnceOpen() throws Exception {
+    SQLiteDatabase db = helper.getWritableDatabase();
+    Future<SQLiteDatabase> future = helper.getWritableDatabaseAsync(null);
+    assertThat(future.isDone(), is(true));
+    assertThat(future.get(), sameInstance(db));
+    assertThat(helper.openCount.get(), is(1));
+  }
+
+  @Test
+  public void shouldNotBlockCallersOrCloseWhileOpening() throws Exception {
+    helper.creating = new CountDownLatch(1);
+    helper.proceed = new CountDownLatch(1);
+    Future<SQLiteDatabase> future = helper.getWritableDatabaseAsync(null);
+    assertThat(helper.creating.await(30, TimeUnit.SECONDS), is(true));
+
+    Future<SQLiteDatabase> shared = helper.getWritableDatabaseAsync(null);
+    assertThat(shared, sameInstance(future));
+    Thread closer = new Thread(() -> helper.close());
+    closer.start();
+    closer.join(5000);
+    assertThat(closer.isAlive(), is(false));
+    assertThat(future.isDone(), is(false));
+
+    helper.proceed.countDown();
+    Throwable failure = null;
+    try {
+      future.get(30, TimeUnit.SECONDS);
+    } catch (ExecutionException ex) {
+      failure = ex.getCause();
+    }
+    assertThat(failure, instanceOf(IllegalStateException.class));
+
+    SQLiteDatabase db = helper.getWritableDatabase();
+    assertThat(db.isOpen(), is(true));
+    assertThat(helper.getWritableDatabaseAsync(null), not(sameInstance(future)));
+  }
+
+  @Test
+  public void shouldNotHandOutDatabaseClosedByOpenAfterClose() throws Exception {
+    helper.creating = new CountDownLatch(1);
+    helper.proceed = new CountDownLatch(1);
+    Future<SQLiteDatabase> future = helper.getWritableDatabaseAsync(null);
+    assertThat(helper.creating.await(30, TimeUnit.SECONDS), is(true));
+    helper.close();
+
+    final AtomicReference<SQLiteDatabase> reopened = new AtomicReference<>();
+    Thread opener = new Thread(() -> reopened.set(helper.getWritableDatabase()));
+    opener.start();
+    helper.proceed.countDown();
+    opener.join(30000);
+
+    Throwable failure = null;
+    try {
+      future.get(30, TimeUnit.SECONDS);
+    } catch (ExecutionException ex) {
+      failure = ex.getCause();
+    }
+    assertThat(failure, instanceOf(IllegalStateException.class));
+    assertThat(reopened.get().isOpen(), is(true));
+    assertThat(helper.getWritableDatabase(), sameInstance(reopened.get()));
+  }
+
+  private static class CountingHelper extends SQLiteOpenHelper {
+
+    final AtomicInteger createCount = new AtomicInteger();
+    final AtomicInteger openCount = new AtomicInteger();
+    volatile CountDownLatch creating;
+    volatile CountDownLatch proceed;
+
+    CountingHelper(Context context) {
+      super(context, DATABASE_NAME, "foo", null, 1, 0, null, null, false);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+      createCount.incrementAndGet();
+      db.execSQL("create table t1(a,b);");
+      if (creating != null) {
+        creating.countDown();
+        try {
+          proceed.await(30, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+      openCount.incrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,155 @@
+package net.zetetic.database.sqlcipher_cts;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+
+import net.zetetic.database.sqlcipher.SQLiteRowPublisher;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SQLiteRowPublisherTest extends AndroidSQLCipherTestCase {
+
+  private static final int ROW_COUNT = 1000;
+
+  @Before
+  public void setUp() {
+    super.setUp();
+    database.execSQL("create table t1(a,b);");
+    database.beginTransaction();
+    try {
+      for (int index = 0; index < ROW_COUNT; index++) {
+        database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{index, "row " + index});
+      }
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+  }
+
+  @Test
+  public void shouldDeliverAllRowsInOrderInBatches() throws Exception {
+    RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+    database.queryStream("select a, b from t1 order by a;", null, 100).subscribe(subscriber);
+    assertThat(subscriber.done.await(5, TimeUnit.SECONDS), is(true));
+    assertThat(subscriber.error.get(), nullValue());
+    assertThat(subscriber.rows.get(), is(ROW_COUNT));
+    assertThat(subscriber.batches.get(), is(ROW_COUNT / 100));
+    assertThat(subscriber.outOfOrder.get(), is(false));
+  }
+
+  @Test
+  public void shouldOnlyDeliverRequestedBatches() throws Exception {
+    RecordingSubscriber subscriber = new RecordingSubscriber(2);
+    database.queryStream("select a, b from t1 order by a;", null, 10).subscribe(subscriber);
+    assertThat(subscriber.delivered.poll(5, TimeUnit.SECONDS), is(10));
+    assertThat(subscriber.delivered.poll(5, TimeUnit.SECONDS), is(10));
+    assertThat(subscriber.delivered.poll(200, TimeUnit.MILLISECONDS), nullValue());
+    assertThat(subscriber.batches.get(), is(2));
+
+    subscriber.subscription.get().request(1);
+    assertThat(subscriber.delivered.poll(5, TimeUnit.SECONDS), is(10));
+    subscriber.subscription.get().cancel();
+    assertThat(subscriber.done.getCount(), is(1L));
+  }
+
+  @Test
+  public void shouldReleaseConnectionOnCancel() throws Exception {
+    RecordingSubscriber subscriber = new RecordingSubscriber(1);
+    database.queryStream("select a, b from t1;", null, 10).subscribe(subscriber);
+    assertThat(subscriber.delivered.poll(5, TimeUnit.SECONDS), is(10));
+    subscriber.subscription.get().cancel();
+
+    // The stream held the only connection; it must be usable again.
+    Cursor cursor = database.rawQuery("select count(*) from t1;", null);
+    try {
+      assertThat(cursor.moveToFirst(), is(true));
+      assertThat(cursor.getInt(0), is(ROW_COUNT));
+    } finally {
+      cursor.close();
+    }
+  }
+
+  @Test
+  public void shouldNotBlockWritersWhileStreaming() throws Exception {
+    database.enableWriteAheadLogging();
+    RecordingSubscriber subscriber = new RecordingSubscriber(1);
+    database.queryStream("select a, b from t1 order by a;", null, 10).subscribe(subscriber);
+    assertThat(subscriber.delivered.poll(5, TimeUnit.SECONDS), is(10));
+
+    // The stream holds a reader connection, so the primary is free for writes.
+    database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{ROW_COUNT, "row"});
+
+    subscriber.subscription.get().request(Long.MAX_VALUE);
+    assertThat(subscriber.done.await(5, TimeUnit.SECONDS), is(true));
+    // The stream reads the state from before the write, without repeating rows.
+    assertThat(subscriber.rows.get(), is(ROW_COUNT));
+    assertThat(subscriber.outOfOrder.get(), is(false));
+  }
+
+  @Test
+  public void shouldReportQueryErrors() throws Exception {
+    RecordingSubscriber subscriber = new RecordingSubscriber(1);
+    database.queryStream("select * from missing;", null).subscribe(subscriber);
+    assertThat(subscriber.done.await(5, TimeUnit.SECONDS), is(true));
+    assertThat(subscriber.error.get(), instanceOf(SQLiteException.class));
+  }
+
+  private static class RecordingSubscriber implements SQLiteRowPublisher.Subscriber {
+    final long initialRequest;
+    final AtomicReference<SQLiteRowPublisher.Subscription> subscription = new AtomicReference<>();
+    final LinkedBlockingQueue<Integer> delivered = new LinkedBlockingQueue<>();
+    final AtomicInteger batches = new AtomicInteger();
+    final AtomicInteger rows = new AtomicInteger();
+    final AtomicReference<Boolean> outOfOrder = new AtomicReference<>(false);
+    final AtomicReference<Throwable> error = new AtomicReference<>();
+    final CountDownLatch done = new CountDownLatch(1);
+
+    RecordingSubscriber(long initialRequest) {
+      this.initialRequest = initialRequest;
+    }
+
+    @Override
+    public void onSubscribe(SQLiteRowPublisher.Subscription subscription) {
+      this.subscription.set(subscription);
+      subscription.request(initialRequest);
+    }
+
+    @Override
+    public void onNext(Cursor batch) {
+      try {
+        while (batch.moveToNext()) {
+          if (batch.getInt(0) != rows.getAndIncrement()) {
+            outOfOrder.set(true);
+          }
+        }
+        batches.incrementAndGet();
+        delivered.add(batch.getCount());
+      } finally {
+        batch.close();
+      }
+    }
+
+    @Override
+    public void onError(Throwable error) {
+      this.error.set(error);
+      done.countDown();
+    }
+
+    @Override
+    public void onComplete() {
+      done.countDown();
+    }
+  }
+}
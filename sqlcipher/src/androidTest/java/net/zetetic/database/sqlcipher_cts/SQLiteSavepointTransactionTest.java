@@ -0,0 +1,153 @@
+package net.zetetic.database.sqlcipher_cts;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+import android.database.sqlite.SQLiteConstraintException;
+
+import net.zetetic.database.DatabaseUtils;
+import net.zetetic.database.sqlcipher.SQLiteTransactionListener;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class SQLiteSavepointTransactionTest extends AndroidSQLCipherTestCase {
+
+  @Before
+  public void setUp() {
+    super.setUp();
+    database.execSQL("create table t1(a primary key,b);");
+  }
+
+  @Test
+  public void shouldRollBackOnlyFailedSavepoint() {
+    database.beginTransaction();
+    try {
+      for (int index = 0; index < 10; index++) {
+        database.beginTransactionWithSavepoint();
+        try {
+          database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{index, index});
+          if (index == 5) {
+            database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{0, index});
+          }
+          database.setTransactionSuccessful();
+        } catch (SQLiteConstraintException ex) {
+          // The row inserted before the failure is rolled back with its savepoint.
+        } finally {
+          database.endTransaction();
+        }
+      }
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+    assertThat(DatabaseUtils.longForQuery(database, "select count(*) from t1;", null), is(9L));
+    assertThat(DatabaseUtils.longForQuery(database, "select count(*) from t1 where a = 5;", null), is(0L));
+  }
+
+  @Test
+  public void shouldRollBackReleasedSavepointWithOuterTransaction() {
+    database.beginTransaction();
+    try {
+      database.beginTransactionWithSavepoint();
+      try {
+        database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{1, 2});
+        database.setTransactionSuccessful();
+      } finally {
+        database.endTransaction();
+      }
+    } finally {
+      database.endTransaction();
+    }
+    assertThat(DatabaseUtils.longForQuery(database, "select count(*) from t1;", null), is(0L));
+  }
+
+  @Test
+  public void shouldRollBackSavepointWithFailedNestedTransaction() {
+    database.beginTransaction();
+    try {
+      database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{1, 2});
+      database.beginTransactionWithSavepoint();
+      try {
+        database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{3, 4});
+        database.beginTransaction();
+        database.endTransaction();
+        database.setTransactionSuccessful();
+      } finally {
+        database.endTransaction();
+      }
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+    assertThat(DatabaseUtils.longForQuery(database, "select a from t1;", null), is(1L));
+    assertThat(DatabaseUtils.longForQuery(database, "select count(*) from t1;", null), is(1L));
+  }
+
+  @Test
+  public void shouldNotifyListener() {
+    final List<String> events = new ArrayList<>();
+    database.beginTransaction();
+    try {
+      database.beginTransactionWithSavepoint(new RecordingListener(events, "first"));
+      try {
+        database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{1, 2});
+        database.setTransactionSuccessful();
+      } finally {
+        database.endTransaction();
+      }
+      database.beginTransactionWithSavepoint(new RecordingListener(events, "second"));
+      try {
+        database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{3, 4});
+      } finally {
+        database.endTransaction();
+      }
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+    assertThat(events.toString(), is("[first begin, first commit, second begin, second rollback]"));
+    assertThat(DatabaseUtils.longForQuery(database, "select count(*) from t1;", null), is(1L));
+  }
+
+  @Test
+  public void shouldBeginOutermostSavepointTransaction() {
+    database.beginTransactionWithSavepoint();
+    try {
+      database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{1, 2});
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+    assertThat(database.inTransaction(), is(false));
+    assertThat(DatabaseUtils.longForQuery(database, "select count(*) from t1;", null), is(1L));
+  }
+
+  private static class RecordingListener implements SQLiteTransactionListener {
+    private final List<String> events;
+    private final String name;
+
+    RecordingListener(List<String> events, String name) {
+      this.events = events;
+      this.name = name;
+    }
+
+    @Override
+    public void onBegin() {
+      events.add(name + " begin");
+    }
+
+    @Override
+    public void onCommit() {
+      events.add(name + " commit");
+    }
+
+    @Override
+    public void onRollback() {
+      events.add(name + " rollback");
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package net.zetetic.database.sqlcipher_cts;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+
+import android.database.Cursor;
+
+import net.zetetic.database.DatabaseUtils;
+import net.zetetic.database.sqlcipher.SQLiteSessionHandle;
+import net.zetetic.database.sqlcipher.SQLiteStatement;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SQLiteSessionHandleTest extends AndroidSQLCipherTestCase {
+
+  @Before
+  public void setUp() {
+    super.setUp();
+    database.execSQL("create table t1(a,b);");
+  }
+
+  @Test
+  public void shouldContinueTransactionOnAnotherThread() throws Exception {
+    SQLiteSessionHandle session = database.openSession();
+    try {
+      session.beginTransaction();
+      session.execSQL("insert into t1(a,b) values(?,?)", new Object[]{1, 2});
+      assertThat(database.inTransaction(), is(false));
+
+      AtomicReference<Throwable> failure = new AtomicReference<>();
+      Thread other = new Thread(() -> {
+        try {
+          assertThat(session.inTransaction(), is(true));
+          SQLiteStatement statement = session.compileStatement("insert into t1(a,b) values(?,?)");
+          statement.bindLong(1, 3);
+          statement.bindLong(2, 4);
+          statement.executeInsert();
+          statement.close();
+          session.setTransactionSuccessful();
+          session.endTransaction();
+        } catch (Throwable t) {
+          failure.set(t);
+        }
+      });
+      other.start();
+      other.join(5000);
+      assertThat(failure.get(), nullValue());
+      assertThat(session.inTransaction(), is(false));
+    } finally {
+      session.close();
+    }
+    assertThat(DatabaseUtils.longForQuery(database, "select count(*) from t1;", null), is(2L));
+  }
+
+  @Test
+  public void shouldReadOwnUncommittedChanges() {
+    SQLiteSessionHandle session = database.openSession();
+    try {
+      session.beginTransaction();
+      session.execSQL("insert into t1(a,b) values(?,?)", new Object[]{1, 2});
+      Cursor cursor = session.rawQuery("select a from t1 where b = ?", new Object[]{2});
+      try {
+        assertThat(cursor.moveToFirst(), is(true));
+        assertThat(cursor.getInt(0), is(1));
+      } finally {
+        cursor.close();
+      }
+      session.endTransaction();
+    } finally {
+      session.close();
+    }
+    assertThat(DatabaseUtils.longForQuery(database, "select count(*) from t1;", null), is(0L));
+  }
+
+  @Test
+  public void shouldRollBackTransactionOnClose() {
+    SQLiteSessionHandle session = database.openSession();
+    session.beginTransaction();
+    session.execSQL("insert into t1(a,b) values(?,?)", new Object[]{1, 2});
+    session.close();
+    assertThat(DatabaseUtils.longForQuery(database, "select count(*) from t1;", null), is(0L));
+
+    Exception failure = null;
+    try {
+      session.beginTransaction();
+    } catch (Exception ex) {
+      failure = ex;
+    }
+    assertThat(failure, instanceOf(IllegalStateException.class));
+  }
+
+  @Test
+  public void shouldDisableWriteAheadLoggingOnAttach() {
+    database.enableWriteAheadLogging();
+    SQLiteSessionHandle session = database.openSession();
+    try {
+      session.execSQL("attach database ':memory:' as memoryDb;");
+    } finally {
+      session.close();
+    }
+    assertThat(database.isWriteAheadLoggingEnabled(), is(false));
+  }
+}
@@ -0,0 +1,149 @@
+package net.zetetic.database.sqlcipher_cts;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+import android.os.SystemClock;
+
+import net.zetetic.database.DatabaseUtils;
+import net.zetetic.database.sqlcipher.SQLiteDatabase;
+import net.zetetic.database.sqlcipher.SQLiteStatement;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SQLiteSharedMemoryDatabaseTest extends AndroidSQLCipherTestCase {
+
+  @Test
+  public void shouldShareContentsBetweenDatabasesWithSameName() {
+    SQLiteDatabase first = SQLiteDatabase.createShared("shared-contents", null);
+    try {
+      assertThat(first.isInMemoryDatabase(), is(true));
+      first.execSQL("create table t1(a);");
+      first.execSQL("insert into t1(a) values(1);");
+      SQLiteDatabase second = SQLiteDatabase.createShared("shared-contents", null);
+      try {
+        assertThat(DatabaseUtils.longForQuery(second, "select a from t1;", null), is(1L));
+      } finally {
+        second.close();
+      }
+    } finally {
+      first.close();
+    }
+
+    // The contents go away with the last database using them.
+    SQLiteDatabase reopened = SQLiteDatabase.createShared("shared-contents", null);
+    try {
+      assertThat(DatabaseUtils.longForQuery(reopened,
+          "select count(*) from sqlite_master where name = 't1';", null), is(0L));
+    } finally {
+      reopened.close();
+    }
+  }
+
+  @Test
+  public void shouldRunReadersOnSeparateConnectionsAtSameTime() throws Exception {
+    SQLiteDatabase db = SQLiteDatabase.createShared("shared-readers", null);
+    try {
+      db.execSQL("create table t1(a);");
+      db.execSQL("insert into t1(a) values(1);");
+      // Each reader waits inside its query for the other one, which only returns
+      // if both queries run on connections of their own.
+      final CyclicBarrier barrier = new CyclicBarrier(2);
+      final AtomicInteger met = new AtomicInteger();
+      db.addCustomFunction("meet", 1, args -> {
+        try {
+          barrier.await(10, TimeUnit.SECONDS);
+          met.incrementAndGet();
+        } catch (InterruptedException | BrokenBarrierException | TimeoutException ex) {
+          log("Readers did not meet: %s", ex);
+        }
+      });
+
+      List<Thread> threads = new ArrayList<>();
+      for (int index = 0; index < 2; index++) {
+        Thread thread = new Thread(() ->
+            DatabaseUtils.stringForQuery(db, "select meet(a) from t1;", null));
+        threads.add(thread);
+        thread.start();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      assertThat(met.get(), is(2));
+      assertThat(db.getConnectionStats().size() > 1, is(true));
+    } finally {
+      db.close();
+    }
+  }
+
+  // Not an assertion on speed: logs concurrent point queries against a private
+  // in-memory database, which has one connection, and a shared one.
+  @Test
+  public void shouldBenchmarkConcurrentReaders() throws Exception {
+    final int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+    SQLiteDatabase single = SQLiteDatabase.create(null);
+    SQLiteDatabase shared = SQLiteDatabase.createShared("shared-benchmark", null);
+    try {
+      shared.setReaderConnectionLimits(0, threads);
+      long singleMillis = runReaders(single, threads);
+      long sharedMillis = runReaders(shared, threads);
+      log("threads:%d single connection:%dms shared:%dms", threads, singleMillis, sharedMillis);
+    } finally {
+      single.close();
+      shared.close();
+    }
+  }
+
+  private long runReaders(final SQLiteDatabase db, int threadCount) throws Exception {
+    final int rows = 10000;
+    final int queriesPerThread = 2000;
+    db.execSQL("create table t1(a integer primary key, b text);");
+    SQLiteStatement statement = db.compileStatement("insert into t1(a,b) values(?,?)");
+    db.beginTransaction();
+    try {
+      for (int index = 0; index < rows; index++) {
+        statement.bindLong(1, index);
+        statement.bindString(2, "value " + index);
+        statement.executeInsert();
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+      statement.close();
+    }
+
+    final AtomicInteger mismatches = new AtomicInteger();
+    List<Thread> threads = new ArrayList<>();
+    for (int index = 0; index < threadCount; index++) {
+      final int seed = index;
+      threads.add(new Thread(() -> {
+        for (int query = 0; query < queriesPerThread; query++) {
+          int key = (seed * 7919 + query * 31) % rows;
+          String value = DatabaseUtils.stringForQuery(db, "select b from t1 where a = ?;",
+              new String[]{Integer.toString(key)});
+          if (!value.equals("value " + key)) {
+            mismatches.incrementAndGet();
+          }
+        }
+      }));
+    }
+    long start = SystemClock.elapsedRealtime();
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long elapsed = SystemClock.elapsedRealtime() - start;
+    assertThat(mismatches.get(), is(0));
+    return elapsed;
+  }
+}
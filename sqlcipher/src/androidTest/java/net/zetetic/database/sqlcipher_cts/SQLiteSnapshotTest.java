@@ -0,0 +1,155 @@
+package net.zetetic.database.sqlcipher_cts;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.core.Is.is;
+
+import android.database.sqlite.SQLiteException;
+
+import net.zetetic.database.DatabaseUtils;
+import net.zetetic.database.sqlcipher.SQLiteSnapshot;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class SQLiteSnapshotTest extends AndroidSQLCipherTestCase {
+
+  private static final int READER_COUNT = 4;
+
+  @Before
+  public void setUp() {
+    super.setUp();
+    database.enableWriteAheadLogging();
+    database.execSQL("create table t1(a,b);");
+    database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{1, 2});
+  }
+
+  @Test
+  public void shouldReadSnapshotFromSeveralThreads() throws Exception {
+    SQLiteSnapshot snapshot = database.openSnapshot();
+    try {
+      database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{3, 4});
+      AtomicReferenceArray<Object> counts = new AtomicReferenceArray<>(READER_COUNT);
+      List<Thread> readers = new ArrayList<>();
+      for (int index = 0; index < READER_COUNT; index++) {
+        final int reader = index;
+        readers.add(new Thread(() -> {
+          try {
+            database.beginTransactionAtSnapshot(snapshot);
+            try {
+              counts.set(reader, DatabaseUtils.longForQuery(database, "select count(*) from t1;", null));
+            } finally {
+              database.endTransaction();
+            }
+          } catch (Throwable t) {
+            counts.set(reader, t);
+          }
+        }));
+      }
+      for (Thread thread : readers) {
+        thread.start();
+      }
+      for (Thread thread : readers) {
+        thread.join(5000);
+      }
+      for (int index = 0; index < READER_COUNT; index++) {
+        assertThat(counts.get(index), is((Object) 1L));
+      }
+      assertThat(DatabaseUtils.longForQuery(database, "select count(*) from t1;", null), is(2L));
+    } finally {
+      snapshot.close();
+    }
+  }
+
+  @Test
+  public void shouldRejectWritesAtSnapshot() {
+    SQLiteSnapshot snapshot = database.openSnapshot();
+    try {
+      database.beginTransactionAtSnapshot(snapshot);
+      try {
+        database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{3, 4});
+      } catch (Exception ex) {
+        // Expected.
+      } finally {
+        database.endTransaction();
+      }
+    } finally {
+      snapshot.close();
+    }
+    assertThat(DatabaseUtils.longForQuery(database, "select count(*) from t1;", null), is(1L));
+  }
+
+  @Test
+  public void shouldRunOnReaderAndRejectWritesAtLatestSnapshot() throws Exception {
+    database.setConnectionGrowthDelay(200);
+    SQLiteSnapshot snapshot = database.openSnapshot();
+    try {
+      database.beginTransactionAtSnapshot(snapshot);
+      try {
+        // Nothing was committed since the snapshot was opened, so it is the latest state.
+        Exception failure = null;
+        try {
+          database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{3, 4});
+        } catch (Exception ex) {
+          failure = ex;
+        }
+        assertThat(failure, instanceOf(SQLiteException.class));
+
+        Thread writer = new Thread(() ->
+            database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{5, 6}));
+        writer.start();
+        writer.join(5000);
+        assertThat(writer.isAlive(), is(false));
+        assertThat(DatabaseUtils.longForQuery(database, "select count(*) from t1;", null), is(1L));
+      } finally {
+        database.endTransaction();
+      }
+    } finally {
+      snapshot.close();
+    }
+    assertThat(DatabaseUtils.longForQuery(database, "select count(*) from t1;", null), is(2L));
+  }
+
+  @Test
+  public void shouldNotBeginTransactionAtClosedSnapshot() {
+    SQLiteSnapshot snapshot = database.openSnapshot();
+    snapshot.close();
+    assertThat(snapshot.isOpen(), is(false));
+    Exception failure = null;
+    try {
+      database.beginTransactionAtSnapshot(snapshot);
+    } catch (Exception ex) {
+      failure = ex;
+    }
+    assertThat(failure, instanceOf(IllegalStateException.class));
+    assertThat(database.inTransaction(), is(false));
+  }
+
+  @Test
+  public void shouldRequireWriteAheadLogging() {
+    database.disableWriteAheadLogging();
+    Exception failure = null;
+    try {
+      database.openSnapshot();
+    } catch (Exception ex) {
+      failure = ex;
+    }
+    assertThat(failure, instanceOf(IllegalStateException.class));
+  }
+
+  @Test
+  public void shouldRequireReaderConnection() {
+    database.setReaderConnectionLimits(0, 0);
+    Exception failure = null;
+    try {
+      database.openSnapshot();
+    } catch (Exception ex) {
+      failure = ex;
+    }
+    assertThat(failure, instanceOf(IllegalStateException.class));
+  }
+}
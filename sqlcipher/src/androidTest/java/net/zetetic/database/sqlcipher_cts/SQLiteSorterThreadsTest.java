@@ -0,0 +1,88 @@
+package net.zetetic.database.sqlcipher_cts;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+import android.database.Cursor;
+import android.os.SystemClock;
+
+import net.zetetic.database.DatabaseUtils;
+import net.zetetic.database.sqlcipher.SQLiteDatabase;
+import net.zetetic.database.sqlcipher.SQLiteStatement;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class SQLiteSorterThreadsTest extends AndroidSQLCipherTestCase {
+
+  @Test
+  public void shouldApplySorterThreadsToConnections() {
+    assertThat(DatabaseUtils.longForQuery(database, "PRAGMA threads;", null), is(0L));
+    database.setSorterThreads(2);
+    assertThat(DatabaseUtils.longForQuery(database, "PRAGMA threads;", null), is(2L));
+    database.setSorterThreads(100);
+    assertThat(DatabaseUtils.longForQuery(database, "PRAGMA threads;", null),
+        is((long) SQLiteDatabase.MAX_SORTER_THREADS));
+    database.setSorterThreads(0);
+    assertThat(DatabaseUtils.longForQuery(database, "PRAGMA threads;", null), is(0L));
+  }
+
+  // Not an assertion on speed: logs how index creation and a sorted query scale
+  // with the number of sorter threads, up to the number of cores.
+  @Test
+  public void shouldBenchmarkSortingWithWorkerThreads() {
+    final int rows = 200000;
+    database.execSQL("create table t1(a integer primary key, b text);");
+    insertRandomRows(rows);
+    // A small page cache makes the sorter spill runs that the workers merge.
+    database.execSQL("PRAGMA cache_size=-1024;");
+
+    final int cores = Runtime.getRuntime().availableProcessors();
+    final int maxThreads = Math.min(cores, SQLiteDatabase.MAX_SORTER_THREADS);
+    for (int threads = 0; threads <= maxThreads; threads = threads == 0 ? 1 : threads * 2) {
+      database.setSorterThreads(threads);
+
+      long start = SystemClock.elapsedRealtime();
+      database.execSQL("create index t1_b on t1(b);");
+      long indexMillis = SystemClock.elapsedRealtime() - start;
+      database.execSQL("drop index t1_b;");
+
+      start = SystemClock.elapsedRealtime();
+      int count = 0;
+      String previous = null;
+      Cursor cursor = database.rawQuery("select b from t1 order by b;", null);
+      try {
+        while (cursor.moveToNext()) {
+          String value = cursor.getString(0);
+          assertThat(previous == null || previous.compareTo(value) <= 0, is(true));
+          previous = value;
+          count++;
+        }
+      } finally {
+        cursor.close();
+      }
+      long sortMillis = SystemClock.elapsedRealtime() - start;
+
+      assertThat(count, is(rows));
+      log("cores:%d threads:%d create index:%dms order by:%dms", cores, threads,
+          indexMillis, sortMillis);
+    }
+  }
+
+  private void insertRandomRows(int count) {
+    Random random = new Random(42);
+    SQLiteStatement statement = database.compileStatement("insert into t1(b) values(?)");
+    database.beginTransaction();
+    try {
+      for (int index = 0; index < count; index++) {
+        statement.bindString(1, Long.toHexString(random.nextLong()) + "-" + index);
+        statement.executeInsert();
+      }
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+      statement.close();
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package net.zetetic.database.sqlcipher_cts;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.core.Is.is;
+
+import net.zetetic.database.sqlcipher.SQLiteTableChangeListener;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+public class SQLiteTableChangeListenerTest extends AndroidSQLCipherTestCase {
+
+  private final List<Set<String>> notifications = new ArrayList<>();
+  private final SQLiteTableChangeListener listener = tables -> notifications.add(tables);
+
+  @Before
+  public void setUp() {
+    super.setUp();
+    database.execSQL("create table t1(a,b);");
+    database.execSQL("create table t2(a,b);");
+    database.addTableChangeListener(listener);
+  }
+
+  @Test
+  public void shouldNotifyOncePerTransaction() {
+    database.beginTransaction();
+    try {
+      database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{1, 2});
+      database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{3, 4});
+      database.execSQL("insert into t2(a,b) values(?,?)", new Object[]{5, 6});
+      assertThat(notifications.size(), is(0));
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+    assertThat(notifications.size(), is(1));
+    assertThat(notifications.get(0), containsInAnyOrder("t1", "t2"));
+  }
+
+  @Test
+  public void shouldNotifyAutocommitStatements() {
+    database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{1, 2});
+    database.execSQL("update t2 set a = 1;");
+    assertThat(notifications.size(), is(1));
+    assertThat(notifications.get(0), containsInAnyOrder("t1"));
+  }
+
+  @Test
+  public void shouldNotNotifyRolledBackTransaction() {
+    database.beginTransaction();
+    try {
+      database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{1, 2});
+    } finally {
+      database.endTransaction();
+    }
+    assertThat(notifications.size(), is(0));
+  }
+
+  @Test
+  public void shouldNotifyDeleteWithoutWhereClause() {
+    database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{1, 2});
+    notifications.clear();
+    database.execSQL("delete from t1;");
+    assertThat(notifications.size(), is(1));
+    assertThat(notifications.get(0), containsInAnyOrder("t1"));
+  }
+
+  @Test
+  public void shouldNotifyWithoutRowidTable() {
+    database.execSQL("create table t3(a primary key, b) without rowid;");
+    notifications.clear();
+    database.execSQL("insert into t3(a,b) values(?,?)", new Object[]{1, 2});
+    assertThat(notifications.size(), is(1));
+    assertThat(notifications.get(0), containsInAnyOrder("t3"));
+  }
+
+  @Test
+  public void shouldStopNotifyingWhenRemoved() {
+    database.removeTableChangeListener(listener);
+    database.execSQL("insert into t1(a,b) values(?,?)", new Object[]{1, 2});
+    assertThat(notifications.size(), is(0));
+  }
+}
@@ -0,0 +1,209 @@
+package net.zetetic.database.sqlcipher;
+
+import android.database.Cursor;
+import android.os.CancellationSignal;
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs asynchronous operations for a {@link SQLiteDatabase} on worker threads
+ * owned by the database.
+ * <p>
+ * The number of workers tracks the maximum size of the database's connection
+ * pool, so that every worker can be handed a connection without waiting and
+ * callers do not need thread pools of their own that compete for the same
+ * connections.  Each worker has its own {@link SQLiteSession}, like any other
+ * thread, and the pooled connections it is handed keep their prepared statement
+ * caches across operations.
+ * </p><p>
+ * Workers exit after sitting idle for a while so that an idle database does not
+ * keep threads around.
+ * </p><p>
+ * This class is thread-safe.
+ * </p>
+ */
+final class SQLiteAsyncExecutor {
+    private static final String TAG = "SQLiteAsyncExecutor";
+
+    // How long an idle worker thread waits for more work before exiting.
+    private static final long WORKER_KEEP_ALIVE_MILLIS = 30000;
+
+    private final Object mLock = new Object();
+    private final ThreadPoolExecutor mExecutor;
+
+    SQLiteAsyncExecutor(final String label) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(1, 1,
+                WORKER_KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, "SQLiteAsync: " + label
+                                + " #" + threadCount.incrementAndGet());
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues an operation for execution on a worker thread.
+     *
+     * @param callable The operation to run.
+     * @param cancellationSignal The signal the operation observes, canceled when
+     * the returned future is canceled.
+     * @param callback The callback to notify when the operation finishes, or null if none.
+     * @param workerCount The number of worker threads to allow, normally the
+     * maximum size of the connection pool.
+     * @param onFinished Run exactly once, after the operation has run or once it was
+     * canceled before it started, or null if none.  Not run if this method throws.
+     * @return A future for the result of the operation.
+     */
+    <T> Future<T> submit(Callable<T> callable, CancellationSignal cancellationSignal,
+            SQLiteDatabase.AsyncCallback<T> callback, int workerCount, Runnable onFinished) {
+        Operation<T> operation = new Operation<T>(callable, cancellationSignal, callback,
+                onFinished);
+        synchronized (mLock) {
+            setWorkerCountLocked(Math.max(1, workerCount));
+            mExecutor.execute(operation);
+        }
+        return operation;
+    }
+
+    /**
+     * Queues a task for execution on a worker thread.
+     *
+     * @param runnable The task to run.
+     * @param workerCount The number of worker threads to allow, normally the
+     * maximum size of the connection pool.
+     */
+    void execute(Runnable runnable, int workerCount) {
+        synchronized (mLock) {
+            setWorkerCountLocked(Math.max(1, workerCount));
+            mExecutor.execute(runnable);
+        }
+    }
+
+    /**
+     * Stops accepting new operations.  Operations already queued still run.
+     */
+    void shutdown() {
+        synchronized (mLock) {
+            mExecutor.shutdown();
+        }
+    }
+
+    private void setWorkerCountLocked(int workerCount) {
+        if (workerCount > mExecutor.getMaximumPoolSize()) {
+            mExecutor.setMaximumPoolSize(workerCount);
+            mExecutor.setCorePoolSize(workerCount);
+        } else if (workerCount < mExecutor.getMaximumPoolSize()) {
+            mExecutor.setCorePoolSize(workerCount);
+            mExecutor.setMaximumPoolSize(workerCount);
+        }
+    }
+
+    private static final class Operation<T> extends FutureTask<T> {
+        private final CancellationSignal mCancellationSignal;
+        private final SQLiteDatabase.AsyncCallback<T> mCallback;
+        private final Runnable mOnFinished;
+        // Set by whichever of run() and a successful cancel() comes first, which then
+        // runs mOnFinished.  done() can't be used: it is called as soon as a running
+        // operation is canceled, while the callable is still running.
+        private final AtomicBoolean mStarted = new AtomicBoolean();
+
+        Operation(Callable<T> callable, CancellationSignal cancellationSignal,
+                SQLiteDatabase.AsyncCallback<T> callback, Runnable onFinished) {
+            super(callable);
+            mCancellationSignal = cancellationSignal;
+            mCallback = callback;
+            mOnFinished = onFinished;
+        }
+
+        @Override
+        public void run() {
+            if (!mStarted.compareAndSet(false, true)) {
+                return; // canceled before it started
+            }
+            try {
+                super.run();
+            } finally {
+                finish();
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            final boolean canceled = super.cancel(false);
+            if (canceled) {
+                mCancellationSignal.cancel();
+                if (mStarted.compareAndSet(false, true)) {
+                    finish();
+                }
+            }
+            return canceled;
+        }
+
+        private void finish() {
+            if (mOnFinished != null) {
+                mOnFinished.run();
+            }
+        }
+
+        @Override
+        protected void set(T result) {
+            super.set(result);
+            // If the operation was canceled while it was running, the result was
+            // discarded and nobody else will ever see it.
+            if (isCancelled() && result instanceof Cursor) {
+                ((Cursor) result).close();
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (mCallback == null) {
+                return;
+            }
+
+            final T result;
+            try {
+                result = get();
+            } catch (ExecutionException ex) {
+                notifyError(ex.getCause());
+                return;
+            } catch (CancellationException ex) {
+                notifyError(ex);
+                return;
+            } catch (InterruptedException ex) {
+                // Can't happen, the operation is already done.
+                notifyError(ex);
+                return;
+            }
+            try {
+                mCallback.onResult(result);
+            } catch (RuntimeException ex) {
+                Log.e(TAG, "Async operation callback threw an exception.", ex);
+            }
+        }
+
+        private void notifyError(Throwable error) {
+            try {
+                mCallback.onError(error);
+            } catch (RuntimeException ex) {
+                Log.e(TAG, "Async operation callback threw an exception.", ex);
+            }
+        }
+    }
+}
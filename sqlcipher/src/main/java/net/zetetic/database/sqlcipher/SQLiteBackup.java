@@ -0,0 +1,179 @@
+package net.zetetic.database.sqlcipher;
+
+import android.os.CancellationSignal;
+
+/**
+ * Copies the main database of a connection pool into another file in steps,
+ * using <code>sqlite3_backup</code> on the primary connection.
+ * <p>
+ * The primary connection is acquired for each step and released in between, so
+ * the copy does not stop other threads from using the database.  Changes written
+ * on the primary connection between steps are applied to the copy as well.  If
+ * the database is changed by another connection, the copy starts over.
+ * </p><p>
+ * This class is not thread-safe.
+ * </p>
+ */
+final class SQLiteBackup {
+    private final SQLiteConnectionPool mPool;
+    private final int mConnectionFlags;
+    private final SQLiteConnection mConnection;
+    private long mBackupPtr;
+
+    private SQLiteBackup(SQLiteConnectionPool pool, int connectionFlags,
+            SQLiteConnection connection, long backupPtr) {
+        mPool = pool;
+        mConnectionFlags = connectionFlags;
+        mConnection = connection;
+        mBackupPtr = backupPtr;
+    }
+
+    /**
+     * Begins copying the database into a file.
+     *
+     * @param pool The connection pool of the database.
+     * @param connectionFlags The connection flags to use to acquire the primary
+     * connection.  Refer to {@link SQLiteConnectionPool}.
+     * @param destPath The path of the copy, which is created if needed.
+     * @param destKey The key of the copy, or null to leave it unencrypted.  If there
+     * is a key, the first page of the copy is written right away, so that the copy can
+     * be opened to check its key while the backup is in progress.
+     * @param destPragmas The PRAGMA statements to run on the copy after keying it,
+     * such as cipher settings, or null if none.
+     * @return The backup, which must be finished or aborted.
+     */
+    static SQLiteBackup open(SQLiteConnectionPool pool, int connectionFlags, String destPath,
+            byte[] destKey, String[] destPragmas) {
+        final SQLiteConnection connection = pool.acquireConnection(null,
+                connectionFlags, null); // might throw
+        try {
+            final long backupPtr = connection.openBackup(destPath, destKey,
+                    destPragmas); // might throw
+            return new SQLiteBackup(pool, connectionFlags, connection, backupPtr);
+        } finally {
+            pool.releaseConnection(connection);
+        }
+    }
+
+    /**
+     * Copies the database in steps until it has been copied entirely, or, if
+     * <code>leaveLastStep</code> is true, until no more than one step remains.
+     *
+     * @param options How to copy the database.
+     * @param leaveLastStep True to leave the last step to {@link #finishOn}.
+     *
+     * @throws android.os.OperationCanceledException if the copy was canceled.
+     */
+    void copy(SQLiteBackupOptions options, boolean leaveLastStep) {
+        final CancellationSignal cancellationSignal = options.cancellationSignal;
+        boolean first = true;
+        for (;;) {
+            if (!first) {
+                sleep(options.stepIntervalMillis);
+            }
+            first = false;
+            if (cancellationSignal != null) {
+                cancellationSignal.throwIfCanceled();
+            }
+
+            final SQLiteConnection connection = mPool.acquireConnection(null,
+                    mConnectionFlags, cancellationSignal); // might throw
+            final boolean done;
+            final int copiedPages;
+            final int totalPages;
+            try {
+                throwIfNotCopying(connection);
+                if (leaveLastStep && connection.getBackupPageCount(mBackupPtr) != 0
+                        && connection.getBackupPageCount(mBackupPtr)
+                                - connection.getBackupCopiedPages(mBackupPtr)
+                                <= options.pagesPerStep) {
+                    return;
+                }
+                done = connection.stepBackup(mBackupPtr, options.pagesPerStep); // might throw
+                copiedPages = connection.getBackupCopiedPages(mBackupPtr);
+                totalPages = connection.getBackupPageCount(mBackupPtr);
+            } finally {
+                mPool.releaseConnection(connection);
+            }
+
+            if (options.progressListener != null) {
+                options.progressListener.onProgress(copiedPages, totalPages);
+            }
+            if (done) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Copies the rest of the database on a connection the caller holds exclusively,
+     * and finishes the backup.  The copy is then complete.
+     *
+     * @param connection The primary connection.
+     */
+    void finishOn(SQLiteConnection connection) {
+        throwIfNotCopying(connection);
+        while (!connection.stepBackup(mBackupPtr, -1)) { // might throw
+            sleep(1);
+        }
+        final long backupPtr = mBackupPtr;
+        mBackupPtr = 0;
+        connection.finishBackup(backupPtr); // might throw
+    }
+
+    /**
+     * Finishes copying the rest of the database on the primary connection.
+     */
+    void finish() {
+        final SQLiteConnection connection = mPool.acquireConnection(null,
+                mConnectionFlags, null); // might throw
+        try {
+            finishOn(connection);
+        } finally {
+            mPool.releaseConnection(connection);
+        }
+    }
+
+    /**
+     * Stops the backup, leaving the copy incomplete.  Does nothing if the backup
+     * has already been finished.
+     */
+    void abort() {
+        if (mBackupPtr == 0) {
+            return;
+        }
+        final long backupPtr = mBackupPtr;
+        mBackupPtr = 0;
+
+        final SQLiteConnection connection = mPool.acquireConnection(null,
+                mConnectionFlags, null); // might throw
+        try {
+            // The backup is gone if the primary connection was closed meanwhile.
+            if (connection == mConnection) {
+                connection.finishBackup(backupPtr); // might throw
+            }
+        } finally {
+            mPool.releaseConnection(connection);
+        }
+    }
+
+    private void throwIfNotCopying(SQLiteConnection connection) {
+        if (mBackupPtr == 0) {
+            throw new IllegalStateException("The backup has already been finished.");
+        }
+        if (connection != mConnection || !connection.hasBackup(mBackupPtr)) {
+            throw new IllegalStateException("The connection being copied was closed "
+                    + "while the backup was in progress.");
+        }
+    }
+
+    private static void sleep(long millis) {
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException ex) {
+                // we have been interrupted, that's all we need to do
+            }
+        }
+    }
+}
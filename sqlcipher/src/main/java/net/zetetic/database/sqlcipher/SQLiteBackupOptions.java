@@ -0,0 +1,79 @@
+package net.zetetic.database.sqlcipher;
+
+import android.os.CancellationSignal;
+
+import java.util.ArrayList;
+
+/**
+ * Describes how a database is copied in steps by
+ * {@link SQLiteDatabase#backupTo} and {@link SQLiteDatabase#changePasswordOnline}.
+ * <p>
+ * Each step holds the connection that writes to the database while it copies
+ * {@link #pagesPerStep} pages, then releases it and waits for
+ * {@link #stepIntervalMillis} so that other threads can read and write.
+ * Changes made meanwhile are carried over to the copy.
+ * </p>
+ */
+public final class SQLiteBackupOptions {
+    /**
+     * Receives the progress of a copy.
+     */
+    public interface ProgressListener {
+        /**
+         * Called on the copying thread after each step.
+         *
+         * @param copiedPages The number of pages copied so far.
+         * @param totalPages The number of pages in the database.
+         */
+        void onProgress(int copiedPages, int totalPages);
+    }
+
+    /**
+     * The number of pages copied in each step.
+     *
+     * Default is 256.
+     */
+    public int pagesPerStep;
+
+    /**
+     * How long to wait in milliseconds between steps.
+     *
+     * Default is 10.
+     */
+    public long stepIntervalMillis;
+
+    /**
+     * The listener told about the progress of the copy, or null if none.
+     *
+     * Default is null.
+     */
+    public ProgressListener progressListener;
+
+    /**
+     * A signal to cancel the copy in progress, or null if none.  A canceled copy
+     * throws {@link android.os.OperationCanceledException} and leaves the database
+     * as it was.
+     *
+     * Default is null.
+     */
+    public CancellationSignal cancellationSignal;
+
+    /**
+     * The PRAGMA statements run on the copy after it is keyed and before any page
+     * is copied, such as <code>PRAGMA cipher_kdf_iter = 256000</code>, so that the
+     * copy uses cipher settings of its own.  Only used by
+     * {@link SQLiteDatabase#backupTo}; a database whose password is changed keeps
+     * its cipher settings.
+     *
+     * Default is empty.
+     */
+    public final ArrayList<String> destinationPragmas = new ArrayList<String>();
+
+    /**
+     * Creates backup options with default values.
+     */
+    public SQLiteBackupOptions() {
+        pagesPerStep = 256;
+        stepIntervalMillis = 10;
+    }
+}
@@ -0,0 +1,49 @@
+package net.zetetic.database.sqlcipher;
+
+import java.util.ArrayList;
+
+/**
+ * Describes how {@link SQLiteDatabase#beginBulkLoad} relaxes the database while
+ * large amounts of data are loaded.
+ * <p>
+ * This object is only read when the bulk load begins; changing it afterwards has
+ * no effect.
+ * </p>
+ */
+public final class SQLiteBulkLoadOptions {
+    /**
+     * The tables whose indexes are dropped when the bulk load begins and created
+     * again when it ends, so that rows are inserted without updating the indexes and
+     * each index is then built in one pass.  Indexes that SQLite creates for
+     * UNIQUE and PRIMARY KEY constraints cannot be dropped and are kept.
+     *
+     * Default is empty.
+     */
+    public final ArrayList<String> deferredIndexTables = new ArrayList<String>();
+
+    /**
+     * The size in KiB of the page cache of the connection the data is written on
+     * while the bulk load is active.
+     *
+     * Default is 65536 (64 MiB).
+     */
+    public int cacheSizeKiB;
+
+    /**
+     * True to turn <code>PRAGMA synchronous</code> off while the bulk load is active,
+     * so that commits do not wait for the storage device.  An application crash
+     * still cannot corrupt the database, but a power loss or operating system crash
+     * during the bulk load may.
+     *
+     * Default is true.
+     */
+    public boolean synchronousOff;
+
+    /**
+     * Creates bulk load options with default values.
+     */
+    public SQLiteBulkLoadOptions() {
+        cacheSizeKiB = 64 * 1024;
+        synchronousOff = true;
+    }
+}
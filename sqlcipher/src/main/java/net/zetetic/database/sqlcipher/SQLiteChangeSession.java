@@ -0,0 +1,150 @@
+package net.zetetic.database.sqlcipher;
+
+import java.io.Closeable;
+
+/**
+ * Records the changes made to selected tables of a database, so that they can be
+ * collected as a changeset or patchset and applied to another database with
+ * {@link SQLiteDatabase#applyChangeset}.  Obtained from
+ * {@link SQLiteDatabase#openChangeSession}.
+ * <p>
+ * Collecting changes this way costs time in proportion to what changed, rather
+ * than to the size of the tables.  Only tables with a declared PRIMARY KEY are
+ * recorded.  A row changed several times appears once, with its final values, and
+ * changes that are rolled back are not recorded.
+ * </p><p>
+ * The session records the changes made by the connection that writes to the
+ * database.  It stops recording and must be closed if that connection is replaced,
+ * which happens when write-ahead logging is enabled or disabled, or when the
+ * database is closed.
+ * </p><p>
+ * This class is not thread-safe.  It may be handed from one thread to another,
+ * but must only be used by one thread at a time.
+ * </p>
+ */
+public final class SQLiteChangeSession implements Closeable {
+    private final CloseGuard mCloseGuard = CloseGuard.get();
+
+    private final SQLiteDatabase mDatabase;
+    private SQLiteConnection mConnection;
+    private long mSessionPtr;
+    private boolean mClosed;
+
+    // Called by SQLiteDatabase only.
+    SQLiteChangeSession(SQLiteDatabase database) {
+        mDatabase = database;
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+        try {
+            if (mCloseGuard != null) {
+                mCloseGuard.warnIfOpen();
+            }
+            // The connection deletes the native session when it is closed.
+        } finally {
+            super.finalize();
+        }
+    }
+
+    /**
+     * Collects the changes recorded so far as a changeset, which holds both the
+     * old and the new values of changed rows, so that conflicts can be detected
+     * when it is applied.
+     *
+     * @return The changeset, which is empty if nothing changed.
+     *
+     * @throws IllegalStateException if the session has been closed or its connection
+     * has been replaced.
+     */
+    public byte[] getChangeset() {
+        return getChanges(false);
+    }
+
+    /**
+     * Collects the changes recorded so far as a patchset, which is smaller than a
+     * changeset because it only holds the primary key of deleted rows and the new
+     * values of updated columns.
+     *
+     * @return The patchset, which is empty if nothing changed.
+     *
+     * @throws IllegalStateException if the session has been closed or its connection
+     * has been replaced.
+     */
+    public byte[] getPatchset() {
+        return getChanges(true);
+    }
+
+    private byte[] getChanges(boolean patchset) {
+        throwIfClosed();
+        mDatabase.acquireReference();
+        try {
+            return mDatabase.getThreadSession().getChangeSessionChanges(this, patchset,
+                    SQLiteDatabase.getDefaultConnectionFlags(false /*readOnly*/));
+        } finally {
+            mDatabase.releaseReference();
+        }
+    }
+
+    /**
+     * Stops recording changes.  Does nothing if the session is already closed.
+     */
+    @Override
+    public void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+
+        if (mCloseGuard != null) {
+            mCloseGuard.close();
+        }
+        if (mConnection != null && mDatabase.isOpen()) {
+            mDatabase.acquireReference();
+            try {
+                mDatabase.getThreadSession().detachChangeSession(this,
+                        SQLiteDatabase.getDefaultConnectionFlags(false /*readOnly*/));
+            } finally {
+                mDatabase.releaseReference();
+            }
+        }
+    }
+
+    private void throwIfClosed() {
+        if (mClosed) {
+            throw new IllegalStateException("The change session has been closed.");
+        }
+    }
+
+    // Called by SQLiteSession only.
+    // Starts recording the changes made by the connection to the given tables, or
+    // to all tables if null.
+    void attachTo(SQLiteConnection connection, String[] tables) {
+        mSessionPtr = connection.createChangeSession(tables); // might throw
+        mConnection = connection;
+        mCloseGuard.open("close");
+    }
+
+    // Called by SQLiteSession only.
+    byte[] getChangesOn(SQLiteConnection connection, boolean patchset) {
+        throwIfNotAttachedTo(connection);
+        return connection.getChangeSessionChanges(mSessionPtr, patchset); // might throw
+    }
+
+    // Called by SQLiteSession only.
+    void detachFrom(SQLiteConnection connection) {
+        if (connection == mConnection) {
+            connection.deleteChangeSession(mSessionPtr);
+        }
+        mConnection = null;
+        mSessionPtr = 0;
+    }
+
+    private void throwIfNotAttachedTo(SQLiteConnection connection) {
+        if (connection != mConnection || !connection.hasChangeSession(mSessionPtr)) {
+            throw new IllegalStateException("The change session no longer records "
+                    + "changes because the connection it was attached to has been "
+                    + "replaced, or cannot be used in the current transaction.");
+        }
+    }
+}
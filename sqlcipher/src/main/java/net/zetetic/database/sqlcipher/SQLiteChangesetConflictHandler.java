@@ -0,0 +1,78 @@
+package net.zetetic.database.sqlcipher;
+
+/**
+ * Decides what happens to a change that cannot be applied cleanly by
+ * {@link SQLiteDatabase#applyChangeset}.
+ * <p>
+ * The constants match those of <code>sqlite3changeset_apply()</code>.
+ * </p>
+ */
+public interface SQLiteChangesetConflictHandler {
+    /**
+     * Conflict type: the row to update or delete exists, but its values are
+     * not the ones the change expects.
+     */
+    int CONFLICT_DATA = 1;
+
+    /**
+     * Conflict type: the row to update or delete does not exist.
+     */
+    int CONFLICT_NOT_FOUND = 2;
+
+    /**
+     * Conflict type: the row to insert has the same primary key as an existing row.
+     */
+    int CONFLICT_CONFLICT = 3;
+
+    /**
+     * Conflict type: the change violates a constraint other than the primary key.
+     */
+    int CONFLICT_CONSTRAINT = 4;
+
+    /**
+     * Conflict type: the changeset as a whole leaves foreign key constraints violated.
+     */
+    int CONFLICT_FOREIGN_KEY = 5;
+
+    /**
+     * Operation: the change deletes a row.
+     */
+    int OPERATION_DELETE = 9;
+
+    /**
+     * Operation: the change inserts a row.
+     */
+    int OPERATION_INSERT = 18;
+
+    /**
+     * Operation: the change updates a row.
+     */
+    int OPERATION_UPDATE = 23;
+
+    /**
+     * Result: skip the change and carry on with the rest of the changeset.
+     */
+    int RESULT_OMIT = 0;
+
+    /**
+     * Result: replace the existing row with the change.  Only allowed for
+     * {@link #CONFLICT_DATA} and {@link #CONFLICT_CONFLICT}.
+     */
+    int RESULT_REPLACE = 1;
+
+    /**
+     * Result: stop and roll back all changes applied so far.
+     */
+    int RESULT_ABORT = 2;
+
+    /**
+     * Called on the thread applying the changeset when a change conflicts with
+     * the contents of the database.  Must not access the database.
+     *
+     * @param table The name of the table the change applies to.
+     * @param conflictType One of the <code>CONFLICT_*</code> constants.
+     * @param operation One of the <code>OPERATION_*</code> constants.
+     * @return One of the <code>RESULT_*</code> constants.
+     */
+    int onConflict(String table, int conflictType, int operation);
+}
@@ -0,0 +1,396 @@
+package net.zetetic.database.sqlcipher;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.os.CancellationSignal;
+
+import net.zetetic.database.DatabaseErrorHandler;
+import net.zetetic.database.DatabaseUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+/**
+ * Migrates databases written by SQLCipher 1.x, 2.x and 3.x to the current file
+ * format in the background.
+ * <p>
+ * Running <code>PRAGMA cipher_migrate</code> from {@link SQLiteDatabaseHook#postKey}
+ * migrates a legacy database while it is opened, blocking the opening thread until
+ * the whole database has been encrypted again.  Instead, {@link #detectFormat} finds
+ * out whether a database needs migrating without reading more than its first page,
+ * and {@link #migrateAsync} copies it into a file in the current format on a worker
+ * thread, a batch of rows at a time, reporting progress and checking for cancellation
+ * as it goes.  Once the copy is complete it atomically replaces the legacy file.
+ * </p><p>
+ * The legacy database remains readable while it is migrated: open it read-only
+ * with the hook returned by {@link #getCompatibilityHook}, and open it again without
+ * the hook once the migration has finished.  The migration holds the write lock of
+ * the legacy database from before the copy starts until the copy has replaced it,
+ * so that no write can be lost; a connection that writes to it meanwhile fails with
+ * {@link android.database.sqlite.SQLiteDatabaseLockedException}.  Connections that
+ * have the database open for writing should be closed before it is migrated, since
+ * whatever they write after the migration goes to the replaced file.
+ * </p>
+ */
+public final class SQLiteCipherMigration {
+    /**
+     * The format written by the current version of SQLCipher, which needs no migration.
+     */
+    public static final int FORMAT_CURRENT = 4;
+
+    /**
+     * Returned by {@link #detectFormat} when the database cannot be read with the
+     * password in any known format.
+     */
+    public static final int FORMAT_UNKNOWN = 0;
+
+    // Suffix of the file the database is copied into while it is migrated.
+    private static final String COPY_FILE_SUFFIX = "-migrate";
+
+    // The name under which the legacy database is attached to its copy.
+    private static final String LEGACY_SCHEMA = "sqlcipher_legacy";
+
+    // The number of rows copied by each statement, between two progress reports.
+    private static final int COPY_BATCH_ROWS = 1000;
+
+    // Matches the statement that created a table without rowid, whose options follow
+    // the last closing parenthesis.
+    private static final Pattern WITHOUT_ROWID_PATTERN =
+            Pattern.compile("(?is).*\\bWITHOUT\\s+ROWID\\b[^)]*");
+
+    // Failing to read a database in a given format is expected, not corruption.
+    private static final DatabaseErrorHandler IGNORE_CORRUPTION = new DatabaseErrorHandler() {
+        @Override
+        public void onCorruption(SQLiteDatabase dbObj, SQLiteException exception) {
+        }
+    };
+
+    /**
+     * Receives the progress of a migration.
+     */
+    public interface ProgressListener {
+        /**
+         * Called on the migrating thread before the first row is copied and after
+         * each batch of rows.
+         *
+         * @param copiedRows The number of rows copied so far.
+         * @param totalRows The number of rows in the database.
+         */
+        void onProgress(long copiedRows, long totalRows);
+    }
+
+    private SQLiteCipherMigration() {
+    }
+
+    /**
+     * Finds out which format a database was written in.
+     * <p>
+     * Each format is tried in turn, starting with the current one, by deriving the
+     * key and reading the first page of the database.
+     * </p>
+     *
+     * @param path The path of the database.
+     * @param password The password of the database.
+     * @return The major SQLCipher version whose format the database is in, from 1
+     * to {@link #FORMAT_CURRENT}, or {@link #FORMAT_UNKNOWN}.
+     */
+    public static int detectFormat(String path, byte[] password) {
+        if (path == null) {
+            throw new IllegalArgumentException("path must not be null.");
+        }
+        for (int format = FORMAT_CURRENT; format >= 1; format--) {
+            if (canRead(path, password, format)) {
+                return format;
+            }
+        }
+        return FORMAT_UNKNOWN;
+    }
+
+    /**
+     * Gets a hook that opens databases in the given format, such as to read a legacy
+     * database while it is migrated.
+     *
+     * @param format The major SQLCipher version whose format to use, from 1 to
+     * {@link #FORMAT_CURRENT}.
+     * @return The hook.
+     */
+    public static SQLiteDatabaseHook getCompatibilityHook(final int format) {
+        if (format < 1 || format > FORMAT_CURRENT) {
+            throw new IllegalArgumentException("format must be between 1 and "
+                    + FORMAT_CURRENT + ".");
+        }
+        return new SQLiteDatabaseHook() {
+            @Override
+            public void preKey(SQLiteConnection connection) {
+            }
+
+            @Override
+            public void postKey(SQLiteConnection connection) {
+                connection.execute("PRAGMA cipher_compatibility = " + format + ";", null, null);
+            }
+        };
+    }
+
+    /**
+     * Migrates a database to the current format on a worker thread.
+     * Canceling the returned future stops the migration and leaves the database as
+     * it was.
+     *
+     * @param path The path of the database.
+     * @param password The password of the database.
+     * @param listener The listener told about the progress of the migration, or null if none.
+     * @param callback The callback to notify with the result or the failure, or null
+     * to only use the returned future.
+     * @return A future for the format the database was migrated from, as described
+     * by {@link #migrate}.
+     */
+    public static Future<Integer> migrateAsync(final String path, final byte[] password,
+            final ProgressListener listener, SQLiteDatabase.AsyncCallback<Integer> callback) {
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        final SQLiteAsyncExecutor executor = new SQLiteAsyncExecutor("cipher migration");
+        try {
+            return executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return migrate(path, password, listener, cancellationSignal);
+                }
+            }, cancellationSignal, callback, 1, null);
+        } finally {
+            // The migration still runs, then the worker thread exits.
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Migrates a database to the current format on the calling thread.
+     *
+     * @param path The path of the database.
+     * @param password The password of the database.
+     * @param listener The listener told about the progress of the migration, or null if none.
+     * @param cancellationSignal A signal to cancel the migration in progress, or null if none.
+     * @return The format the database was migrated from, or {@link #FORMAT_CURRENT}
+     * if it did not need migrating.
+     *
+     * @throws SQLiteException if the database cannot be read in any known format.
+     * @throws android.database.sqlite.SQLiteDatabaseLockedException if another
+     * connection is writing to the database.
+     * @throws android.os.OperationCanceledException if the migration was canceled.
+     */
+    public static int migrate(String path, byte[] password, ProgressListener listener,
+            CancellationSignal cancellationSignal) {
+        final int format = detectFormat(path, password);
+        if (format == FORMAT_UNKNOWN) {
+            throw new SQLiteException("Could not read database '" + path
+                    + "' in any known format.");
+        }
+        if (format == FORMAT_CURRENT) {
+            return format;
+        }
+
+        final File copy = new File(path + COPY_FILE_SUFFIX);
+        SQLiteDatabase.deleteDatabase(copy);
+        boolean migrated = false;
+        // An immediate transaction on a connection of its own keeps the legacy
+        // database from being written until its copy has replaced it, without
+        // keeping readers out of it.
+        final SQLiteDatabase legacy = SQLiteDatabase.openDatabase(path, password, null,
+                SQLiteDatabase.OPEN_READWRITE, IGNORE_CORRUPTION, getCompatibilityHook(format));
+        try {
+            legacy.beginTransactionNonExclusive();
+            try {
+                copyDatabase(path, password, format, copy, listener, cancellationSignal);
+                if (!copy.renameTo(new File(path))) {
+                    throw new SQLiteException("Could not replace database '" + path
+                            + "' with its migrated copy.");
+                }
+                migrated = true;
+            } finally {
+                legacy.endTransaction();
+            }
+        } finally {
+            legacy.close();
+            if (!migrated) {
+                SQLiteDatabase.deleteDatabase(copy);
+            }
+        }
+        // The journal files of the legacy database do not apply to its copy.
+        new File(path + "-journal").delete();
+        new File(path + "-shm").delete();
+        new File(path + "-wal").delete();
+        return format;
+    }
+
+    private static boolean canRead(String path, byte[] password, int format) {
+        SQLiteDatabase db = null;
+        try {
+            db = SQLiteDatabase.openDatabase(path, password, null, SQLiteDatabase.OPEN_READONLY,
+                    IGNORE_CORRUPTION, getCompatibilityHook(format));
+            DatabaseUtils.longForQuery(db, "SELECT count(*) FROM sqlite_master;", null);
+            return true;
+        } catch (SQLiteException ex) {
+            return false;
+        } finally {
+            if (db != null) {
+                db.close();
+            }
+        }
+    }
+
+    // Copies the schema and the rows of the legacy database the way sqlcipher_export()
+    // does, but into a database attached the other way round so that the schema
+    // statements apply to the copy unchanged, and a batch of rows per statement.
+    private static void copyDatabase(String path, byte[] password, int format, File copy,
+            ProgressListener listener, CancellationSignal cancellationSignal) {
+        final SQLiteDatabase target = SQLiteDatabase.openDatabase(copy.getPath(), password, null,
+                SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.CREATE_IF_NECESSARY,
+                IGNORE_CORRUPTION, null);
+        try {
+            target.execSQL("ATTACH DATABASE ? AS " + LEGACY_SCHEMA + " KEY ?;",
+                    new Object[] { path, password });
+            target.rawExecSQL("PRAGMA " + LEGACY_SCHEMA + ".cipher_compatibility = "
+                    + format + ";");
+
+            // A deferred transaction only reads the legacy database, whose write
+            // lock is held by the caller.
+            final SQLiteSession session = target.getThreadSession();
+            session.beginTransaction(SQLiteSession.TRANSACTION_MODE_DEFERRED, null,
+                    target.getThreadDefaultConnectionFlags(false /*readOnly*/),
+                    cancellationSignal);
+            try {
+                copySchemaAndRows(target, listener, cancellationSignal);
+                session.setTransactionSuccessful();
+            } finally {
+                session.endTransaction(null);
+            }
+        } finally {
+            target.close();
+        }
+    }
+
+    private static void copySchemaAndRows(SQLiteDatabase target, ProgressListener listener,
+            CancellationSignal cancellationSignal) {
+        target.rawExecSQL("PRAGMA auto_vacuum = " + pragmaForLong(target, "auto_vacuum") + ";");
+
+        final ArrayList<String> createTables = new ArrayList<String>();
+        final ArrayList<String> copyTables = new ArrayList<String>();
+        final ArrayList<String> withoutRowidTables = new ArrayList<String>();
+        final ArrayList<String> createLater = new ArrayList<String>();
+        final ArrayList<String> virtualTables = new ArrayList<String>();
+        final Cursor cursor = target.rawQuery("SELECT type, name, rootpage, sql FROM "
+                + LEGACY_SCHEMA + ".sqlite_master WHERE sql NOT NULL ORDER BY rowid;", null);
+        try {
+            while (cursor.moveToNext()) {
+                final String type = cursor.getString(0);
+                final String name = cursor.getString(1);
+                final String sql = cursor.getString(3);
+                if (!type.equals("table")) {
+                    // Indexes are created after the rows have been copied, and
+                    // triggers so that they do not fire on the copied rows.
+                    createLater.add(sql);
+                } else if (cursor.getLong(2) == 0) {
+                    virtualTables.add(name);
+                } else {
+                    if (!name.equals("sqlite_sequence")) {
+                        createTables.add(sql);
+                    }
+                    copyTables.add(name);
+                    if (WITHOUT_ROWID_PATTERN.matcher(sql).matches()) {
+                        withoutRowidTables.add(name);
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        final int flags = target.getThreadDefaultConnectionFlags(false /*readOnly*/);
+        final SQLiteSession session = target.getThreadSession();
+
+        // Allows the internal tables such as sqlite_stat1 to be created.
+        target.rawExecSQL("PRAGMA writable_schema = ON;");
+        for (String sql : createTables) {
+            session.execute(sql, null, flags, cancellationSignal);
+        }
+        long totalRows = 0;
+        for (String table : copyTables) {
+            totalRows += session.executeForLong("SELECT count(*) FROM " + LEGACY_SCHEMA + "."
+                    + quoteIdentifier(table) + ";", null, flags, cancellationSignal);
+        }
+        if (listener != null) {
+            listener.onProgress(0, totalRows);
+        }
+        long copiedRows = 0;
+        for (String table : copyTables) {
+            copiedRows = copyRows(session, flags, table, withoutRowidTables.contains(table),
+                    copiedRows, totalRows, listener, cancellationSignal);
+        }
+        for (String sql : createLater) {
+            session.execute(sql, null, flags, cancellationSignal);
+        }
+        // Virtual tables are recorded without being created, since their
+        // shadow tables have already been copied.
+        for (String table : virtualTables) {
+            target.execSQL("INSERT INTO main.sqlite_master(type, name, tbl_name, "
+                    + "rootpage, sql) SELECT type, name, tbl_name, rootpage, sql FROM "
+                    + LEGACY_SCHEMA + ".sqlite_master WHERE type = 'table' AND name = ?;",
+                    new Object[] { table });
+        }
+        target.rawExecSQL("PRAGMA user_version = "
+                + pragmaForLong(target, "user_version") + ";");
+        target.rawExecSQL("PRAGMA application_id = "
+                + pragmaForLong(target, "application_id") + ";");
+        target.rawExecSQL("PRAGMA writable_schema = OFF;");
+    }
+
+    // Copies the rows of one table in batches of consecutive rowids, and returns the
+    // number of rows copied so far.
+    private static long copyRows(SQLiteSession session, int flags, String name,
+            boolean withoutRowid, long copiedRows, long totalRows, ProgressListener listener,
+            CancellationSignal cancellationSignal) {
+        final String table = quoteIdentifier(name);
+        final String insert = "INSERT INTO main." + table + " SELECT * FROM "
+                + LEGACY_SCHEMA + "." + table;
+        if (withoutRowid) {
+            // There is no rowid to split the table by, so it is copied at once.
+            copiedRows += session.executeForChangedRowCount(insert + ";", null, flags,
+                    cancellationSignal);
+            if (listener != null) {
+                listener.onProgress(copiedRows, totalRows);
+            }
+            return copiedRows;
+        }
+
+        long fromRowid = Long.MIN_VALUE;
+        while (true) {
+            final String lastRowid = session.executeForString("SELECT max(rowid) FROM "
+                    + "(SELECT rowid FROM " + LEGACY_SCHEMA + "." + table
+                    + " WHERE rowid >= ? ORDER BY rowid LIMIT " + COPY_BATCH_ROWS + ");",
+                    new Object[] { fromRowid }, flags, cancellationSignal);
+            if (lastRowid == null) {
+                return copiedRows;
+            }
+            final long toRowid = Long.parseLong(lastRowid);
+            copiedRows += session.executeForChangedRowCount(insert
+                    + " WHERE rowid BETWEEN ? AND ?;", new Object[] { fromRowid, toRowid },
+                    flags, cancellationSignal);
+            if (listener != null) {
+                listener.onProgress(copiedRows, totalRows);
+            }
+            if (toRowid == Long.MAX_VALUE) {
+                return copiedRows;
+            }
+            fromRowid = toRowid + 1;
+        }
+    }
+
+    private static long pragmaForLong(SQLiteDatabase db, String pragma) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA " + LEGACY_SCHEMA + "." + pragma + ";", null);
+    }
+
+    private static String quoteIdentifier(String name) {
+        return "\"" + name.replace("\"", "\"\"") + "\"";
+    }
+}
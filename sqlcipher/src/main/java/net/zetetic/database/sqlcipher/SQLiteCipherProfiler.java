@@ -0,0 +1,250 @@
+package net.zetetic.database.sqlcipher;
+
+import android.database.Cursor;
+
+import net.zetetic.database.DatabaseUtils;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures how cipher settings perform on this device.
+ * <p>
+ * Each candidate {@link SQLiteCipherSettings} is applied through its
+ * {@link SQLiteCipherSettings#getHook hook} to a temporary database, which then
+ * runs the same workload: rows with an indexed text column and a blob are inserted
+ * in one transaction, the database is closed and opened again, and the rows are
+ * read back by a full scan and by index lookups.  The database is also created
+ * once without encryption so that the size overhead of each candidate can be
+ * reported.
+ * </p><p>
+ * Profiling derives keys and writes to storage, so it should run on a worker thread.
+ * </p>
+ */
+public final class SQLiteCipherProfiler {
+    private static final String TABLE = "sqlcipher_android_profile";
+    private static final byte[] PASSWORD = "sqlcipher-android-profile".getBytes(
+            Charset.forName("UTF-8"));
+
+    /**
+     * The measurements of one candidate.
+     */
+    public static final class Result {
+        /** The settings that were measured. */
+        public final SQLiteCipherSettings settings;
+
+        /** The number of rows written and read. */
+        public final int rows;
+
+        /** The time in milliseconds taken to open the database, including key derivation. */
+        public final long openMillis;
+
+        /** The time in milliseconds taken to insert the rows. */
+        public final long writeMillis;
+
+        /** The time in milliseconds taken to read the rows back. */
+        public final long readMillis;
+
+        /** The size in bytes of the database once the rows have been written. */
+        public final long fileSize;
+
+        /** The size in bytes of the same database without encryption. */
+        public final long plaintextFileSize;
+
+        Result(SQLiteCipherSettings settings, int rows, long openMillis, long writeMillis,
+                long readMillis, long fileSize, long plaintextFileSize) {
+            this.settings = settings;
+            this.rows = rows;
+            this.openMillis = openMillis;
+            this.writeMillis = writeMillis;
+            this.readMillis = readMillis;
+            this.fileSize = fileSize;
+            this.plaintextFileSize = plaintextFileSize;
+        }
+
+        /**
+         * Gets the number of rows inserted per second.
+         */
+        public double getWriteRowsPerSecond() {
+            return rows * 1000.0 / Math.max(writeMillis, 1);
+        }
+
+        /**
+         * Gets the number of rows read per second.
+         */
+        public double getReadRowsPerSecond() {
+            return rows * 1000.0 / Math.max(readMillis, 1);
+        }
+
+        /**
+         * Gets how much larger the database is than without encryption, as a
+         * fraction of the unencrypted size.
+         */
+        public double getFileOverhead() {
+            return plaintextFileSize > 0
+                    ? (double) (fileSize - plaintextFileSize) / plaintextFileSize : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%s: open %d ms, write %.0f rows/s, read %.0f rows/s, "
+                            + "file %d bytes (%+.1f%%)",
+                    settings, openMillis, getWriteRowsPerSecond(), getReadRowsPerSecond(),
+                    fileSize, getFileOverhead() * 100);
+        }
+    }
+
+    private SQLiteCipherProfiler() {
+    }
+
+    /**
+     * Runs the workload against each candidate.
+     *
+     * @param directory The directory in which to create the temporary databases.
+     * @param candidates The settings to measure.
+     * @param rows The number of rows in the workload.
+     * @return The measurements, in the order of the candidates.
+     */
+    public static ArrayList<Result> profile(File directory, List<SQLiteCipherSettings> candidates,
+            int rows) {
+        if (directory == null) {
+            throw new IllegalArgumentException("directory must not be null.");
+        }
+        if (candidates == null) {
+            throw new IllegalArgumentException("candidates must not be null.");
+        }
+        if (rows < 1) {
+            throw new IllegalArgumentException("rows must be >= 1.");
+        }
+
+        final File file = new File(directory, TABLE + ".db");
+        final long plaintextFileSize = runWorkload(file, new byte[0],
+                new SQLiteCipherSettings(), rows, null);
+
+        final ArrayList<Result> results = new ArrayList<Result>(candidates.size());
+        for (SQLiteCipherSettings candidate : candidates) {
+            final SQLiteCipherSettings settings = new SQLiteCipherSettings(candidate);
+            final long[] millis = new long[3];
+            final long fileSize = runWorkload(file, PASSWORD, settings, rows, millis);
+            results.add(new Result(settings, rows, millis[0], millis[1], millis[2],
+                    fileSize, plaintextFileSize));
+        }
+        return results;
+    }
+
+    /**
+     * Gets the result whose settings wrote and read the rows fastest.
+     * <p>
+     * The time to open the database is left out.  It is mostly spent deriving the
+     * key, which is slow on purpose: the more <code>kdf_iter</code> iterations,
+     * the longer a guessed password takes to check.  Ranking by it would favour the
+     * candidate that is easiest to attack, so weigh {@link Result#openMillis}
+     * against that separately.  Likewise, a candidate that disables the HMAC may
+     * rank first by giving up the detection of tampered pages.
+     * </p>
+     *
+     * @param results The measurements returned by {@link #profile}.
+     * @return The fastest result, or null if there are none.
+     */
+    public static Result getFastest(List<Result> results) {
+        Result fastest = null;
+        for (Result result : results) {
+            if (fastest == null || totalMillis(result) < totalMillis(fastest)) {
+                fastest = result;
+            }
+        }
+        return fastest;
+    }
+
+    private static long totalMillis(Result result) {
+        return result.writeMillis + result.readMillis;
+    }
+
+    // Stores the open, write and read times in millis if not null, and returns the
+    // size of the database.
+    private static long runWorkload(File file, byte[] password, SQLiteCipherSettings settings,
+            int rows, long[] millis) {
+        SQLiteDatabase.deleteDatabase(file);
+        try {
+            final Random random = new Random(rows);
+            final byte[] blob = new byte[128];
+
+            SQLiteDatabase db = openDatabase(file, password, settings);
+            long start;
+            try {
+                // Derives the key before the writes are timed.
+                DatabaseUtils.longForQuery(db, "SELECT count(*) FROM sqlite_master;", null);
+                start = System.nanoTime();
+                db.execSQL("CREATE TABLE " + TABLE + "(id INTEGER PRIMARY KEY, a TEXT, b BLOB);");
+                db.execSQL("CREATE INDEX " + TABLE + "_a ON " + TABLE + "(a);");
+                final SQLiteStatement insert = db.compileStatement(
+                        "INSERT INTO " + TABLE + "(a, b) VALUES (?, ?);");
+                db.beginTransaction();
+                try {
+                    for (int i = 0; i < rows; i++) {
+                        random.nextBytes(blob);
+                        insert.bindString(1, "value " + random.nextInt());
+                        insert.bindBlob(2, blob);
+                        insert.executeInsert();
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                    insert.close();
+                }
+            } finally {
+                db.close();
+            }
+            final long writeNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            db = openDatabase(file, password, settings);
+            try {
+                DatabaseUtils.longForQuery(db, "SELECT count(*) FROM sqlite_master;", null);
+                final long openNanos = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                final Cursor cursor = db.rawQuery("SELECT a, b FROM " + TABLE + ";", null);
+                final ArrayList<String> keys = new ArrayList<String>();
+                try {
+                    while (cursor.moveToNext()) {
+                        cursor.getBlob(1);
+                        if (random.nextInt(10) == 0) {
+                            keys.add(cursor.getString(0));
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+                for (String key : keys) {
+                    DatabaseUtils.longForQuery(db, "SELECT id FROM " + TABLE + " WHERE a = ?;",
+                            new String[] { key });
+                }
+                final long readNanos = System.nanoTime() - start;
+
+                if (millis != null) {
+                    millis[0] = openNanos / 1000000;
+                    millis[1] = writeNanos / 1000000;
+                    millis[2] = readNanos / 1000000;
+                }
+            } finally {
+                db.close();
+            }
+            return file.length();
+        } finally {
+            SQLiteDatabase.deleteDatabase(file);
+        }
+    }
+
+    private static SQLiteDatabase openDatabase(File file, byte[] password,
+            SQLiteCipherSettings settings) {
+        return SQLiteDatabase.openDatabase(file.getPath(), password, null,
+                SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.CREATE_IF_NECESSARY,
+                null, password.length > 0 ? settings.getHook() : null);
+    }
+}
@@ -0,0 +1,142 @@
+package net.zetetic.database.sqlcipher;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Describes the cipher settings of a database and the size of its page cache.
+ * <p>
+ * The settings are applied to every connection by the hook returned by
+ * {@link #getHook}, or to a copy made by {@link SQLiteDatabase#backupTo} through
+ * {@link SQLiteBackupOptions#destinationPragmas}.  Settings that are left unset
+ * keep the SQLCipher defaults.  A database must always be opened with the
+ * settings it was created with.
+ * </p><p>
+ * {@link SQLiteCipherProfiler} measures how candidate settings perform.
+ * </p>
+ */
+public final class SQLiteCipherSettings {
+    /**
+     * The size in bytes of the pages of the database, set with
+     * <code>PRAGMA cipher_page_size</code>, or 0 to use the default.
+     *
+     * Default is 0.
+     */
+    public int pageSize;
+
+    /**
+     * The number of iterations used to derive the key from the password, set with
+     * <code>PRAGMA kdf_iter</code>, or 0 to use the default.
+     *
+     * Default is 0.
+     */
+    public int kdfIter;
+
+    /**
+     * The algorithm that authenticates each page, set with
+     * <code>PRAGMA cipher_hmac_algorithm</code>, such as <code>HMAC_SHA256</code>,
+     * or null to use the default.
+     *
+     * Default is null.
+     */
+    public String hmacAlgorithm;
+
+    /**
+     * The algorithm that derives the key from the password, set with
+     * <code>PRAGMA cipher_kdf_algorithm</code>, such as <code>PBKDF2_HMAC_SHA256</code>,
+     * or null to use the default.
+     *
+     * Default is null.
+     */
+    public String kdfAlgorithm;
+
+    /**
+     * The size in KiB of the page cache of each connection, set with
+     * <code>PRAGMA cache_size</code>, or 0 to use the default.
+     *
+     * Default is 0.
+     */
+    public int cacheSizeKiB;
+
+    /**
+     * Creates cipher settings that keep every default.
+     */
+    public SQLiteCipherSettings() {
+    }
+
+    /**
+     * Creates a copy of cipher settings.
+     *
+     * @param other The settings to copy.
+     */
+    public SQLiteCipherSettings(SQLiteCipherSettings other) {
+        if (other == null) {
+            throw new IllegalArgumentException("other must not be null.");
+        }
+        pageSize = other.pageSize;
+        kdfIter = other.kdfIter;
+        hmacAlgorithm = other.hmacAlgorithm;
+        kdfAlgorithm = other.kdfAlgorithm;
+        cacheSizeKiB = other.cacheSizeKiB;
+    }
+
+    /**
+     * Gets the PRAGMA statements that apply these settings to a connection once it
+     * has been keyed.
+     *
+     * @return The statements, in the order they must run.
+     */
+    public ArrayList<String> getPragmas() {
+        final ArrayList<String> pragmas = new ArrayList<String>();
+        if (pageSize != 0) {
+            pragmas.add("PRAGMA cipher_page_size = " + pageSize + ";");
+        }
+        if (kdfIter != 0) {
+            pragmas.add("PRAGMA kdf_iter = " + kdfIter + ";");
+        }
+        if (hmacAlgorithm != null) {
+            pragmas.add("PRAGMA cipher_hmac_algorithm = " + hmacAlgorithm + ";");
+        }
+        if (kdfAlgorithm != null) {
+            pragmas.add("PRAGMA cipher_kdf_algorithm = " + kdfAlgorithm + ";");
+        }
+        if (cacheSizeKiB != 0) {
+            pragmas.add("PRAGMA cache_size = -" + cacheSizeKiB + ";");
+        }
+        return pragmas;
+    }
+
+    /**
+     * Gets a hook that applies these settings to every connection of a database.
+     * Later changes to these settings do not affect the hook.
+     *
+     * @return The hook.
+     */
+    public SQLiteDatabaseHook getHook() {
+        final ArrayList<String> pragmas = getPragmas();
+        return new SQLiteDatabaseHook() {
+            @Override
+            public void preKey(SQLiteConnection connection) {
+            }
+
+            @Override
+            public void postKey(SQLiteConnection connection) {
+                for (String pragma : pragmas) {
+                    connection.execute(pragma, null, null);
+                }
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "cipher_page_size=%s kdf_iter=%s cipher_hmac_algorithm=%s "
+                        + "cipher_kdf_algorithm=%s cache_size=%s",
+                pageSize != 0 ? Integer.toString(pageSize) : "default",
+                kdfIter != 0 ? Integer.toString(kdfIter) : "default",
+                hmacAlgorithm != null ? hmacAlgorithm : "default",
+                kdfAlgorithm != null ? kdfAlgorithm : "default",
+                cacheSizeKiB != 0 ? "-" + cacheSizeKiB : "default");
+    }
+}
@@ -96,6 +96,34 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
     private static final String[] EMPTY_STRING_ARRAY = new String[0];
     private static final byte[] EMPTY_BYTE_ARRAY = new byte[0];
 
+    // Indices into the array filled by takeLockWaitStats().
+    // Must be kept in sync with the constants defined in android_database_SQLiteConnection.cpp.
+    static final int LOCK_WAIT_STAT_BUSY_RETRIES = 0;
+    static final int LOCK_WAIT_STAT_BUSY_WAIT_MICROS = 1;
+    static final int LOCK_WAIT_STAT_BUSY_TIMEOUTS = 2;
+    static final int LOCK_WAIT_STAT_UNLOCK_NOTIFY_WAITS = 3;
+    static final int LOCK_WAIT_STAT_UNLOCK_NOTIFY_MICROS = 4;
+    static final int LOCK_WAIT_STAT_COUNT = 5;
+
+    // Flags in the upper half of the result of nativeFillWindowFromStatement().
+    // Must be kept in sync with the constants defined in android_database_SQLiteConnection.cpp.
+    private static final long FILL_WINDOW_DONE = 1L << 32;
+    private static final long FILL_WINDOW_ROW_PENDING = 1L << 33;
+
+    // Counters read by getStatsUnsafe(), as defined by sqlite3_db_status().
+    private static final int DBSTATUS_CACHE_USED = 1;
+    private static final int DBSTATUS_CACHE_HIT = 7;
+    private static final int DBSTATUS_CACHE_MISS = 8;
+    private static final int DBSTATUS_CACHE_WRITE = 9;
+    private static final int DBSTATUS_CACHE_SPILL = 12;
+
+    // Checkpoint modes passed to walCheckpoint(), as defined by sqlite3_wal_checkpoint_v2().
+    static final int CHECKPOINT_MODE_PASSIVE = 0;
+    static final int CHECKPOINT_MODE_TRUNCATE = 3;
+
+    // The size of the header that precedes each page in the write-ahead log.
+    private static final int WAL_FRAME_HEADER_SIZE = 24;
+
     private final CloseGuard mCloseGuard = CloseGuard.get();
 
     private final SQLiteConnectionPool mPool;
@@ -114,6 +142,21 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
 
     private boolean mOnlyAllowReadOnlyOperations;
 
+    // The size in bytes of one frame of the write-ahead log, once its frames are counted.
+    private long mWalFrameSize;
+
+    // The page cache size to restore when the bulk load in progress ends.
+    private boolean mBulkLoadActive;
+    private long mCacheSizeBeforeBulkLoad;
+
+    // The native change sessions recording the changes made by this connection,
+    // which must be deleted before the connection is closed.
+    private final ArrayList<Long> mChangeSessionPtrs = new ArrayList<Long>();
+
+    // The native backups copying this connection's database, which must be
+    // finished before the connection is closed.
+    private final ArrayList<Long> mBackupPtrs = new ArrayList<Long>();
+
     // The number of times attachCancellationSignal has been called.
     // Because SQLite statement execution can be reentrant, we keep track of how many
     // times we have attempted to attach a cancellation signal to the connection so that
@@ -159,9 +202,35 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
     private static native long nativeExecuteForCursorWindow(
       long connectionPtr, long statementPtr, long winPtr,
       int startPos, int requiredPos, boolean countAllRows);
+    private static native long nativeFillWindowFromStatement(
+      long connectionPtr, long statementPtr, long winPtr, int maxRows, boolean rowPending);
     private static native int nativeGetDbLookaside(long connectionPtr);
+    private static native int nativeGetDbStatus(long connectionPtr, int op);
     private static native void nativeCancel(long connectionPtr);
     private static native void nativeResetCancel(long connectionPtr, boolean cancelable);
+    private static native void nativeSetBusyTimeout(long connectionPtr, int timeoutMillis);
+    private static native void nativeTakeLockWaitStats(long connectionPtr, long[] stats);
+    private static native long nativeSnapshotGet(long connectionPtr);
+    private static native void nativeSnapshotOpen(long connectionPtr, long snapshotPtr);
+    private static native void nativeSnapshotFree(long snapshotPtr);
+    private static native void nativeSetWalHook(long connectionPtr);
+    private static native int nativeGetWalPendingFrames(long connectionPtr);
+    private static native boolean nativeWalCheckpoint(long connectionPtr, int mode);
+    private static native long nativeSessionCreate(long connectionPtr, String[] tables);
+    private static native void nativeSessionDelete(long connectionPtr, long sessionPtr);
+    private static native byte[] nativeSessionChanges(long connectionPtr, long sessionPtr,
+            boolean patchset);
+    private static native void nativeApplyChangeset(long connectionPtr, byte[] changeset,
+            SQLiteChangesetConflictHandler handler);
+    private static native void nativeSetTableChangeTracking(long connectionPtr,
+            boolean enabled);
+    private static native String[] nativeTakeChangedTables(long connectionPtr);
+    private static native long nativeBackupOpen(long connectionPtr, String destPath,
+            byte[] destKey, String[] destPragmas);
+    private static native boolean nativeBackupStep(long backupPtr, int pages);
+    private static native int nativeBackupRemaining(long backupPtr);
+    private static native int nativeBackupPageCount(long backupPtr);
+    private static native void nativeBackupFinish(long backupPtr);
 
     private static native boolean nativeHasCodec();
     public static boolean hasCodec(){ return nativeHasCodec(); }
@@ -226,6 +295,7 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         mConnectionPtr = nativeOpen(mConfiguration.path, mConfiguration.openFlags,
                 mConfiguration.label,
                 SQLiteDebug.DEBUG_SQL_STATEMENTS, SQLiteDebug.DEBUG_SQL_TIME);
+        setBusyTimeoutFromConfiguration();
         if(mConfiguration.databaseHook != null){
             mConfiguration.databaseHook.preKey(this);
         }
@@ -236,7 +306,7 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         if(mConfiguration.databaseHook != null){
             mConfiguration.databaseHook.postKey(this);
         }
-        if(mConfiguration.password != null && mConfiguration.password.length > 0) {
+        if(mConfiguration.hasKey()) {
             executeForLong("SELECT COUNT(*) FROM sqlite_schema;", null, null);
         }
         setPageSize();
@@ -244,6 +314,9 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         setJournalSizeLimit();
         setAutoCheckpointInterval();
         setWalModeFromConfiguration();
+        setBulkLoadFromConfiguration();
+        setTableChangeTrackingFromConfiguration();
+        setSorterThreadsFromConfiguration();
         if( !nativeHasCodec() ){
             setLocaleFromConfiguration();
         }
@@ -267,6 +340,18 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
             final int cookie = mRecentOperations.beginOperation("close", null, null);
             try {
                 mPreparedStatementCache.evictAll();
+                for (int i = 0; i < mChangeSessionPtrs.size(); i++) {
+                    nativeSessionDelete(mConnectionPtr, mChangeSessionPtrs.get(i));
+                }
+                mChangeSessionPtrs.clear();
+                for (int i = 0; i < mBackupPtrs.size(); i++) {
+                    try {
+                        nativeBackupFinish(mBackupPtrs.get(i));
+                    } catch (RuntimeException ex) {
+                        Log.e(TAG, "Failed to finish backup of " + this, ex);
+                    }
+                }
+                mBackupPtrs.clear();
                 nativeClose(mConnectionPtr);
                 mConnectionPtr = 0;
             } finally {
@@ -275,6 +360,10 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         }
     }
 
+    private void setBusyTimeoutFromConfiguration() {
+        nativeSetBusyTimeout(mConnectionPtr, mConfiguration.busyTimeoutMillis);
+    }
+
     private void setPageSize() {
         if (!mConfiguration.isInMemoryDb() && !mIsReadOnlyConnection && !SQLiteDatabase.hasCodec()) {
             final long newValue = SQLiteGlobal.getDefaultPageSize();
@@ -287,11 +376,20 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
 
     private void setAutoCheckpointInterval() {
         if (!mConfiguration.isInMemoryDb() && !mIsReadOnlyConnection) {
-            final long newValue = SQLiteGlobal.getWALAutoCheckpoint();
+            // The background checkpoints of the pool replace automatic checkpoints,
+            // and a bulk load checkpoints once when it ends.
+            final long newValue = mConfiguration.isBackgroundCheckpointEnabled()
+                    || mConfiguration.bulkLoad ? 0 : SQLiteGlobal.getWALAutoCheckpoint();
             long value = executeForLong("PRAGMA wal_autocheckpoint", null, null);
             if (value != newValue) {
                 executeForLong("PRAGMA wal_autocheckpoint=" + newValue, null, null);
             }
+            if (newValue == 0) {
+                // Count the log frames that the background checkpoints have to copy.
+                mWalFrameSize = executeForLong("PRAGMA page_size", null, null)
+                        + WAL_FRAME_HEADER_SIZE;
+                nativeSetWalHook(mConnectionPtr);
+            }
         }
     }
 
@@ -317,16 +415,48 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
 
     private void setWalModeFromConfiguration() {
         if (!mConfiguration.isInMemoryDb() && !mIsReadOnlyConnection) {
+            final boolean syncOff = mConfiguration.bulkLoad
+                    && mConfiguration.bulkLoadSynchronousOff;
             if ((mConfiguration.openFlags & SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING) != 0) {
                 setJournalMode("WAL");
-                setSyncMode(SQLiteGlobal.getWALSyncMode());
+                setSyncMode(syncOff ? "OFF" : SQLiteGlobal.getWALSyncMode());
             } else {
                 setJournalMode(SQLiteGlobal.getDefaultJournalMode());
-                setSyncMode(SQLiteGlobal.getDefaultSyncMode());
+                setSyncMode(syncOff ? "OFF" : SQLiteGlobal.getDefaultSyncMode());
             }
         }
     }
 
+    private void setBulkLoadFromConfiguration() {
+        // Only the primary connection writes, so the readers keep their usual cache.
+        if (!mIsPrimaryConnection || mIsReadOnlyConnection) {
+            return;
+        }
+        if (mConfiguration.bulkLoad) {
+            if (!mBulkLoadActive) {
+                mCacheSizeBeforeBulkLoad = executeForLong("PRAGMA cache_size", null, null);
+                mBulkLoadActive = true;
+            }
+            // A negative cache size is in KiB rather than pages.
+            execute("PRAGMA cache_size=" + -mConfiguration.bulkLoadCacheSizeKiB, null, null);
+        } else if (mBulkLoadActive) {
+            execute("PRAGMA cache_size=" + mCacheSizeBeforeBulkLoad, null, null);
+            mBulkLoadActive = false;
+        }
+    }
+
+    private void setSorterThreadsFromConfiguration() {
+        final long newValue = mConfiguration.sorterThreads;
+        long value = executeForLong("PRAGMA threads", null, null);
+        if (value != newValue) {
+            executeForLong("PRAGMA threads=" + newValue, null, null);
+        }
+    }
+
+    private void setTableChangeTrackingFromConfiguration() {
+        nativeSetTableChangeTracking(mConnectionPtr, mConfiguration.trackTableChanges);
+    }
+
     private void setSyncMode(String newValue) {
         String value = executeForString("PRAGMA synchronous", null, null);
         if (!canonicalizeSyncMode(value).equalsIgnoreCase(
@@ -450,6 +580,17 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         boolean walModeChanged = ((configuration.openFlags ^ mConfiguration.openFlags)
                 & SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING) != 0;
         boolean localeChanged = !configuration.locale.equals(mConfiguration.locale);
+        boolean busyTimeoutChanged = configuration.busyTimeoutMillis
+                != mConfiguration.busyTimeoutMillis;
+        boolean backgroundCheckpointChanged = configuration.isBackgroundCheckpointEnabled()
+                != mConfiguration.isBackgroundCheckpointEnabled();
+        boolean bulkLoadChanged = configuration.bulkLoad != mConfiguration.bulkLoad
+                || configuration.bulkLoadCacheSizeKiB != mConfiguration.bulkLoadCacheSizeKiB
+                || configuration.bulkLoadSynchronousOff != mConfiguration.bulkLoadSynchronousOff;
+        boolean trackTableChangesChanged = configuration.trackTableChanges
+                != mConfiguration.trackTableChanges;
+        boolean sorterThreadsChanged = configuration.sorterThreads
+                != mConfiguration.sorterThreads;
 
         // Update configuration parameters.
         mConfiguration.updateParametersFrom(configuration);
@@ -458,22 +599,267 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         // sqlite.org: android.util.LruCache.resize() requires API level 21.
         // mPreparedStatementCache.resize(configuration.maxSqlCacheSize);
 
+        // Update busy timeout.
+        if (busyTimeoutChanged) {
+            setBusyTimeoutFromConfiguration();
+        }
+
+        // Update automatic checkpoints.
+        if (backgroundCheckpointChanged || bulkLoadChanged) {
+            setAutoCheckpointInterval();
+        }
+
         // Update foreign key mode.
         if (foreignKeyModeChanged) {
             setForeignKeyModeFromConfiguration();
         }
 
         // Update WAL.
-        if (walModeChanged) {
+        if (walModeChanged || bulkLoadChanged) {
             setWalModeFromConfiguration();
         }
 
+        // Update bulk load settings.
+        if (bulkLoadChanged) {
+            setBulkLoadFromConfiguration();
+        }
+
+        // Update table change tracking.
+        if (trackTableChangesChanged) {
+            setTableChangeTrackingFromConfiguration();
+        }
+
+        // Update sorter worker threads.
+        if (sorterThreadsChanged) {
+            setSorterThreadsFromConfiguration();
+        }
+
         // Update locale.
         if (localeChanged) {
             setLocaleFromConfiguration();
         }
     }
 
+    // Called by SQLiteConnectionPool only.
+    // Adds the native busy handler and unlock-notify counters accumulated since the
+    // previous call into the given array, indexed by LOCK_WAIT_STAT_*, and resets them.
+    void takeLockWaitStats(long[] stats) {
+        if (mConnectionPtr != 0) {
+            nativeTakeLockWaitStats(mConnectionPtr, stats);
+        }
+    }
+
+    // Called by SQLiteSnapshot only.
+    // Records the state of the database seen by the read transaction open on this
+    // connection.  The returned snapshot must be freed with freeSnapshot().
+    long getSnapshot() {
+        final int cookie = mRecentOperations.beginOperation("getSnapshot", null, null);
+        try {
+            return nativeSnapshotGet(mConnectionPtr);
+        } catch (RuntimeException ex) {
+            mRecentOperations.failOperation(cookie, ex);
+            throw ex;
+        } finally {
+            mRecentOperations.endOperation(cookie);
+        }
+    }
+
+    // Called by SQLiteSnapshot only.
+    // Starts the read transaction of the transaction just begun on this connection
+    // at the given snapshot instead of at the latest state of the database.
+    void openSnapshot(long snapshotPtr) {
+        final int cookie = mRecentOperations.beginOperation("openSnapshot", null, null);
+        try {
+            nativeSnapshotOpen(mConnectionPtr, snapshotPtr);
+        } catch (RuntimeException ex) {
+            mRecentOperations.failOperation(cookie, ex);
+            throw ex;
+        } finally {
+            mRecentOperations.endOperation(cookie);
+        }
+    }
+
+    // Called by SQLiteSnapshot only.
+    static void freeSnapshot(long snapshotPtr) {
+        nativeSnapshotFree(snapshotPtr);
+    }
+
+    // Called by SQLiteConnectionPool only.
+    // Returns the number of bytes written to the write-ahead log by this connection
+    // that have not been copied back into the database yet.  Only tracked while
+    // automatic checkpoints are disabled.  Must not be called while another thread
+    // owns the connection.
+    long getWalPendingBytes() {
+        return nativeGetWalPendingFrames(mConnectionPtr) * mWalFrameSize;
+    }
+
+    // Called by SQLiteConnectionPool only.
+    // Copies the write-ahead log back into the database using one of the
+    // CHECKPOINT_MODE_* modes.  Returns false if the checkpoint stopped short of the
+    // end of the log because other connections were reading or writing.
+    boolean walCheckpoint(int mode) {
+        final int cookie = mRecentOperations.beginOperation("walCheckpoint", null, null);
+        try {
+            return nativeWalCheckpoint(mConnectionPtr, mode);
+        } catch (RuntimeException ex) {
+            mRecentOperations.failOperation(cookie, ex);
+            throw ex;
+        } finally {
+            mRecentOperations.endOperation(cookie);
+        }
+    }
+
+    // Called by SQLiteChangeSession only.
+    // Starts recording the changes made by this connection to the given tables, or
+    // to all tables if null.  The native session lives until deleteChangeSession()
+    // is called or the connection is closed.
+    long createChangeSession(String[] tables) {
+        final int cookie = mRecentOperations.beginOperation("createChangeSession", null, null);
+        try {
+            final long sessionPtr = nativeSessionCreate(mConnectionPtr, tables);
+            mChangeSessionPtrs.add(sessionPtr);
+            return sessionPtr;
+        } catch (RuntimeException ex) {
+            mRecentOperations.failOperation(cookie, ex);
+            throw ex;
+        } finally {
+            mRecentOperations.endOperation(cookie);
+        }
+    }
+
+    // Called by SQLiteChangeSession only.
+    boolean hasChangeSession(long sessionPtr) {
+        return mChangeSessionPtrs.contains(sessionPtr);
+    }
+
+    // Called by SQLiteChangeSession only.
+    byte[] getChangeSessionChanges(long sessionPtr, boolean patchset) {
+        final int cookie = mRecentOperations.beginOperation(
+                patchset ? "getPatchset" : "getChangeset", null, null);
+        try {
+            return nativeSessionChanges(mConnectionPtr, sessionPtr, patchset);
+        } catch (RuntimeException ex) {
+            mRecentOperations.failOperation(cookie, ex);
+            throw ex;
+        } finally {
+            mRecentOperations.endOperation(cookie);
+        }
+    }
+
+    // Called by SQLiteChangeSession only.
+    void deleteChangeSession(long sessionPtr) {
+        if (mChangeSessionPtrs.remove(Long.valueOf(sessionPtr))) {
+            nativeSessionDelete(mConnectionPtr, sessionPtr);
+        }
+    }
+
+    /**
+     * Applies a changeset or patchset to the database.
+     *
+     * @param changeset The changeset or patchset.
+     * @param handler The handler that decides what to do about conflicting changes,
+     * or null to abort on the first conflict.
+     * @param cancellationSignal A signal to cancel the operation in progress, or null if none.
+     *
+     * @throws SQLiteException if an error occurs, such as when a conflict aborts
+     * the changeset.
+     * @throws OperationCanceledException if the operation was canceled.
+     */
+    public void applyChangeset(byte[] changeset, SQLiteChangesetConflictHandler handler,
+            CancellationSignal cancellationSignal) {
+        if (changeset == null) {
+            throw new IllegalArgumentException("changeset must not be null.");
+        }
+        if (mOnlyAllowReadOnlyOperations) {
+            throw new SQLiteException("Cannot apply a changeset because the "
+                    + "connection is read-only.");
+        }
+
+        final int cookie = mRecentOperations.beginOperation("applyChangeset", null, null);
+        try {
+            attachCancellationSignal(cancellationSignal);
+            try {
+                nativeApplyChangeset(mConnectionPtr, changeset, handler);
+            } finally {
+                detachCancellationSignal(cancellationSignal);
+            }
+        } catch (RuntimeException ex) {
+            mRecentOperations.failOperation(cookie, ex);
+            throw ex;
+        } finally {
+            mRecentOperations.endOperation(cookie);
+        }
+    }
+
+    // Called by SQLiteBackup only.
+    // Begins copying the main database into the given file, which is opened, keyed
+    // with the given key and configured with the given PRAGMA statements first.  If
+    // there is a key, the first page of the copy is written before the copy starts.
+    long openBackup(String destPath, byte[] destKey, String[] destPragmas) {
+        final int cookie = mRecentOperations.beginOperation("openBackup", null, null);
+        try {
+            final long backupPtr = nativeBackupOpen(mConnectionPtr, destPath, destKey,
+                    destPragmas);
+            mBackupPtrs.add(backupPtr);
+            return backupPtr;
+        } catch (RuntimeException ex) {
+            mRecentOperations.failOperation(cookie, ex);
+            throw ex;
+        } finally {
+            mRecentOperations.endOperation(cookie);
+        }
+    }
+
+    // Called by SQLiteBackup only.
+    boolean hasBackup(long backupPtr) {
+        return mBackupPtrs.contains(backupPtr);
+    }
+
+    // Called by SQLiteBackup only.
+    // Copies up to the given number of pages, or all remaining pages if negative.
+    // Returns true once the whole database has been copied.
+    boolean stepBackup(long backupPtr, int pages) {
+        final int cookie = mRecentOperations.beginOperation("stepBackup", null, null);
+        try {
+            return nativeBackupStep(backupPtr, pages);
+        } catch (RuntimeException ex) {
+            mRecentOperations.failOperation(cookie, ex);
+            throw ex;
+        } finally {
+            mRecentOperations.endOperation(cookie);
+        }
+    }
+
+    // Called by SQLiteBackup only.
+    // Returns the number of pages copied so far, as of the last step.
+    int getBackupCopiedPages(long backupPtr) {
+        return nativeBackupPageCount(backupPtr) - nativeBackupRemaining(backupPtr);
+    }
+
+    // Called by SQLiteBackup only.
+    int getBackupPageCount(long backupPtr) {
+        return nativeBackupPageCount(backupPtr);
+    }
+
+    // Called by SQLiteBackup only.
+    // Stops the backup and closes the destination, which is complete if the last
+    // step returned true.
+    void finishBackup(long backupPtr) {
+        if (mBackupPtrs.remove(Long.valueOf(backupPtr))) {
+            nativeBackupFinish(backupPtr); // might throw
+        }
+    }
+
+    // Called by SQLiteConnectionPool only.
+    // Returns the names of the tables changed by the transactions committed on this
+    // connection since the previous call, or null if there are none.
+    String[] takeChangedTables() {
+        if (!mConfiguration.trackTableChanges || mConnectionPtr == 0) {
+            return null;
+        }
+        return nativeTakeChangedTables(mConnectionPtr);
+    }
+
     // Called by SQLiteConnectionPool only.
     // When set to true, executing write operations will throw SQLiteException.
     // Preparing statements that might write is ok, just don't execute them.
@@ -957,6 +1343,142 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         }
     }
 
+    /**
+     * Prepares a query whose results are read incrementally with
+     * {@link RowStream#fillWindow}.  The statement stays positioned between
+     * calls, so each row is only stepped once no matter how many windows are filled.
+     * <p>
+     * The row stream must be closed before the connection is released.
+     * </p>
+     *
+     * @param sql The SQL statement to execute.
+     * @param bindArgs The arguments to bind, or null if none.
+     * @return The row stream.
+     *
+     * @throws SQLiteException if an error occurs, such as a syntax error
+     * or invalid number of bind arguments.
+     */
+    RowStream openRowStream(String sql, Object[] bindArgs) {
+        if (sql == null) {
+            throw new IllegalArgumentException("sql must not be null.");
+        }
+
+        final int cookie = mRecentOperations.beginOperation("openRowStream", sql, bindArgs);
+        try {
+            final PreparedStatement statement = acquirePreparedStatement(sql);
+            try {
+                throwIfStatementForbidden(statement);
+                bindArguments(statement, bindArgs);
+                applyBlockGuardPolicy(statement);
+                return new RowStream(statement);
+            } catch (RuntimeException ex) {
+                releasePreparedStatement(statement);
+                throw ex;
+            }
+        } catch (RuntimeException ex) {
+            mRecentOperations.failOperation(cookie, ex);
+            throw ex;
+        } finally {
+            mRecentOperations.endOperation(cookie);
+        }
+    }
+
+    /**
+     * A query being read incrementally, one window at a time.
+     * Obtained from {@link SQLiteConnection#openRowStream}.
+     * <p>
+     * This class is not thread-safe.
+     * </p>
+     */
+    final class RowStream {
+        private final String[] mColumnNames;
+        private PreparedStatement mStatement;
+        private boolean mRowPending;
+        private boolean mDone;
+
+        private RowStream(PreparedStatement statement) {
+            mStatement = statement;
+            final int columnCount = nativeGetColumnCount(mConnectionPtr, statement.mStatementPtr);
+            mColumnNames = new String[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                mColumnNames[i] = nativeGetColumnName(mConnectionPtr,
+                        statement.mStatementPtr, i);
+            }
+        }
+
+        /**
+         * Gets the names of the columns in the result set.
+         */
+        String[] getColumnNames() {
+            return mColumnNames;
+        }
+
+        /**
+         * Clears the window and fills it with the next rows of the result set.
+         *
+         * @param window The cursor window to clear and fill.
+         * @param maxRows The most rows to put in the window, or 0 to fill it.
+         * @param cancellationSignal A signal to cancel the operation in progress, or null if none.
+         * @return The number of rows put in the window, 0 once all rows have been read.
+         *
+         * @throws SQLiteException if an error occurs.
+         * @throws OperationCanceledException if the operation was canceled.
+         */
+        int fillWindow(CursorWindow window, int maxRows, CancellationSignal cancellationSignal) {
+            if (mStatement == null) {
+                throw new IllegalStateException("The row stream has been closed.");
+            }
+            if (mDone) {
+                window.clear();
+                return 0;
+            }
+
+            window.acquireReference();
+            try {
+                final int cookie = mRecentOperations.beginOperation("fillWindowFromRowStream",
+                        mStatement.mSql, null);
+                try {
+                    attachCancellationSignal(cancellationSignal);
+                    try {
+                        final long result = nativeFillWindowFromStatement(mConnectionPtr,
+                                mStatement.mStatementPtr, window.mWindowPtr, maxRows,
+                                mRowPending);
+                        mRowPending = (result & FILL_WINDOW_ROW_PENDING) != 0;
+                        mDone = (result & FILL_WINDOW_DONE) != 0;
+                        window.setStartPosition(0);
+                        return (int) result;
+                    } finally {
+                        detachCancellationSignal(cancellationSignal);
+                    }
+                } catch (RuntimeException ex) {
+                    mRecentOperations.failOperation(cookie, ex);
+                    throw ex;
+                } finally {
+                    mRecentOperations.endOperation(cookie);
+                }
+            } finally {
+                window.releaseReference();
+            }
+        }
+
+        /**
+         * Returns true once all rows of the result set have been put in a window.
+         */
+        boolean isDone() {
+            return mDone;
+        }
+
+        /**
+         * Resets the statement and returns it to the connection.
+         */
+        void close() {
+            if (mStatement != null) {
+                releasePreparedStatement(mStatement);
+                mStatement = null;
+            }
+        }
+    }
+
     private PreparedStatement acquirePreparedStatement(String sql) {
         PreparedStatement statement = mPreparedStatementCache.get(sql);
         boolean skipCache = false;
@@ -1237,6 +1759,25 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         dbStatsList.add(getMainDbStatsUnsafe(0, 0, 0));
     }
 
+    /**
+     * Gets the page cache counters of this connection.
+     * <p>
+     * Like {@link #collectDbStatsUnsafe}, this may be called while the connection is
+     * in use by another thread, so the counters may be slightly out of date.
+     * </p>
+     *
+     * @return The counters.
+     */
+    SQLiteConnectionStats getStatsUnsafe() {
+        final boolean encrypted = mConfiguration.hasKey();
+        return new SQLiteConnectionStats(mConnectionId, mIsPrimaryConnection, encrypted,
+                nativeGetDbStatus(mConnectionPtr, DBSTATUS_CACHE_HIT),
+                nativeGetDbStatus(mConnectionPtr, DBSTATUS_CACHE_MISS),
+                nativeGetDbStatus(mConnectionPtr, DBSTATUS_CACHE_WRITE),
+                nativeGetDbStatus(mConnectionPtr, DBSTATUS_CACHE_SPILL),
+                nativeGetDbStatus(mConnectionPtr, DBSTATUS_CACHE_USED));
+    }
+
     private DbStats getMainDbStatsUnsafe(int lookaside, long pageCount, long pageSize) {
         // The prepared statement cache is thread-safe so we can access its statistics
         // even if we do not own the database connection.
@@ -23,16 +23,26 @@ package net.zetetic.database.sqlcipher;
 import net.zetetic.database.sqlcipher.CloseGuard;
 
 import net.zetetic.database.sqlcipher.SQLiteDebug.DbStats;
+import android.database.sqlite.SQLiteException;
 import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
 import android.os.OperationCanceledException;
+import android.os.Process;
 import android.os.SystemClock;
 import android.util.Log;
 import android.util.Printer;
 
 import java.io.Closeable;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.WeakHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.LockSupport;
@@ -80,12 +90,20 @@ public final class SQLiteConnectionPool implements Closeable {
     // and logging a message about the connection pool being busy.
     private static final long CONNECTION_POOL_BUSY_MILLIS = 30 * 1000; // 30 seconds
 
+    // Background thread shared by all pools for closing idle connections and
+    // running background checkpoints.
+    private static HandlerThread sIdleConnectionThread;
+
     private final CloseGuard mCloseGuard = CloseGuard.get();
 
     private final Object mLock = new Object();
     private final AtomicBoolean mConnectionLeaked = new AtomicBoolean();
     private final SQLiteDatabaseConfiguration mConfiguration;
     private int mMaxConnectionPoolSize;
+    private int mMinNonPrimaryConnections;
+    private IdleConnectionHandler mIdleConnectionHandler;
+    private CheckpointHandler mCheckpointHandler;
+    private boolean mCheckpointRunning; // true while the checkpoint handler holds the primary
     private boolean mIsOpen;
     private int mNextConnectionId;
 
@@ -97,6 +115,11 @@ public final class SQLiteConnectionPool implements Closeable {
             new ArrayList<SQLiteConnection>();
     private SQLiteConnection mAvailablePrimaryConnection;
 
+    // Listeners notified of the tables changed by committed transactions.
+    // INVARIANT: Guarded by mLock.
+    private final ArrayList<SQLiteTableChangeListener> mTableChangeListeners =
+            new ArrayList<SQLiteTableChangeListener>();
+
     // Describes what should happen to an acquired connection when it is returned to the pool.
     enum AcquiredConnectionStatus {
         // The connection should be returned to the pool as usual.
@@ -117,6 +140,10 @@ public final class SQLiteConnectionPool implements Closeable {
     private final WeakHashMap<SQLiteConnection, AcquiredConnectionStatus> mAcquiredConnections =
             new WeakHashMap<SQLiteConnection, AcquiredConnectionStatus>();
 
+    // Activity counters and timings, guarded by mLock.
+    private final SQLiteConnectionPoolMetrics.Recorder mMetrics =
+            new SQLiteConnectionPoolMetrics.Recorder();
+
     /**
      * Connection flag: Read-only.
      * <p>
@@ -149,6 +176,18 @@ public final class SQLiteConnectionPool implements Closeable {
      */
     public static final int CONNECTION_FLAG_INTERACTIVE = 1 << 2;
 
+    /**
+     * Connection flag: Non-primary connection required.
+     * <p>
+     * This flag indicates that the connection will be held for a long time, such as
+     * by a snapshot or a row stream, and must not be the primary connection, which
+     * would block every writer meanwhile.  A non-primary connection is opened
+     * without waiting for the pool to grow if none is available.  Only valid when
+     * the pool may have non-primary connections.
+     * </p>
+     */
+    public static final int CONNECTION_FLAG_NON_PRIMARY_CONNECTION = 1 << 3;
+
     private SQLiteConnectionPool(SQLiteDatabaseConfiguration configuration) {
         mConfiguration = new SQLiteDatabaseConfiguration(configuration);
         setMaxConnectionPoolSizeLocked();
@@ -192,6 +231,11 @@ public final class SQLiteConnectionPool implements Closeable {
         // Mark the pool as being open for business.
         mIsOpen = true;
         mCloseGuard.open("close");
+
+        synchronized (mLock) {
+            updateIdleConnectionHandlerLocked();
+            updateCheckpointHandlerLocked();
+        }
     }
 
     /**
@@ -228,6 +272,14 @@ public final class SQLiteConnectionPool implements Closeable {
                 mIsOpen = false;
 
                 closeAvailableConnectionsAndLogExceptionsLocked();
+                if (mIdleConnectionHandler != null) {
+                    mIdleConnectionHandler.removeCallbacksAndMessages(null);
+                    mIdleConnectionHandler = null;
+                }
+                if (mCheckpointHandler != null) {
+                    mCheckpointHandler.removeCallbacksAndMessages(null);
+                    mCheckpointHandler = null;
+                }
 
                 final int pendingCount = mAcquiredConnections.size();
                 if (pendingCount != 0) {
@@ -333,10 +385,112 @@ public final class SQLiteConnectionPool implements Closeable {
                 reconfigureAllConnectionsLocked();
             }
 
+            updateIdleConnectionHandlerLocked();
+            updateCheckpointHandlerLocked();
             wakeConnectionWaitersLocked();
         }
     }
 
+    /**
+     * Replaces the database file with a copy made by a backup, and reopens the
+     * pool with the given configuration, which typically holds the key of the copy.
+     * <p>
+     * The backup is completed on the primary connection first, so the copy holds
+     * every committed transaction.  Then the write-ahead log is checkpointed and
+     * truncated, all connections are closed, which removes it, and the copy is
+     * renamed over the database file.  The rename is atomic, so if the process dies
+     * at any point the file holds either the old database or the copy.  The caller
+     * should check that the copy opens with the given configuration beforehand, with
+     * {@link #checkDatabaseFile}, since the pool is locked until it is reopened.
+     * </p><p>
+     * Nothing happens while connections are in use, for example by transactions in
+     * progress or open snapshots.
+     * </p>
+     *
+     * @param configuration The new configuration.
+     * @param backup The backup that copies the database into the replacement.
+     * @param replacement The file the backup copies into.
+     * @return True if the file was replaced, false if connections are in use.
+     *
+     * @throws SQLiteException if the backup cannot be completed or the write-ahead
+     * log cannot be removed, for example because another process has the database
+     * open, in which case the database is left as it was, or if the replaced
+     * database cannot be opened.
+     */
+    public boolean replaceDatabaseFile(SQLiteDatabaseConfiguration configuration,
+            SQLiteBackup backup, File replacement) {
+        if (configuration == null) {
+            throw new IllegalArgumentException("configuration must not be null.");
+        }
+
+        synchronized (mLock) {
+            throwIfClosedLocked();
+
+            if (!mAcquiredConnections.isEmpty()) {
+                return false;
+            }
+
+            // No other thread can acquire the primary connection while we hold the lock.
+            backup.finishOn(mAvailablePrimaryConnection); // might throw
+
+            // The write-ahead log holds pages encrypted with the old key, which would
+            // be replayed against the copy if it outlived the rename.
+            if (!mAvailablePrimaryConnection.walCheckpoint(
+                    SQLiteConnection.CHECKPOINT_MODE_TRUNCATE)) { // might throw
+                throw new SQLiteException("Could not checkpoint database '"
+                        + mConfiguration.label + "' before replacing it.");
+            }
+            closeAvailableConnectionsAndLogExceptionsLocked();
+            final boolean walRemoved = !new File(mConfiguration.path + "-wal").exists()
+                    && !new File(mConfiguration.path + "-shm").exists();
+            if (!walRemoved || !replacement.renameTo(new File(mConfiguration.path))) {
+                // Carry on with the database as it was.
+                mAvailablePrimaryConnection = openConnectionLocked(mConfiguration,
+                        true /*primaryConnection*/); // might throw
+                wakeConnectionWaitersLocked();
+                throw new SQLiteException("Could not replace database file '"
+                        + mConfiguration.label + (walRemoved ? "'."
+                                : "' because its write-ahead log is still in use."));
+            }
+
+            mConfiguration.updateParametersFrom(configuration);
+            mAvailablePrimaryConnection = openConnectionLocked(mConfiguration,
+                    true /*primaryConnection*/); // might throw
+            setMaxConnectionPoolSizeLocked();
+
+            updateIdleConnectionHandlerLocked();
+            updateCheckpointHandlerLocked();
+            wakeConnectionWaitersLocked();
+            return true;
+        }
+    }
+
+    /**
+     * Opens a database file with the given configuration and closes it again, to
+     * make sure that it can be opened, such as before it replaces the database file.
+     * <p>
+     * Unlike the other methods, this does not hold the pool lock while the file is
+     * opened, since deriving its key may take a while.
+     * </p>
+     *
+     * @param configuration The configuration of the file.
+     *
+     * @throws SQLiteException if the file cannot be opened.
+     */
+    public void checkDatabaseFile(SQLiteDatabaseConfiguration configuration) {
+        if (configuration == null) {
+            throw new IllegalArgumentException("configuration must not be null.");
+        }
+
+        final int connectionId;
+        synchronized (mLock) {
+            throwIfClosedLocked();
+            connectionId = mNextConnectionId++;
+        }
+        SQLiteConnection.open(this, configuration, connectionId,
+                false /*primaryConnection*/).close(); // might throw
+    }
+
     /**
      * Acquires a connection from the pool.
      * <p>
@@ -354,10 +508,34 @@ public final class SQLiteConnectionPool implements Closeable {
      * @throws IllegalStateException if the pool has been closed.
      * @throws SQLiteException if a database error occurs.
      * @throws OperationCanceledException if the operation was canceled.
+     * @throws SQLiteConnectionPoolBusyException if the configured acquisition timeout
+     * elapsed or too many threads are already waiting.
      */
     public SQLiteConnection acquireConnection(String sql, int connectionFlags,
             CancellationSignal cancellationSignal) {
-        return waitForConnection(sql, connectionFlags, cancellationSignal);
+        return waitForConnection(sql, connectionFlags, -1, cancellationSignal);
+    }
+
+    /**
+     * Acquires a connection from the pool, waiting at most the given time.
+     *
+     * @param sql If not null, try to find a connection that already has
+     * the specified SQL statement in its prepared statement cache.
+     * @param connectionFlags The connection request flags.
+     * @param timeoutMillis The longest time to wait in milliseconds, 0 to wait
+     * indefinitely, or -1 to use the timeout from the database configuration.
+     * @param cancellationSignal A signal to cancel the operation in progress, or null if none.
+     * @return The connection that was acquired, never null.
+     *
+     * @throws IllegalStateException if the pool has been closed.
+     * @throws SQLiteException if a database error occurs.
+     * @throws OperationCanceledException if the operation was canceled.
+     * @throws SQLiteConnectionPoolBusyException if the timeout elapsed or too many
+     * threads are already waiting.
+     */
+    public SQLiteConnection acquireConnection(String sql, int connectionFlags,
+            long timeoutMillis, CancellationSignal cancellationSignal) {
+        return waitForConnection(sql, connectionFlags, timeoutMillis, cancellationSignal);
     }
 
     /**
@@ -373,6 +551,8 @@ public final class SQLiteConnectionPool implements Closeable {
      * from this pool or if it has already been released.
      */
     public void releaseConnection(SQLiteConnection connection) {
+        final String[] changedTables;
+        final SQLiteTableChangeListener[] tableChangeListeners;
         synchronized (mLock) {
             AcquiredConnectionStatus status = mAcquiredConnections.remove(connection);
             if (status == null) {
@@ -381,6 +561,15 @@ public final class SQLiteConnectionPool implements Closeable {
                         + "from this pool or has already been released.");
             }
 
+            mMetrics.onConnectionReleased(connection.getConnectionId(), System.nanoTime());
+            mMetrics.collectLockWaitStats(connection);
+
+            changedTables = connection.takeChangedTables();
+            tableChangeListeners = changedTables != null && !mTableChangeListeners.isEmpty()
+                    ? mTableChangeListeners.toArray(
+                            new SQLiteTableChangeListener[mTableChangeListeners.size()])
+                    : null;
+
             if (!mIsOpen) {
                 closeConnectionAndLogExceptionsLocked(connection);
             } else if (connection.isPrimaryConnection()) {
@@ -388,16 +577,68 @@ public final class SQLiteConnectionPool implements Closeable {
                     assert mAvailablePrimaryConnection == null;
                     mAvailablePrimaryConnection = connection;
                 }
+                if (mCheckpointHandler != null && !mCheckpointRunning) {
+                    mCheckpointHandler.primaryConnectionReleased();
+                }
                 wakeConnectionWaitersLocked();
             } else if (mAvailableNonPrimaryConnections.size() >= mMaxConnectionPoolSize - 1) {
                 closeConnectionAndLogExceptionsLocked(connection);
             } else {
                 if (recycleConnectionLocked(connection, status)) {
                     mAvailableNonPrimaryConnections.add(connection);
+                    if (mIdleConnectionHandler != null) {
+                        mIdleConnectionHandler.connectionReleased(connection);
+                    }
                 }
                 wakeConnectionWaitersLocked();
             }
         }
+
+        if (tableChangeListeners != null) {
+            notifyTableChangeListeners(tableChangeListeners, changedTables);
+        }
+    }
+
+    // Can't throw.
+    private static void notifyTableChangeListeners(SQLiteTableChangeListener[] listeners,
+            String[] changedTables) {
+        final Set<String> tables = Collections.unmodifiableSet(
+                new HashSet<String>(Arrays.asList(changedTables)));
+        for (SQLiteTableChangeListener listener : listeners) {
+            try {
+                listener.onTablesChanged(tables);
+            } catch (RuntimeException ex) {
+                Log.e(TAG, "A table change listener failed.", ex);
+            }
+        }
+    }
+
+    /**
+     * Adds a listener that is told which tables were changed by the transactions
+     * committed on connections of this pool.  Changes are only recorded while
+     * {@link SQLiteDatabaseConfiguration#trackTableChanges} is set.
+     *
+     * @param listener The listener.
+     */
+    public void addTableChangeListener(SQLiteTableChangeListener listener) {
+        synchronized (mLock) {
+            if (!mTableChangeListeners.contains(listener)) {
+                mTableChangeListeners.add(listener);
+            }
+        }
+    }
+
+    /**
+     * Removes a listener added by {@link #addTableChangeListener}.
+     *
+     * @param listener The listener.
+     * @return True if no listeners remain.
+     */
+    public boolean removeTableChangeListener(SQLiteTableChangeListener listener) {
+        synchronized (mLock) {
+            mTableChangeListeners.remove(listener);
+            return mTableChangeListeners.isEmpty();
+        }
     }
 
     // Can't throw.
@@ -447,6 +688,43 @@ public final class SQLiteConnectionPool implements Closeable {
         }
     }
 
+    /**
+     * Records that a session yielded its transaction.
+     *
+     * @param contended True if the transaction was yielded to waiting sessions,
+     * false if it was yielded because it ran past its time budget.
+     * @param elapsedNanos How long the transaction ran before it was yielded.
+     */
+    public void onTransactionYielded(boolean contended, long elapsedNanos) {
+        // Can't throw.
+        synchronized (mLock) {
+            mMetrics.onTransactionYielded(contended, elapsedNanos);
+        }
+    }
+
+    /**
+     * Takes a snapshot of the activity of this pool.
+     *
+     * @return The metrics recorded since the pool was opened, never null.
+     */
+    public SQLiteConnectionPoolMetrics getMetrics() {
+        synchronized (mLock) {
+            return mMetrics.snapshot();
+        }
+    }
+
+    /**
+     * Gets the maximum number of connections the pool may open at once,
+     * including the primary connection.
+     *
+     * @return The maximum connection pool size.
+     */
+    public int getMaxConnectionPoolSize() {
+        synchronized (mLock) {
+            return mMaxConnectionPoolSize;
+        }
+    }
+
     /**
      * Collects statistics about database connection memory usage.
      *
@@ -468,12 +746,35 @@ public final class SQLiteConnectionPool implements Closeable {
         }
     }
 
+    /**
+     * Collects the page cache counters of every connection in the pool.
+     *
+     * @param statsList The list to which the counters are added.
+     */
+    public void collectConnectionStats(ArrayList<SQLiteConnectionStats> statsList) {
+        synchronized (mLock) {
+            if (mAvailablePrimaryConnection != null) {
+                statsList.add(mAvailablePrimaryConnection.getStatsUnsafe());
+            }
+
+            for (SQLiteConnection connection : mAvailableNonPrimaryConnections) {
+                statsList.add(connection.getStatsUnsafe());
+            }
+
+            for (SQLiteConnection connection : mAcquiredConnections.keySet()) {
+                statsList.add(connection.getStatsUnsafe());
+            }
+        }
+    }
+
     // Might throw.
     private SQLiteConnection openConnectionLocked(SQLiteDatabaseConfiguration configuration,
             boolean primaryConnection) {
         final int connectionId = mNextConnectionId++;
-        return SQLiteConnection.open(this, configuration,
+        SQLiteConnection connection = SQLiteConnection.open(this, configuration,
                 connectionId, primaryConnection); // might throw
+        mMetrics.onConnectionOpened(connectionId);
+        return connection;
     }
 
     void onConnectionLeaked() {
@@ -536,6 +837,10 @@ public final class SQLiteConnectionPool implements Closeable {
 
     // Can't throw.
     private void closeConnectionAndLogExceptionsLocked(SQLiteConnection connection) {
+        mMetrics.onConnectionClosed(connection.getConnectionId());
+        if (mIdleConnectionHandler != null) {
+            mIdleConnectionHandler.connectionClosed(connection);
+        }
         try {
             connection.close(); // might throw
         } catch (RuntimeException ex) {
@@ -544,6 +849,35 @@ public final class SQLiteConnectionPool implements Closeable {
         }
     }
 
+    // Can't throw.
+    private boolean closeIdleConnectionLocked(int connectionId) {
+        final int count = mAvailableNonPrimaryConnections.size();
+        if (count == 0 || count + countAcquiredNonPrimaryConnectionsLocked()
+                <= mMinNonPrimaryConnections) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            final SQLiteConnection connection = mAvailableNonPrimaryConnections.get(i);
+            if (connection.getConnectionId() == connectionId) {
+                mAvailableNonPrimaryConnections.remove(i);
+                closeConnectionAndLogExceptionsLocked(connection);
+                mMetrics.onIdleConnectionClosed();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int countAcquiredNonPrimaryConnectionsLocked() {
+        int count = 0;
+        for (SQLiteConnection connection : mAcquiredConnections.keySet()) {
+            if (!connection.isPrimaryConnection()) {
+                count += 1;
+            }
+        }
+        return count;
+    }
+
     // Can't throw.
     private void discardAcquiredConnectionsLocked() {
         markAcquiredConnectionsLocked(AcquiredConnectionStatus.DISCARD);
@@ -601,12 +935,17 @@ public final class SQLiteConnectionPool implements Closeable {
 
     // Might throw.
     private SQLiteConnection waitForConnection(String sql, int connectionFlags,
-            CancellationSignal cancellationSignal) {
+            long timeoutMillis, CancellationSignal cancellationSignal) {
         final boolean wantPrimaryConnection =
                 (connectionFlags & CONNECTION_FLAG_PRIMARY_CONNECTION_AFFINITY) != 0;
+        final boolean wantNonPrimaryConnection =
+                (connectionFlags & CONNECTION_FLAG_NON_PRIMARY_CONNECTION) != 0;
+        final long startNanos = System.nanoTime();
 
         final ConnectionWaiter waiter;
         final int nonce;
+        long growthTime = 0;
+        long deadline = 0;
         synchronized (mLock) {
             throwIfClosedLocked();
 
@@ -615,16 +954,23 @@ public final class SQLiteConnectionPool implements Closeable {
                 cancellationSignal.throwIfCanceled();
             }
 
+            if (wantNonPrimaryConnection) {
+                throwIfNoNonPrimaryConnectionsLocked();
+            }
+
             // Try to acquire a connection.
             SQLiteConnection connection = null;
 
             // When in WAL mode, we want to avoid the startup penalty of creating both a primary and
             // non-primary connection for initial read operations on the database. If the pool of non-primary
             // connections has not been initialized yet, and the primary connection is available, use the primary.
-            // If the primary connection is required, always use that.
-            if ((mAvailablePrimaryConnection != null && mAvailableNonPrimaryConnections.isEmpty()) || wantPrimaryConnection) {
+            // If the primary connection is required, always use that, and never when a
+            // non-primary connection is required.
+            if (!wantNonPrimaryConnection && ((mAvailablePrimaryConnection != null
+                    && mAvailableNonPrimaryConnections.isEmpty()) || wantPrimaryConnection)) {
                 connection = tryAcquirePrimaryConnectionLocked(connectionFlags);
                 if (connection != null) {
+                    recordAcquisitionLocked(connection, false /*waited*/, startNanos);
                     return connection;
                 }
             }
@@ -634,13 +980,24 @@ public final class SQLiteConnectionPool implements Closeable {
             // non primary connection. This may establish a new non-primary connection a free one is not
             // already available.
             if (!wantPrimaryConnection) {
-                connection = tryAcquireNonPrimaryConnectionLocked(sql, connectionFlags);
+                connection = tryAcquireNonPrimaryConnectionLocked(sql, connectionFlags,
+                        SystemClock.uptimeMillis());
                 if (connection != null) {
+                    recordAcquisitionLocked(connection, false /*waited*/, startNanos);
                     return connection;
                 }
             }
 
-            // No connections available.  Enqueue a waiter in priority order.
+            // No connections available.  Shed load if too many threads are waiting already.
+            final int maxWaiters = mConfiguration.maxConnectionWaiters;
+            if (maxWaiters > 0 && mMetrics.getCurrentWaiters() >= maxWaiters) {
+                mMetrics.onAcquisitionRejected();
+                throw new SQLiteConnectionPoolBusyException("The connection pool for database '"
+                        + mConfiguration.label + "' already has " + maxWaiters
+                        + " waiting requests.", 0, true /*rejected*/);
+            }
+
+            // Enqueue a waiter in priority order.
             final int priority = getPriority(connectionFlags);
             final long startTime = SystemClock.uptimeMillis();
             waiter = obtainConnectionWaiterLocked(Thread.currentThread(), startTime,
@@ -660,6 +1017,20 @@ public final class SQLiteConnectionPool implements Closeable {
             } else {
                 mConnectionWaiterQueue = waiter;
             }
+            mMetrics.onWaiterEnqueued();
+
+            // If the pool is only allowed to grow under sustained pressure, wake up
+            // once the waiter has waited long enough to justify another connection.
+            if (!wantPrimaryConnection && mConfiguration.connectionGrowthDelayMillis > 0) {
+                growthTime = startTime + mConfiguration.connectionGrowthDelayMillis;
+            }
+
+            if (timeoutMillis < 0) {
+                timeoutMillis = mConfiguration.connectionAcquireTimeoutMillis;
+            }
+            if (timeoutMillis > 0) {
+                deadline = startTime + timeoutMillis;
+            }
 
             nonce = waiter.mNonce;
         }
@@ -671,7 +1042,7 @@ public final class SQLiteConnectionPool implements Closeable {
                 public void onCancel() {
                     synchronized (mLock) {
                         if (waiter.mNonce == nonce) {
-                            cancelConnectionWaiterLocked(waiter);
+                            cancelConnectionWaiterLocked(waiter, new OperationCanceledException());
                         }
                     }
                 }
@@ -691,7 +1062,17 @@ public final class SQLiteConnectionPool implements Closeable {
                 }
 
                 // Wait to be unparked (may already have happened), a timeout, or interruption.
-                LockSupport.parkNanos(this, busyTimeoutMillis * 1000000L);
+                long parkMillis = busyTimeoutMillis;
+                if (growthTime != 0 || deadline != 0) {
+                    final long now = SystemClock.uptimeMillis();
+                    if (growthTime != 0) {
+                        parkMillis = Math.min(parkMillis, Math.max(1, growthTime - now));
+                    }
+                    if (deadline != 0) {
+                        parkMillis = Math.min(parkMillis, Math.max(1, deadline - now));
+                    }
+                }
+                LockSupport.parkNanos(this, parkMillis * 1000000L);
 
                 // Clear the interrupted flag, just in case.
                 Thread.interrupted();
@@ -700,19 +1081,38 @@ public final class SQLiteConnectionPool implements Closeable {
                 synchronized (mLock) {
                     throwIfClosedLocked();
 
+                    if (deadline != 0 && SystemClock.uptimeMillis() >= deadline) {
+                        final long waitMillis = SystemClock.uptimeMillis() - waiter.mStartTime;
+                        if (cancelConnectionWaiterLocked(waiter,
+                                new SQLiteConnectionPoolBusyException("Timed out after "
+                                        + waitMillis + " ms waiting for a connection to database '"
+                                        + mConfiguration.label + "' with flags 0x"
+                                        + Integer.toHexString(connectionFlags) + ".",
+                                        waitMillis, false /*rejected*/))) {
+                            mMetrics.onWaitTimedOut();
+                        }
+                    }
+
                     final SQLiteConnection connection = waiter.mAssignedConnection;
                     final RuntimeException ex = waiter.mException;
                     if (connection != null || ex != null) {
                         recycleConnectionWaiterLocked(waiter);
                         if (connection != null) {
+                            recordAcquisitionLocked(connection, true /*waited*/, startNanos);
                             return connection;
                         }
+                        mMetrics.onWaitFailed();
                         throw ex; // rethrow!
                     }
 
                     final long now = SystemClock.uptimeMillis();
+                    if (growthTime != 0 && now >= growthTime) {
+                        // Give the pool a chance to open another connection for us.
+                        growthTime = 0;
+                        wakeConnectionWaitersLocked();
+                    }
                     if (now < nextBusyTimeoutTime) {
-                        busyTimeoutMillis = now - nextBusyTimeoutTime;
+                        busyTimeoutMillis = nextBusyTimeoutTime - now;
                     } else {
                         logConnectionPoolBusyLocked(now - waiter.mStartTime, connectionFlags);
                         busyTimeoutMillis = CONNECTION_POOL_BUSY_MILLIS;
@@ -729,10 +1129,19 @@ public final class SQLiteConnectionPool implements Closeable {
     }
 
     // Can't throw.
-    private void cancelConnectionWaiterLocked(ConnectionWaiter waiter) {
+    private void recordAcquisitionLocked(SQLiteConnection connection, boolean waited,
+            long startNanos) {
+        final long now = System.nanoTime();
+        mMetrics.onConnectionAcquired(connection.getConnectionId(),
+                connection.isPrimaryConnection(), waited, now - startNanos, now);
+    }
+
+    // Can't throw.
+    private boolean cancelConnectionWaiterLocked(ConnectionWaiter waiter,
+            RuntimeException exception) {
         if (waiter.mAssignedConnection != null || waiter.mException != null) {
             // Waiter is done waiting but has not woken up yet.
-            return;
+            return false;
         }
 
         // Waiter must still be waiting.  Dequeue it.
@@ -748,13 +1157,15 @@ public final class SQLiteConnectionPool implements Closeable {
         } else {
             mConnectionWaiterQueue = waiter.mNext;
         }
+        mMetrics.onWaiterDequeued();
 
         // Send the waiter an exception and unpark it.
-        waiter.mException = new OperationCanceledException();
+        waiter.mException = exception;
         LockSupport.unpark(waiter.mThread);
 
         // Check whether removing this waiter will enable other waiters to make progress.
         wakeConnectionWaitersLocked();
+        return true;
     }
 
     // Can't throw.
@@ -815,15 +1226,23 @@ public final class SQLiteConnectionPool implements Closeable {
                 unpark = true;
             } else {
                 try {
+                    final boolean wantNonPrimaryConnection = (waiter.mConnectionFlags
+                            & CONNECTION_FLAG_NON_PRIMARY_CONNECTION) != 0;
+                    if (wantNonPrimaryConnection) {
+                        // The pool may have been reconfigured since the waiter queued.
+                        throwIfNoNonPrimaryConnectionsLocked(); // might throw
+                    }
                     SQLiteConnection connection = null;
                     if (!waiter.mWantPrimaryConnection && !nonPrimaryConnectionNotAvailable) {
                         connection = tryAcquireNonPrimaryConnectionLocked(
-                                waiter.mSql, waiter.mConnectionFlags); // might throw
+                                waiter.mSql, waiter.mConnectionFlags,
+                                waiter.mStartTime); // might throw
                         if (connection == null) {
                             nonPrimaryConnectionNotAvailable = true;
                         }
                     }
-                    if (connection == null && !primaryConnectionNotAvailable) {
+                    if (connection == null && !primaryConnectionNotAvailable
+                            && !wantNonPrimaryConnection) {
                         connection = tryAcquirePrimaryConnectionLocked(
                                 waiter.mConnectionFlags); // might throw
                         if (connection == null) {
@@ -853,6 +1272,7 @@ public final class SQLiteConnectionPool implements Closeable {
                     mConnectionWaiterQueue = successor;
                 }
                 waiter.mNext = null;
+                mMetrics.onWaiterDequeued();
 
                 LockSupport.unpark(waiter.mThread);
             } else {
@@ -889,7 +1309,7 @@ public final class SQLiteConnectionPool implements Closeable {
 
     // Might throw.
     private SQLiteConnection tryAcquireNonPrimaryConnectionLocked(
-            String sql, int connectionFlags) {
+            String sql, int connectionFlags, long waitStartTime) {
         // Try to acquire the next connection in the queue.
         SQLiteConnection connection;
         final int availableCount = mAvailableNonPrimaryConnections.size();
@@ -920,17 +1340,37 @@ public final class SQLiteConnectionPool implements Closeable {
         if (openConnections >= mMaxConnectionPoolSize) {
             return null;
         }
+        // Beyond the minimum, only grow once the request has been waiting for a while,
+        // unless the request can't fall back to the primary connection.
+        if (openConnections - 1 >= mMinNonPrimaryConnections
+                && (connectionFlags & CONNECTION_FLAG_NON_PRIMARY_CONNECTION) == 0
+                && SystemClock.uptimeMillis() - waitStartTime
+                        < mConfiguration.connectionGrowthDelayMillis) {
+            return null;
+        }
         connection = openConnectionLocked(mConfiguration,
                 false /*primaryConnection*/); // might throw
         finishAcquireConnectionLocked(connection, connectionFlags); // might throw
         return connection;
     }
 
+    // Might throw.
+    private void throwIfNoNonPrimaryConnectionsLocked() {
+        if (mMaxConnectionPoolSize < 2) {
+            throw new IllegalStateException("The connection pool for database '"
+                    + mConfiguration.label + "' has no non-primary connections.  "
+                    + "Enable write-ahead logging and allow at least one reader connection.");
+        }
+    }
+
     // Might throw.
     private void finishAcquireConnectionLocked(SQLiteConnection connection, int connectionFlags) {
         try {
             final boolean readOnly = (connectionFlags & CONNECTION_FLAG_READ_ONLY) != 0;
             connection.setOnlyAllowReadOnlyOperations(readOnly);
+            if (mIdleConnectionHandler != null) {
+                mIdleConnectionHandler.connectionAcquired(connection);
+            }
 
             mAcquiredConnections.put(connection, AcquiredConnectionStatus.NORMAL);
         } catch (RuntimeException ex) {
@@ -970,14 +1410,76 @@ public final class SQLiteConnectionPool implements Closeable {
     }
 
     private void setMaxConnectionPoolSizeLocked() {
-        if ((mConfiguration.openFlags & SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING) != 0) {
-            mMaxConnectionPoolSize = SQLiteGlobal.getWALConnectionPoolSize();
+        // A shared in-memory database has no WAL, but its readers share one image
+        // and only wait for each other while a transaction commits.
+        if ((mConfiguration.openFlags & SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING) != 0
+                || mConfiguration.isSharedMemoryDb()) {
+            if (mConfiguration.maxReaderConnections >= 0) {
+                mMaxConnectionPoolSize = mConfiguration.maxReaderConnections + 1;
+            } else {
+                mMaxConnectionPoolSize = SQLiteGlobal.getWALConnectionPoolSize();
+            }
+            mMinNonPrimaryConnections = Math.max(0, Math.min(
+                    mConfiguration.minReaderConnections, mMaxConnectionPoolSize - 1));
         } else {
             // TODO: We don't actually need to restrict the connection pool size to 1
             // for non-WAL databases.  There might be reasons to use connection pooling
             // with other journal modes.  For now, enabling connection pooling and
             // using WAL are the same thing in the API.
             mMaxConnectionPoolSize = 1;
+            mMinNonPrimaryConnections = 0;
+        }
+    }
+
+    // Can't throw.
+    private void updateIdleConnectionHandlerLocked() {
+        final long timeoutMillis = mConfiguration.idleConnectionTimeoutMillis;
+        final boolean enabled = mMaxConnectionPoolSize > 1 && timeoutMillis != Long.MAX_VALUE;
+        if (mIdleConnectionHandler != null) {
+            if (enabled && mIdleConnectionHandler.mTimeoutMillis == timeoutMillis) {
+                return;
+            }
+            mIdleConnectionHandler.removeCallbacksAndMessages(null);
+            mIdleConnectionHandler = null;
+        }
+        if (enabled) {
+            mIdleConnectionHandler = new IdleConnectionHandler(getIdleConnectionLooper(),
+                    timeoutMillis);
+            for (SQLiteConnection connection : mAvailableNonPrimaryConnections) {
+                mIdleConnectionHandler.connectionReleased(connection);
+            }
+        }
+    }
+
+    // Can't throw.
+    private void updateCheckpointHandlerLocked() {
+        final boolean enabled = mConfiguration.isBackgroundCheckpointEnabled();
+        final long idleMillis = mConfiguration.walCheckpointIdleMillis;
+        final long truncateBytes = mConfiguration.walCheckpointTruncateBytes;
+        if (mCheckpointHandler != null) {
+            if (enabled && mCheckpointHandler.mIdleMillis == idleMillis
+                    && mCheckpointHandler.mTruncateBytes == truncateBytes) {
+                return;
+            }
+            mCheckpointHandler.removeCallbacksAndMessages(null);
+            mCheckpointHandler = null;
+        }
+        if (enabled) {
+            mCheckpointHandler = new CheckpointHandler(getIdleConnectionLooper(),
+                    idleMillis, truncateBytes);
+            // The log may have grown while automatic checkpoints were still enabled.
+            mCheckpointHandler.primaryConnectionReleased();
+        }
+    }
+
+    private static Looper getIdleConnectionLooper() {
+        synchronized (SQLiteConnectionPool.class) {
+            if (sIdleConnectionThread == null) {
+                sIdleConnectionThread = new HandlerThread("SQLiteIdleConnectionHandler",
+                        Process.THREAD_PRIORITY_BACKGROUND);
+                sIdleConnectionThread.start();
+            }
+            return sIdleConnectionThread.getLooper();
         }
     }
 
@@ -1039,6 +1541,11 @@ public final class SQLiteConnectionPool implements Closeable {
             printer.println("Connection pool for " + mConfiguration.path + ":");
             printer.println("  Open: " + mIsOpen);
             printer.println("  Max connections: " + mMaxConnectionPoolSize);
+            printer.println("  Min non-primary connections: " + mMinNonPrimaryConnections);
+            if (mIdleConnectionHandler != null) {
+                printer.println("  Idle connection timeout: "
+                        + mIdleConnectionHandler.mTimeoutMillis + " ms");
+            }
 
             printer.println("  Available primary connection:");
             if (mAvailablePrimaryConnection != null) {
@@ -1084,6 +1591,8 @@ public final class SQLiteConnectionPool implements Closeable {
             } else {
                 indentedPrinter.println("<none>");
             }
+
+            mMetrics.snapshot().dump(printer);
         }
     }
 
@@ -1092,6 +1601,161 @@ public final class SQLiteConnectionPool implements Closeable {
         return "SQLiteConnectionPool: " + mConfiguration.path;
     }
 
+    /**
+     * Closes non-primary connections that have not been used for a while, so that
+     * their page caches are released.  There is one message per available
+     * connection, keyed by connection id.
+     */
+    private final class IdleConnectionHandler extends Handler {
+        private final long mTimeoutMillis;
+
+        IdleConnectionHandler(Looper looper, long timeoutMillis) {
+            super(looper);
+            mTimeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            synchronized (mLock) {
+                if (this != mIdleConnectionHandler || !mIsOpen) {
+                    return;
+                }
+                if (closeIdleConnectionLocked(msg.what)) {
+                    if (Log.isLoggable(TAG, Log.DEBUG)) {
+                        Log.d(TAG, "Closed idle connection " + mConfiguration.label + " "
+                                + msg.what + " after " + mTimeoutMillis + " ms");
+                    }
+                }
+            }
+        }
+
+        void connectionReleased(SQLiteConnection connection) {
+            sendEmptyMessageDelayed(connection.getConnectionId(), mTimeoutMillis);
+        }
+
+        void connectionAcquired(SQLiteConnection connection) {
+            removeMessages(connection.getConnectionId());
+        }
+
+        void connectionClosed(SQLiteConnection connection) {
+            removeMessages(connection.getConnectionId());
+        }
+    }
+
+    /**
+     * Checkpoints the write-ahead log once the primary connection has been left
+     * unused for a while, so that writers do not pay for checkpoints inside their
+     * commits.  A passive checkpoint runs when no connection is in use.  Once the
+     * part of the log not yet copied into the database has grown past the truncation
+     * threshold, the log is truncated when no connection is in use, or checkpointed
+     * passively alongside active readers.  Passive checkpoints run on a non-primary
+     * connection, so that writers can go on meanwhile; only truncation holds the
+     * primary connection.  A checkpoint that stops short of the end
+     * of the log, because a reader still uses an older snapshot, is tried again later.
+     */
+    private final class CheckpointHandler extends Handler {
+        private static final int MSG_CHECKPOINT = 1;
+
+        private final long mIdleMillis;
+        private final long mTruncateBytes;
+
+        CheckpointHandler(Looper looper, long idleMillis, long truncateBytes) {
+            super(looper);
+            mIdleMillis = idleMillis;
+            mTruncateBytes = truncateBytes;
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            final SQLiteConnection connection;
+            final int mode;
+            synchronized (mLock) {
+                if (this != mCheckpointHandler || !mIsOpen) {
+                    return;
+                }
+                if (mAvailablePrimaryConnection == null) {
+                    // Try again once the writer is done.
+                    sendEmptyMessageDelayed(MSG_CHECKPOINT, mIdleMillis);
+                    return;
+                }
+
+                // Nobody owns the primary connection, so its log counters are stable.
+                final long walPendingBytes = mAvailablePrimaryConnection.getWalPendingBytes();
+                mMetrics.onWalPendingBytesObserved(walPendingBytes);
+                if (walPendingBytes == 0) {
+                    return;
+                }
+
+                final boolean idle = mAcquiredConnections.isEmpty()
+                        && mConnectionWaiterQueue == null;
+                final boolean large = walPendingBytes >= mTruncateBytes;
+                if (!(idle || large)) {
+                    // Try again once the pool has quietened down.
+                    sendEmptyMessageDelayed(MSG_CHECKPOINT, mIdleMillis);
+                    return;
+                }
+
+                mode = idle && large ? SQLiteConnection.CHECKPOINT_MODE_TRUNCATE
+                        : SQLiteConnection.CHECKPOINT_MODE_PASSIVE;
+                if (mode == SQLiteConnection.CHECKPOINT_MODE_TRUNCATE
+                        || mMaxConnectionPoolSize < 2) {
+                    // Take the primary connection so that no writer runs meanwhile, or
+                    // because the pool has no other connection.
+                    connection = mAvailablePrimaryConnection;
+                    mAvailablePrimaryConnection = null;
+                    mAcquiredConnections.put(connection, AcquiredConnectionStatus.NORMAL);
+                    mCheckpointRunning = true;
+                } else {
+                    // A passive checkpoint does not need the write lock, so leave the
+                    // primary connection to writers.  The primary connection only
+                    // learns how much of the log was copied once its next write
+                    // restarts the log, so until then it overstates what is pending.
+                    SQLiteConnection reader = null;
+                    try {
+                        reader = tryAcquireNonPrimaryConnectionLocked(null,
+                                CONNECTION_FLAG_READ_ONLY | CONNECTION_FLAG_NON_PRIMARY_CONNECTION,
+                                SystemClock.uptimeMillis()); // might throw
+                    } catch (RuntimeException ex) {
+                        Log.w(TAG, "Could not open a connection to checkpoint "
+                                + mConfiguration.label, ex);
+                    }
+                    if (reader == null) {
+                        // Try again once a reader is free.
+                        sendEmptyMessageDelayed(MSG_CHECKPOINT, mIdleMillis);
+                        return;
+                    }
+                    connection = reader;
+                }
+            }
+
+            final long startNanos = System.nanoTime();
+            boolean completed = false;
+            try {
+                completed = connection.walCheckpoint(mode);
+            } catch (RuntimeException ex) {
+                Log.w(TAG, "Background checkpoint failed for " + mConfiguration.label, ex);
+            } finally {
+                synchronized (mLock) {
+                    mMetrics.onWalCheckpoint(mode == SQLiteConnection.CHECKPOINT_MODE_TRUNCATE,
+                            completed, System.nanoTime() - startNanos);
+                    try {
+                        releaseConnection(connection);
+                    } finally {
+                        mCheckpointRunning = false;
+                    }
+                    if (!completed && this == mCheckpointHandler && mIsOpen) {
+                        sendEmptyMessageDelayed(MSG_CHECKPOINT, mIdleMillis);
+                    }
+                }
+            }
+        }
+
+        void primaryConnectionReleased() {
+            removeMessages(MSG_CHECKPOINT);
+            sendEmptyMessageDelayed(MSG_CHECKPOINT, mIdleMillis);
+        }
+    }
+
     private static final class ConnectionWaiter {
         public ConnectionWaiter mNext;
         public Thread mThread;
@@ -0,0 +1,39 @@
+package net.zetetic.database.sqlcipher;
+
+import android.database.sqlite.SQLiteDatabaseLockedException;
+
+/**
+ * Thrown when a database connection could not be acquired from the connection pool,
+ * either because the acquisition timeout elapsed or because too many threads were
+ * already waiting for a connection.
+ *
+ * @see SQLiteDatabase#setConnectionAcquireTimeout(long)
+ * @see SQLiteDatabase#setMaxConnectionWaiters(int)
+ */
+public class SQLiteConnectionPoolBusyException extends SQLiteDatabaseLockedException {
+    private final long mWaitMillis;
+    private final boolean mRejected;
+
+    public SQLiteConnectionPoolBusyException(String error, long waitMillis, boolean rejected) {
+        super(error);
+        mWaitMillis = waitMillis;
+        mRejected = rejected;
+    }
+
+    /**
+     * Gets how long the caller waited for a connection before giving up.
+     *
+     * @return The wait time in milliseconds, 0 if the request was rejected.
+     */
+    public long getWaitMillis() {
+        return mWaitMillis;
+    }
+
+    /**
+     * Returns true if the request was rejected without waiting because the
+     * maximum number of connection waiters was reached, false if it timed out.
+     */
+    public boolean isRejected() {
+        return mRejected;
+    }
+}
@@ -0,0 +1,596 @@
+package net.zetetic.database.sqlcipher;
+
+import android.util.Printer;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A point-in-time snapshot of the activity of a {@link SQLiteConnectionPool}.
+ * <p>
+ * The pool records its activity continuously while it is open.  Recording
+ * happens while the pool lock is already held and only touches a handful of
+ * counters, so it is cheap enough to leave on in production.  Call
+ * {@link SQLiteDatabase#getConnectionPoolMetrics()} to obtain a snapshot.
+ * </p><p>
+ * Durations are recorded into {@link Histogram histograms} whose buckets grow
+ * in powers of two, starting at one microsecond.
+ * </p>
+ */
+public final class SQLiteConnectionPoolMetrics {
+    /**
+     * The number of times the primary connection was handed out.
+     */
+    public final long primaryAcquisitions;
+
+    /**
+     * The number of times a non-primary (reader) connection was handed out.
+     */
+    public final long nonPrimaryAcquisitions;
+
+    /**
+     * The number of acquisitions that had to wait in the queue before
+     * being granted the primary connection.
+     */
+    public final long primaryWaits;
+
+    /**
+     * The number of acquisitions that had to wait in the queue before
+     * being granted a non-primary connection.
+     */
+    public final long nonPrimaryWaits;
+
+    /**
+     * The number of acquisitions that gave up waiting, either because they
+     * were canceled, timed out or failed with an exception.
+     */
+    public final long failedWaits;
+
+    /**
+     * The number of acquisitions that gave up because the acquisition timeout
+     * elapsed.  These are also counted in {@link #failedWaits}.
+     */
+    public final long timedOutWaits;
+
+    /**
+     * The number of acquisitions rejected without waiting because the maximum
+     * number of waiters was reached.
+     */
+    public final long rejectedAcquisitions;
+
+    /**
+     * Time spent acquiring the primary connection, including immediate grants.
+     */
+    public final Histogram primaryWaitTime;
+
+    /**
+     * Time spent acquiring a non-primary connection, including immediate grants.
+     */
+    public final Histogram nonPrimaryWaitTime;
+
+    /**
+     * The number of threads waiting for a connection when the snapshot was taken.
+     */
+    public final int currentWaiters;
+
+    /**
+     * The largest number of threads that have been waiting for a connection at once.
+     */
+    public final int peakWaiters;
+
+    /**
+     * The number of connections opened by the pool.
+     */
+    public final long connectionsOpened;
+
+    /**
+     * The number of connections closed by the pool.
+     */
+    public final long connectionsClosed;
+
+    /**
+     * The number of non-primary connections closed because they sat idle for
+     * longer than the configured idle connection timeout.  These are also
+     * counted in {@link #connectionsClosed}.
+     */
+    public final long idleConnectionsClosed;
+
+    /**
+     * Time connections were held by sessions, across all connections including
+     * those that have since been closed.
+     */
+    public final Histogram holdTime;
+
+    /**
+     * Time connections were held by sessions, keyed by connection id.  Only
+     * connections that are still open are included.
+     */
+    public final Map<Integer, Histogram> holdTimeByConnection;
+
+    /**
+     * The number of times a statement backed off and retried because another
+     * connection held a conflicting lock on the database file.
+     */
+    public final long busyRetries;
+
+    /**
+     * The total time in microseconds statements spent backing off in
+     * {@link #busyRetries}.
+     */
+    public final long busyWaitMicros;
+
+    /**
+     * The number of statements that gave up because the busy timeout elapsed
+     * while another connection held a conflicting lock.
+     */
+    public final long busyTimeouts;
+
+    /**
+     * The number of times a statement blocked on a shared-cache table lock
+     * waited for the holder to finish through {@code sqlite3_unlock_notify}.
+     */
+    public final long unlockNotifyWaits;
+
+    /**
+     * The total time in microseconds statements spent in {@link #unlockNotifyWaits}.
+     */
+    public final long unlockNotifyWaitMicros;
+
+    /**
+     * The number of times a session committed its transaction and began a new one
+     * to let other sessions run, either because they were waiting for its
+     * connection or because the transaction ran past its time budget.
+     */
+    public final long transactionYields;
+
+    /**
+     * The number of {@link #transactionYields} that happened because other sessions
+     * were waiting for the connection, whether or not the time budget had also run out.
+     */
+    public final long contendedTransactionYields;
+
+    /**
+     * How long transactions ran before they were yielded.
+     */
+    public final Histogram yieldedTransactionTime;
+
+    /**
+     * The number of bytes in the write-ahead log that had not been copied back into
+     * the database when the background checkpointer last looked, or 0 if background
+     * checkpoints are not enabled.  This is not the size of the -wal file, which
+     * SQLite reuses rather than shrinks.
+     */
+    public final long walPendingBytes;
+
+    /**
+     * The largest {@link #walPendingBytes} seen by the background checkpointer.
+     */
+    public final long peakWalPendingBytes;
+
+    /**
+     * The number of background checkpoints that copied the whole write-ahead log
+     * back into the database.
+     */
+    public final long walCheckpoints;
+
+    /**
+     * The number of {@link #walCheckpoints} that also truncated the write-ahead log.
+     */
+    public final long truncatingWalCheckpoints;
+
+    /**
+     * The number of background checkpoints that did not finish, because other
+     * connections were busy, a reader still used frames of the log, or an error
+     * occurred.  They are retried later.
+     */
+    public final long incompleteWalCheckpoints;
+
+    /**
+     * How long background checkpoints took, whether or not they finished.
+     */
+    public final Histogram walCheckpointTime;
+
+    private SQLiteConnectionPoolMetrics(Recorder recorder, int currentWaiters) {
+        primaryAcquisitions = recorder.mPrimaryAcquisitions;
+        nonPrimaryAcquisitions = recorder.mNonPrimaryAcquisitions;
+        primaryWaits = recorder.mPrimaryWaits;
+        nonPrimaryWaits = recorder.mNonPrimaryWaits;
+        failedWaits = recorder.mFailedWaits;
+        timedOutWaits = recorder.mTimedOutWaits;
+        rejectedAcquisitions = recorder.mRejectedAcquisitions;
+        primaryWaitTime = new Histogram(recorder.mPrimaryWaitTime);
+        nonPrimaryWaitTime = new Histogram(recorder.mNonPrimaryWaitTime);
+        this.currentWaiters = currentWaiters;
+        peakWaiters = recorder.mPeakWaiters;
+        connectionsOpened = recorder.mConnectionsOpened;
+        connectionsClosed = recorder.mConnectionsClosed;
+        idleConnectionsClosed = recorder.mIdleConnectionsClosed;
+        holdTime = new Histogram(recorder.mHoldTime);
+        HashMap<Integer, Histogram> holdTimeByConnection =
+                new HashMap<Integer, Histogram>(recorder.mConnections.size());
+        for (Map.Entry<Integer, ConnectionRecord> entry : recorder.mConnections.entrySet()) {
+            holdTimeByConnection.put(entry.getKey(), new Histogram(entry.getValue().mHoldTime));
+        }
+        this.holdTimeByConnection = Collections.unmodifiableMap(holdTimeByConnection);
+        final long[] lockWaitStats = recorder.mLockWaitStats;
+        busyRetries = lockWaitStats[SQLiteConnection.LOCK_WAIT_STAT_BUSY_RETRIES];
+        busyWaitMicros = lockWaitStats[SQLiteConnection.LOCK_WAIT_STAT_BUSY_WAIT_MICROS];
+        busyTimeouts = lockWaitStats[SQLiteConnection.LOCK_WAIT_STAT_BUSY_TIMEOUTS];
+        unlockNotifyWaits = lockWaitStats[SQLiteConnection.LOCK_WAIT_STAT_UNLOCK_NOTIFY_WAITS];
+        unlockNotifyWaitMicros =
+                lockWaitStats[SQLiteConnection.LOCK_WAIT_STAT_UNLOCK_NOTIFY_MICROS];
+        transactionYields = recorder.mTransactionYields;
+        contendedTransactionYields = recorder.mContendedTransactionYields;
+        yieldedTransactionTime = new Histogram(recorder.mYieldedTransactionTime);
+        walPendingBytes = recorder.mWalPendingBytes;
+        peakWalPendingBytes = recorder.mPeakWalPendingBytes;
+        walCheckpoints = recorder.mWalCheckpoints;
+        truncatingWalCheckpoints = recorder.mTruncatingWalCheckpoints;
+        incompleteWalCheckpoints = recorder.mIncompleteWalCheckpoints;
+        walCheckpointTime = new Histogram(recorder.mWalCheckpointTime);
+    }
+
+    /**
+     * Gets the total number of connections handed out by the pool.
+     *
+     * @return The total number of acquisitions.
+     */
+    public long getTotalAcquisitions() {
+        return primaryAcquisitions + nonPrimaryAcquisitions;
+    }
+
+    /**
+     * Gets the number of connections currently open.
+     *
+     * @return The number of open connections.
+     */
+    public long getOpenConnections() {
+        return connectionsOpened - connectionsClosed;
+    }
+
+    void dump(Printer printer) {
+        printer.println("  Metrics:");
+        printer.println("    Acquisitions: primary=" + primaryAcquisitions
+                + ", nonPrimary=" + nonPrimaryAcquisitions);
+        printer.println("    Waits: primary=" + primaryWaits
+                + ", nonPrimary=" + nonPrimaryWaits
+                + ", failed=" + failedWaits
+                + ", timedOut=" + timedOutWaits
+                + ", rejected=" + rejectedAcquisitions
+                + ", current=" + currentWaiters
+                + ", peak=" + peakWaiters);
+        printer.println("    Primary wait time: " + primaryWaitTime);
+        printer.println("    Non-primary wait time: " + nonPrimaryWaitTime);
+        printer.println("    Hold time: " + holdTime);
+        printer.println("    Connections: opened=" + connectionsOpened
+                + ", closed=" + connectionsClosed
+                + ", idleClosed=" + idleConnectionsClosed);
+        printer.println("    Lock waits: busyRetries=" + busyRetries
+                + ", busyWait=" + busyWaitMicros + "us"
+                + ", busyTimeouts=" + busyTimeouts
+                + ", unlockNotifyWaits=" + unlockNotifyWaits
+                + ", unlockNotifyWait=" + unlockNotifyWaitMicros + "us");
+        printer.println("    Transaction yields: total=" + transactionYields
+                + ", contended=" + contendedTransactionYields);
+        printer.println("    Yielded transaction time: " + yieldedTransactionTime);
+        printer.println("    WAL: pending=" + walPendingBytes
+                + ", peakPending=" + peakWalPendingBytes
+                + ", checkpoints=" + walCheckpoints
+                + ", truncating=" + truncatingWalCheckpoints
+                + ", incomplete=" + incompleteWalCheckpoints);
+        printer.println("    Checkpoint time: " + walCheckpointTime);
+    }
+
+    @Override
+    public String toString() {
+        return "SQLiteConnectionPoolMetrics{primaryAcquisitions=" + primaryAcquisitions
+                + ", nonPrimaryAcquisitions=" + nonPrimaryAcquisitions
+                + ", primaryWaits=" + primaryWaits
+                + ", nonPrimaryWaits=" + nonPrimaryWaits
+                + ", failedWaits=" + failedWaits
+                + ", timedOutWaits=" + timedOutWaits
+                + ", rejectedAcquisitions=" + rejectedAcquisitions
+                + ", currentWaiters=" + currentWaiters
+                + ", peakWaiters=" + peakWaiters
+                + ", connectionsOpened=" + connectionsOpened
+                + ", connectionsClosed=" + connectionsClosed
+                + ", idleConnectionsClosed=" + idleConnectionsClosed
+                + ", busyRetries=" + busyRetries
+                + ", busyWaitMicros=" + busyWaitMicros
+                + ", busyTimeouts=" + busyTimeouts
+                + ", unlockNotifyWaits=" + unlockNotifyWaits
+                + ", unlockNotifyWaitMicros=" + unlockNotifyWaitMicros
+                + ", transactionYields=" + transactionYields
+                + ", contendedTransactionYields=" + contendedTransactionYields
+                + ", walPendingBytes=" + walPendingBytes
+                + ", peakWalPendingBytes=" + peakWalPendingBytes
+                + ", walCheckpoints=" + walCheckpoints
+                + ", truncatingWalCheckpoints=" + truncatingWalCheckpoints
+                + ", incompleteWalCheckpoints=" + incompleteWalCheckpoints + "}";
+    }
+
+    /**
+     * An immutable histogram of durations.
+     * <p>
+     * Bucket {@code 0} holds durations below one microsecond and bucket {@code i}
+     * holds durations in the range [2<sup>i-1</sup>, 2<sup>i</sup>) microseconds.
+     * The last bucket also holds every duration beyond its lower bound.
+     * </p>
+     */
+    public static final class Histogram {
+        /**
+         * The number of buckets in every histogram.  The last bucket starts
+         * at a little over 33 seconds.
+         */
+        public static final int BUCKET_COUNT = 27;
+
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mTotalMicros;
+        private final long mMaxMicros;
+
+        Histogram(MutableHistogram other) {
+            mCounts = other.mCounts.clone();
+            mCount = other.mCount;
+            mTotalMicros = other.mTotalMicros;
+            mMaxMicros = other.mMaxMicros;
+        }
+
+        /**
+         * Gets the number of recorded durations.
+         */
+        public long getCount() {
+            return mCount;
+        }
+
+        /**
+         * Gets the number of recorded durations that fell into the given bucket.
+         *
+         * @param bucket The bucket index, between 0 and {@link #BUCKET_COUNT} - 1.
+         */
+        public long getBucketCount(int bucket) {
+            return mCounts[bucket];
+        }
+
+        /**
+         * Gets the exclusive upper bound of the given bucket in microseconds,
+         * or {@link Long#MAX_VALUE} for the last bucket.
+         *
+         * @param bucket The bucket index, between 0 and {@link #BUCKET_COUNT} - 1.
+         */
+        public static long getBucketUpperBoundMicros(int bucket) {
+            if (bucket < 0 || bucket >= BUCKET_COUNT) {
+                throw new IllegalArgumentException("bucket out of range: " + bucket);
+            }
+            return bucket == BUCKET_COUNT - 1 ? Long.MAX_VALUE : 1L << bucket;
+        }
+
+        /**
+         * Gets the sum of all recorded durations in microseconds.
+         */
+        public long getTotalMicros() {
+            return mTotalMicros;
+        }
+
+        /**
+         * Gets the longest recorded duration in microseconds.
+         */
+        public long getMaxMicros() {
+            return mMaxMicros;
+        }
+
+        /**
+         * Gets the mean of the recorded durations in microseconds, or 0 if
+         * nothing was recorded.
+         */
+        public long getMeanMicros() {
+            return mCount != 0 ? mTotalMicros / mCount : 0;
+        }
+
+        /**
+         * Estimates a percentile of the recorded durations.  The result is the
+         * upper bound of the bucket containing the percentile, capped at the
+         * longest recorded duration.
+         *
+         * @param percentile The percentile, between 0 and 100.
+         * @return The estimated duration in microseconds, or 0 if nothing was recorded.
+         */
+        public long getPercentileMicros(double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("percentile must be between 0 and 100.");
+            }
+            if (mCount == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(mCount * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return Math.min(getBucketUpperBoundMicros(i), mMaxMicros);
+                }
+            }
+            return mMaxMicros;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + mCount
+                    + ", mean=" + getMeanMicros() + "us"
+                    + ", p50=" + getPercentileMicros(50) + "us"
+                    + ", p99=" + getPercentileMicros(99) + "us"
+                    + ", max=" + mMaxMicros + "us";
+        }
+    }
+
+    static final class MutableHistogram {
+        final long[] mCounts = new long[Histogram.BUCKET_COUNT];
+        long mCount;
+        long mTotalMicros;
+        long mMaxMicros;
+
+        void record(long nanos) {
+            final long micros = Math.max(0, nanos / 1000);
+            final int bucket = Math.min(Histogram.BUCKET_COUNT - 1,
+                    64 - Long.numberOfLeadingZeros(micros));
+            mCounts[bucket] += 1;
+            mCount += 1;
+            mTotalMicros += micros;
+            if (micros > mMaxMicros) {
+                mMaxMicros = micros;
+            }
+        }
+    }
+
+    private static final class ConnectionRecord {
+        final MutableHistogram mHoldTime = new MutableHistogram();
+        long mAcquiredNanos;
+        boolean mAcquired;
+    }
+
+    /**
+     * Accumulates metrics for a connection pool.
+     * <p>
+     * Not thread-safe.  All methods must be called while holding the pool lock.
+     * </p>
+     */
+    static final class Recorder {
+        private long mPrimaryAcquisitions;
+        private long mNonPrimaryAcquisitions;
+        private long mPrimaryWaits;
+        private long mNonPrimaryWaits;
+        private long mFailedWaits;
+        private long mTimedOutWaits;
+        private long mRejectedAcquisitions;
+        private final MutableHistogram mPrimaryWaitTime = new MutableHistogram();
+        private final MutableHistogram mNonPrimaryWaitTime = new MutableHistogram();
+        private int mCurrentWaiters;
+        private int mPeakWaiters;
+        private long mConnectionsOpened;
+        private long mConnectionsClosed;
+        private long mIdleConnectionsClosed;
+        private final MutableHistogram mHoldTime = new MutableHistogram();
+        private final HashMap<Integer, ConnectionRecord> mConnections =
+                new HashMap<Integer, ConnectionRecord>();
+        private final long[] mLockWaitStats = new long[SQLiteConnection.LOCK_WAIT_STAT_COUNT];
+        private long mTransactionYields;
+        private long mContendedTransactionYields;
+        private final MutableHistogram mYieldedTransactionTime = new MutableHistogram();
+        private long mWalPendingBytes;
+        private long mPeakWalPendingBytes;
+        private long mWalCheckpoints;
+        private long mTruncatingWalCheckpoints;
+        private long mIncompleteWalCheckpoints;
+        private final MutableHistogram mWalCheckpointTime = new MutableHistogram();
+
+        void onConnectionOpened(int connectionId) {
+            mConnectionsOpened += 1;
+            mConnections.put(connectionId, new ConnectionRecord());
+        }
+
+        void onConnectionClosed(int connectionId) {
+            mConnectionsClosed += 1;
+            mConnections.remove(connectionId);
+        }
+
+        void onConnectionAcquired(int connectionId, boolean primary, boolean waited,
+                long waitNanos, long nowNanos) {
+            if (primary) {
+                mPrimaryAcquisitions += 1;
+                mPrimaryWaitTime.record(waitNanos);
+                if (waited) {
+                    mPrimaryWaits += 1;
+                }
+            } else {
+                mNonPrimaryAcquisitions += 1;
+                mNonPrimaryWaitTime.record(waitNanos);
+                if (waited) {
+                    mNonPrimaryWaits += 1;
+                }
+            }
+
+            ConnectionRecord record = mConnections.get(connectionId);
+            if (record != null) {
+                record.mAcquiredNanos = nowNanos;
+                record.mAcquired = true;
+            }
+        }
+
+        void onConnectionReleased(int connectionId, long nowNanos) {
+            ConnectionRecord record = mConnections.get(connectionId);
+            if (record != null && record.mAcquired) {
+                final long heldNanos = nowNanos - record.mAcquiredNanos;
+                record.mHoldTime.record(heldNanos);
+                record.mAcquired = false;
+                mHoldTime.record(heldNanos);
+            }
+        }
+
+        void collectLockWaitStats(SQLiteConnection connection) {
+            connection.takeLockWaitStats(mLockWaitStats);
+        }
+
+        void onTransactionYielded(boolean contended, long elapsedNanos) {
+            mTransactionYields += 1;
+            if (contended) {
+                mContendedTransactionYields += 1;
+            }
+            mYieldedTransactionTime.record(elapsedNanos);
+        }
+
+        void onWalPendingBytesObserved(long walPendingBytes) {
+            mWalPendingBytes = walPendingBytes;
+            if (walPendingBytes > mPeakWalPendingBytes) {
+                mPeakWalPendingBytes = walPendingBytes;
+            }
+        }
+
+        void onWalCheckpoint(boolean truncate, boolean completed, long elapsedNanos) {
+            if (!completed) {
+                mIncompleteWalCheckpoints += 1;
+            } else {
+                mWalCheckpoints += 1;
+                if (truncate) {
+                    mTruncatingWalCheckpoints += 1;
+                }
+            }
+            mWalCheckpointTime.record(elapsedNanos);
+        }
+
+        void onIdleConnectionClosed() {
+            mIdleConnectionsClosed += 1;
+        }
+
+        void onWaiterEnqueued() {
+            mCurrentWaiters += 1;
+            if (mCurrentWaiters > mPeakWaiters) {
+                mPeakWaiters = mCurrentWaiters;
+            }
+        }
+
+        void onWaiterDequeued() {
+            mCurrentWaiters -= 1;
+        }
+
+        void onWaitFailed() {
+            mFailedWaits += 1;
+        }
+
+        void onWaitTimedOut() {
+            mTimedOutWaits += 1;
+        }
+
+        void onAcquisitionRejected() {
+            mRejectedAcquisitions += 1;
+        }
+
+        int getCurrentWaiters() {
+            return mCurrentWaiters;
+        }
+
+        SQLiteConnectionPoolMetrics snapshot() {
+            return new SQLiteConnectionPoolMetrics(this, mCurrentWaiters);
+        }
+    }
+}
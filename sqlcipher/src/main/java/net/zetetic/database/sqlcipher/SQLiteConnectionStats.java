@@ -0,0 +1,73 @@
+package net.zetetic.database.sqlcipher;
+
+import java.util.Locale;
+
+/**
+ * A snapshot of the page cache counters of one connection of a database.
+ * <p>
+ * The counters accumulate from the moment the connection was opened, so that a
+ * metrics system can derive rates from successive snapshots; a connection that has
+ * been closed and replaced starts from zero again with a new connection id.
+ * </p><p>
+ * SQLCipher exposes no counters of its own, so the work done by the codec is not
+ * reported here. The counters are those of the page cache only, as reported by
+ * {@code sqlite3_db_status()}.
+ * </p>
+ *
+ * @see SQLiteDatabase#getConnectionStats()
+ */
+public final class SQLiteConnectionStats {
+    /** The id of the connection within its pool. */
+    public final int connectionId;
+
+    /** True if this is the primary connection, the one that writes to the database. */
+    public final boolean primary;
+
+    /** True if the database is encrypted. */
+    public final boolean encrypted;
+
+    /** The number of pages found in the page cache. */
+    public final long cacheHits;
+
+    /** The number of pages that had to be read from storage. */
+    public final long cacheMisses;
+
+    /** The number of pages written to storage. */
+    public final long cacheWrites;
+
+    /** The number of pages written to storage before a transaction committed because the page cache was full. */
+    public final long cacheSpills;
+
+    /** The number of bytes of memory used by the page cache. */
+    public final long cacheUsedBytes;
+
+    SQLiteConnectionStats(int connectionId, boolean primary, boolean encrypted,
+            long cacheHits, long cacheMisses, long cacheWrites, long cacheSpills,
+            long cacheUsedBytes) {
+        this.connectionId = connectionId;
+        this.primary = primary;
+        this.encrypted = encrypted;
+        this.cacheHits = cacheHits;
+        this.cacheMisses = cacheMisses;
+        this.cacheWrites = cacheWrites;
+        this.cacheSpills = cacheSpills;
+        this.cacheUsedBytes = cacheUsedBytes;
+    }
+
+    /**
+     * Gets the fraction of page lookups that were found in the page cache, or 0 if
+     * there were none.
+     */
+    public double getCacheHitRatio() {
+        final long lookups = cacheHits + cacheMisses;
+        return lookups != 0 ? (double) cacheHits / lookups : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "connection %d%s: cache hits=%d misses=%d writes=%d spills=%d used=%d bytes",
+                connectionId, primary ? " (primary)" : "", cacheHits, cacheMisses,
+                cacheWrites, cacheSpills, cacheUsedBytes);
+    }
+}
@@ -49,6 +49,11 @@ public final class SQLiteDatabaseConfiguration {
      */
     public static final String MEMORY_DB_PATH = ":memory:";
 
+    // The URI form of the paths of shared in-memory databases, which the memdb VFS
+    // shares between all the connections of the process that open the same name.
+    private static final String SHARED_MEMORY_DB_PREFIX = "file:/";
+    private static final String SHARED_MEMORY_DB_SUFFIX = "?vfs=memdb";
+
     /**
      * The database path.
      */
@@ -87,6 +92,147 @@ public final class SQLiteDatabaseConfiguration {
      */
     public boolean foreignKeyConstraintsEnabled;
 
+    /**
+     * The minimum number of non-primary connections kept open when write-ahead
+     * logging is enabled.  Idle connections are never closed below this count.
+     * Clamped to the maximum number of non-primary connections.
+     *
+     * Default is 0.
+     */
+    public int minReaderConnections;
+
+    /**
+     * The maximum number of non-primary connections the pool may open when write-ahead
+     * logging is enabled, or -1 to derive it from
+     * {@link SQLiteGlobal#getWALConnectionPoolSize()}.
+     *
+     * Default is -1.
+     */
+    public int maxReaderConnections;
+
+    /**
+     * The time in milliseconds after which an idle non-primary connection is
+     * closed to release its page cache, as long as more than
+     * {@link #minReaderConnections} are open.
+     *
+     * Default is {@link Long#MAX_VALUE}, which keeps idle connections open.
+     */
+    public long idleConnectionTimeoutMillis;
+
+    /**
+     * The time in milliseconds a request must have been waiting for a connection
+     * before the pool opens another non-primary connection beyond
+     * {@link #minReaderConnections}.  Zero opens a connection as soon as none is
+     * available.
+     *
+     * Default is 0.
+     */
+    public long connectionGrowthDelayMillis;
+
+    /**
+     * The longest time in milliseconds to wait for a connection from the pool
+     * before throwing {@link SQLiteConnectionPoolBusyException}.  Zero waits
+     * indefinitely.
+     *
+     * Default is 0.
+     */
+    public long connectionAcquireTimeoutMillis;
+
+    /**
+     * The most threads allowed to wait for a connection at once.  Further requests
+     * fail immediately with {@link SQLiteConnectionPoolBusyException}.  Zero allows
+     * any number of waiters.
+     *
+     * Default is 0.
+     */
+    public int maxConnectionWaiters;
+
+    /**
+     * The longest time in milliseconds a statement keeps retrying, with exponential
+     * backoff, while another connection holds a conflicting database lock before
+     * failing with {@link android.database.sqlite.SQLiteDatabaseLockedException}.
+     *
+     * Default is 2500.
+     */
+    public int busyTimeoutMillis;
+
+    /**
+     * The number of worker threads each connection may use to sort, set with
+     * <code>PRAGMA threads</code>.  They speed up <code>CREATE INDEX</code> and
+     * large <code>ORDER BY</code> queries whose rows do not fit in the page cache.
+     * The library is built with at most {@link SQLiteDatabase#MAX_SORTER_THREADS}.
+     *
+     * Default is 0.
+     */
+    public int sorterThreads;
+
+    /**
+     * How long in milliseconds the first write submitted to
+     * {@link SQLiteDatabase#executeGrouped} waits for more writes to join its
+     * transaction.  Zero only groups writes that queue up while a batch is running.
+     *
+     * Default is 0.
+     */
+    public long groupCommitWindowMillis;
+
+    /**
+     * The most writes committed together by {@link SQLiteDatabase#executeGrouped}.
+     *
+     * Default is 64.
+     */
+    public int groupCommitMaxBatchSize;
+
+    /**
+     * How long in milliseconds the database must go without using its primary
+     * connection before a background checkpoint copies the write-ahead log back
+     * into the database.  While background checkpoints are enabled, automatic
+     * checkpoints inside commits are disabled.  {@link Long#MAX_VALUE} disables
+     * background checkpoints.  Only applies in write-ahead logging mode.
+     *
+     * Default is {@link Long#MAX_VALUE}.
+     */
+    public long walCheckpointIdleMillis;
+
+    /**
+     * The number of bytes in the write-ahead log not yet copied into the database
+     * above which a background checkpoint truncates the log when no other connection
+     * is in use, and checkpoints even while readers are active.
+     *
+     * Default is 4 MiB.
+     */
+    public long walCheckpointTruncateBytes;
+
+    /**
+     * True while {@link SQLiteDatabase#beginBulkLoad} is in effect.  The primary
+     * connection then uses a larger page cache, suspends automatic checkpoints and,
+     * if {@link #bulkLoadSynchronousOff} is set, turns synchronous writes off.
+     *
+     * Default is false.
+     */
+    public boolean bulkLoad;
+
+    /**
+     * The size in KiB of the page cache of the primary connection during a bulk load.
+     *
+     * Default is 0.
+     */
+    public int bulkLoadCacheSizeKiB;
+
+    /**
+     * True to turn <code>PRAGMA synchronous</code> off during a bulk load.
+     *
+     * Default is false.
+     */
+    public boolean bulkLoadSynchronousOff;
+
+    /**
+     * True to record which tables each committed transaction changed, for
+     * {@link SQLiteDatabase#addTableChangeListener}.
+     *
+     * Default is false.
+     */
+    public boolean trackTableChanges;
+
     /**
      * The password to use with a SQLCipher database
      */
@@ -136,6 +282,12 @@ public final class SQLiteDatabaseConfiguration {
         // Set default values for optional parameters.
         maxSqlCacheSize = 25;
         locale = Locale.getDefault();
+        maxReaderConnections = -1;
+        idleConnectionTimeoutMillis = Long.MAX_VALUE;
+        busyTimeoutMillis = 2500;
+        groupCommitMaxBatchSize = 64;
+        walCheckpointIdleMillis = Long.MAX_VALUE;
+        walCheckpointTruncateBytes = 4 * 1024 * 1024;
     }
 
     /**
@@ -172,18 +324,79 @@ public final class SQLiteDatabaseConfiguration {
         maxSqlCacheSize = other.maxSqlCacheSize;
         locale = other.locale;
         foreignKeyConstraintsEnabled = other.foreignKeyConstraintsEnabled;
+        minReaderConnections = other.minReaderConnections;
+        maxReaderConnections = other.maxReaderConnections;
+        idleConnectionTimeoutMillis = other.idleConnectionTimeoutMillis;
+        connectionGrowthDelayMillis = other.connectionGrowthDelayMillis;
+        connectionAcquireTimeoutMillis = other.connectionAcquireTimeoutMillis;
+        maxConnectionWaiters = other.maxConnectionWaiters;
+        busyTimeoutMillis = other.busyTimeoutMillis;
+        sorterThreads = other.sorterThreads;
+        groupCommitWindowMillis = other.groupCommitWindowMillis;
+        groupCommitMaxBatchSize = other.groupCommitMaxBatchSize;
+        walCheckpointIdleMillis = other.walCheckpointIdleMillis;
+        walCheckpointTruncateBytes = other.walCheckpointTruncateBytes;
+        bulkLoad = other.bulkLoad;
+        bulkLoadCacheSizeKiB = other.bulkLoadCacheSizeKiB;
+        bulkLoadSynchronousOff = other.bulkLoadSynchronousOff;
+        trackTableChanges = other.trackTableChanges;
         password = other.password;
         databaseHook = other.databaseHook;
         customFunctions.clear();
         customFunctions.addAll(other.customFunctions);
     }
 
+    /**
+     * Returns true if the database is keyed, with a password or a raw key.
+     * @return True if the database is keyed.
+     */
+    public boolean hasKey() {
+        return password != null && password.length > 0;
+    }
+
     /**
      * Returns true if the database is in-memory.
      * @return True if the database is in-memory.
      */
     public boolean isInMemoryDb() {
-        return path.equalsIgnoreCase(MEMORY_DB_PATH);
+        return path.equalsIgnoreCase(MEMORY_DB_PATH) || isSharedMemoryDb();
+    }
+
+    /**
+     * Returns true if the database is a shared in-memory database, which several
+     * connections can read at the same time.
+     * @return True if the database is a shared in-memory database.
+     */
+    public boolean isSharedMemoryDb() {
+        return path.startsWith(SHARED_MEMORY_DB_PREFIX) && path.endsWith(SHARED_MEMORY_DB_SUFFIX);
+    }
+
+    /**
+     * Returns the path of the shared in-memory database with the given name.
+     * @param name The name of the database, unique within the process.
+     * @return The path to open the database with.
+     */
+    public static String getSharedMemoryDbPath(String name) {
+        if (name == null || name.isEmpty()) {
+            throw new IllegalArgumentException("name must not be empty.");
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if ("/?#%&".indexOf(name.charAt(i)) >= 0) {
+                throw new IllegalArgumentException("name must not contain '/', '?', '#', "
+                        + "'%' or '&'.");
+            }
+        }
+        return SHARED_MEMORY_DB_PREFIX + name + SHARED_MEMORY_DB_SUFFIX;
+    }
+
+    /**
+     * Returns true if the connection pool checkpoints the write-ahead log in the
+     * background instead of relying on automatic checkpoints.
+     * @return True if background checkpoints are enabled.
+     */
+    public boolean isBackgroundCheckpointEnabled() {
+        return walCheckpointIdleMillis != Long.MAX_VALUE && !isInMemoryDb()
+                && (openFlags & SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING) != 0;
     }
 
     private static String stripPathForLogs(String path) {
@@ -31,6 +31,7 @@ import android.os.CancellationSignal;
  */
 public final class SQLiteDirectCursorDriver implements SQLiteCursorDriver {
     private final SQLiteDatabase mDatabase;
+    private final SQLiteSession mSession; // null to use the thread's session
     private final String mEditTable; 
     private final String mSql;
     private final CancellationSignal mCancellationSignal;
@@ -38,14 +39,20 @@ public final class SQLiteDirectCursorDriver implements SQLiteCursorDriver {
 
     public SQLiteDirectCursorDriver(SQLiteDatabase db, String sql, String editTable,
             CancellationSignal cancellationSignal) {
+        this(db, null, sql, editTable, cancellationSignal);
+    }
+
+    SQLiteDirectCursorDriver(SQLiteDatabase db, SQLiteSession session, String sql,
+            String editTable, CancellationSignal cancellationSignal) {
         mDatabase = db;
+        mSession = session;
         mEditTable = editTable;
         mSql = sql;
         mCancellationSignal = cancellationSignal;
     }
 
     public Cursor query(CursorFactory factory, String[] selectionArgs) {
-        final SQLiteQuery query = new SQLiteQuery(mDatabase, mSql, mCancellationSignal);
+        final SQLiteQuery query = new SQLiteQuery(mDatabase, mSession, mSql, mCancellationSignal);
         final Cursor cursor;
         try {
             query.bindAllArgsAsStrings(selectionArgs);
@@ -65,7 +72,7 @@ public final class SQLiteDirectCursorDriver implements SQLiteCursorDriver {
     }
 
     public Cursor query(CursorFactory factory, Object... bindingArgs){
-        final SQLiteQuery query = new SQLiteQuery(mDatabase, mSql, mCancellationSignal);
+        final SQLiteQuery query = new SQLiteQuery(mDatabase, mSession, mSql, mCancellationSignal);
         final Cursor cursor;
         try {
             query.bindAllArgs(bindingArgs);
@@ -0,0 +1,167 @@
+package net.zetetic.database.sqlcipher;
+
+import android.os.SystemClock;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Coalesces small writes submitted concurrently by many threads into shared
+ * transactions, so that N writers pay for one commit instead of N.
+ * <p>
+ * Submitters block until their write has been committed.  The first submitter to
+ * find no batch in progress becomes the leader: it waits up to the configured
+ * window for more writes to arrive, or until the batch is full, then runs the
+ * batch in one transaction on its own session and hands every submitter its own
+ * result.  Writes that arrive while a batch is running queue up for the next one,
+ * which is led by one of their submitters.
+ * </p><p>
+ * If any write in a batch fails, or the commit itself fails, the batch transaction
+ * is rolled back and each write is retried in a transaction of its own, so a
+ * failing write only affects its own submitter.
+ * </p><p>
+ * This class is thread-safe.
+ * </p>
+ */
+final class SQLiteGroupCommitQueue {
+    private final SQLiteDatabase mDatabase;
+    private final Object mLock = new Object();
+
+    // INVARIANT: Guarded by mLock.
+    private final ArrayDeque<Write> mPendingWrites = new ArrayDeque<Write>();
+    private boolean mLeaderActive;
+
+    SQLiteGroupCommitQueue(SQLiteDatabase database) {
+        mDatabase = database;
+    }
+
+    /**
+     * Submits a write and waits until it has been committed as part of a batch.
+     *
+     * @param sql The SQL statement to execute.
+     * @param bindArgs The arguments to bind, or null if none.
+     * @param windowMillis How long a leader waits for more writes before running a batch.
+     * @param maxBatchSize The most writes in one batch.
+     * @return The number of rows changed by the write.
+     */
+    int execute(String sql, Object[] bindArgs, long windowMillis, int maxBatchSize) {
+        final Write write = new Write(sql, bindArgs);
+        boolean interrupted = false;
+        try {
+            synchronized (mLock) {
+                mPendingWrites.add(write);
+                if (mPendingWrites.size() >= maxBatchSize) {
+                    mLock.notifyAll();
+                }
+            }
+
+            for (;;) {
+                final ArrayList<Write> batch;
+                synchronized (mLock) {
+                    while (!write.mDone && mLeaderActive) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException ex) {
+                            // The write is queued and will run regardless, keep waiting.
+                            interrupted = true;
+                        }
+                    }
+                    if (write.mDone) {
+                        break;
+                    }
+
+                    // Lead the next batch.
+                    mLeaderActive = true;
+                    final long deadline = SystemClock.uptimeMillis() + windowMillis;
+                    long remaining = windowMillis;
+                    while (mPendingWrites.size() < maxBatchSize && remaining > 0) {
+                        try {
+                            mLock.wait(remaining);
+                        } catch (InterruptedException ex) {
+                            interrupted = true;
+                        }
+                        remaining = deadline - SystemClock.uptimeMillis();
+                    }
+                    final int size = Math.min(mPendingWrites.size(), maxBatchSize);
+                    batch = new ArrayList<Write>(size);
+                    for (int i = 0; i < size; i++) {
+                        batch.add(mPendingWrites.poll());
+                    }
+                }
+
+                try {
+                    runBatch(batch);
+                } finally {
+                    synchronized (mLock) {
+                        for (Write done : batch) {
+                            done.mDone = true;
+                        }
+                        mLeaderActive = false;
+                        mLock.notifyAll();
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (write.mException != null) {
+            throw write.mException;
+        }
+        return write.mResult;
+    }
+
+    // Runs a batch on the calling thread's session.
+    private void runBatch(ArrayList<Write> batch) {
+        if (batch.size() > 1) {
+            try {
+                mDatabase.beginTransactionNonExclusive();
+                try {
+                    for (Write write : batch) {
+                        write.mResult = executeWrite(write);
+                    }
+                    mDatabase.setTransactionSuccessful();
+                } finally {
+                    mDatabase.endTransaction(); // might throw if the commit fails
+                }
+                return;
+            } catch (RuntimeException ex) {
+                // Fall through and retry each write in its own transaction.
+            }
+        }
+
+        for (Write write : batch) {
+            try {
+                write.mResult = executeWrite(write);
+            } catch (RuntimeException ex) {
+                write.mException = ex;
+            }
+        }
+    }
+
+    private int executeWrite(Write write) {
+        SQLiteStatement statement = new SQLiteStatement(mDatabase, write.mSql, write.mBindArgs);
+        try {
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+
+    private static final class Write {
+        final String mSql;
+        final Object[] mBindArgs;
+
+        // Written by the leader before mDone is set under the queue lock.
+        int mResult;
+        RuntimeException mException;
+        boolean mDone;
+
+        Write(String sql, Object[] bindArgs) {
+            mSql = sql;
+            mBindArgs = bindArgs;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package net.zetetic.database.sqlcipher;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.os.CancellationSignal;
+import android.util.Log;
+
+import net.zetetic.database.DatabaseUtils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Locale;
+
+/**
+ * Copies the schema and the rows of an unencrypted database into a database, one
+ * table at a time, in batches of bounded transactions.
+ * <p>
+ * The source database is attached to the primary connection only, by executing
+ * <code>ATTACH</code> on the thread's session directly.  Unlike
+ * {@link SQLiteDatabase#execSQL}, this does not turn write-ahead logging off for
+ * good: the reader connections never see the attached database, and every batch
+ * runs in a transaction, so on the primary connection.  The source is detached
+ * again when the import ends.
+ * </p><p>
+ * Tables and indexes missing from the destination are created from the schema of
+ * the source, as are views and triggers once the rows have been copied.  Rows are
+ * appended to tables that already exist.  Virtual tables, the shadow tables in
+ * which they keep their contents and the internal tables of SQLite are not imported.
+ * </p>
+ */
+final class SQLiteImport {
+    private static final String TAG = "SQLiteImport";
+
+    // The name under which the source database is attached to the primary connection.
+    private static final String SOURCE_SCHEMA = "sqlcipher_import";
+
+    private final SQLiteDatabase mDatabase;
+    private final SQLiteImportOptions mOptions;
+    private final SQLiteSession mSession;
+    private final int mConnectionFlags;
+
+    private SQLiteImport(SQLiteDatabase database, SQLiteImportOptions options) {
+        mDatabase = database;
+        mOptions = options;
+        mSession = database.getThreadSession();
+        mConnectionFlags = database.getThreadDefaultConnectionFlags(false /*readOnly*/);
+    }
+
+    /**
+     * Imports an unencrypted database.
+     *
+     * @param database The database to import into.
+     * @param path The path of the unencrypted database.
+     * @param options How to copy the rows.
+     */
+    static void run(SQLiteDatabase database, String path, SQLiteImportOptions options) {
+        new SQLiteImport(database, options).run(path);
+    }
+
+    private void run(String path) {
+        final CancellationSignal cancellationSignal = mOptions.cancellationSignal;
+        mSession.execute("ATTACH DATABASE ? AS " + SOURCE_SCHEMA + " KEY '';",
+                new Object[] { path }, mConnectionFlags, cancellationSignal); // might throw
+        try {
+            final ArrayList<String> tables = new ArrayList<String>();
+            final ArrayList<String> tableSql = new ArrayList<String>();
+            final ArrayList<String> laterNames = new ArrayList<String>();
+            final ArrayList<String> laterSql = new ArrayList<String>();
+
+            mDatabase.beginTransaction();
+            try {
+                final HashSet<String> shadowTables = getShadowTables();
+                final Cursor cursor = mDatabase.rawQuery("SELECT type, name, rootpage, sql FROM "
+                        + SOURCE_SCHEMA + ".sqlite_master WHERE sql NOT NULL "
+                        + "AND name NOT LIKE 'sqlite\\_%' ESCAPE '\\' ORDER BY rowid;", null);
+                try {
+                    while (cursor.moveToNext()) {
+                        final String type = cursor.getString(0);
+                        final String name = cursor.getString(1);
+                        if (!type.equals("table")) {
+                            laterNames.add(name);
+                            laterSql.add(cursor.getString(3));
+                        } else if (cursor.getLong(2) != 0 && !shadowTables.contains(name)) {
+                            tables.add(name);
+                            tableSql.add(cursor.getString(3));
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
+
+            for (int i = 0; i < tables.size(); i++) {
+                copyTable(tables.get(i), tableSql.get(i), i, tables.size());
+            }
+
+            // Indexes are created once their table has been filled, and triggers so
+            // that they do not fire on the imported rows.
+            for (int i = 0; i < laterNames.size(); i++) {
+                if (cancellationSignal != null) {
+                    cancellationSignal.throwIfCanceled();
+                }
+                mDatabase.beginTransaction();
+                try {
+                    if (!existsInMain(laterNames.get(i))) {
+                        mSession.execute(laterSql.get(i), null, mConnectionFlags,
+                                cancellationSignal);
+                    }
+                    mDatabase.setTransactionSuccessful();
+                } finally {
+                    mDatabase.endTransaction();
+                }
+            }
+        } finally {
+            try {
+                mSession.execute("DETACH DATABASE " + SOURCE_SCHEMA + ";", null,
+                        mConnectionFlags, null);
+            } catch (SQLiteException ex) {
+                Log.e(TAG, "Failed to detach the imported database.", ex);
+            }
+        }
+    }
+
+    private void copyTable(String table, String sql, int copiedTables, int totalTables) {
+        final CancellationSignal cancellationSignal = mOptions.cancellationSignal;
+        final String quotedTable = quoteIdentifier(table);
+        final boolean withoutRowid = sql.toUpperCase(Locale.US).matches(
+                "(?s).*\\)\\s*WITHOUT\\s+ROWID\\s*;?\\s*$");
+
+        long copiedRows = 0;
+        Long lastRowid = null;
+        boolean done = false;
+        while (!done) {
+            if (cancellationSignal != null) {
+                cancellationSignal.throwIfCanceled();
+            }
+            mDatabase.beginTransaction();
+            try {
+                if (lastRowid == null && !existsInMain(table)) {
+                    mSession.execute(sql, null, mConnectionFlags, cancellationSignal);
+                }
+
+                if (withoutRowid) {
+                    copiedRows += mSession.executeForChangedRowCount("INSERT INTO main."
+                            + quotedTable + " SELECT * FROM " + SOURCE_SCHEMA + "."
+                            + quotedTable + ";", null, mConnectionFlags, cancellationSignal);
+                    done = true;
+                } else {
+                    // Finds the last rowid of the next batch, so that the batch can be
+                    // selected by a range of the rowid.
+                    final String lowerBound = lastRowid != null ? "rowid > " + lastRowid : "1";
+                    final long count = mSession.executeForLong("SELECT count(*) FROM (SELECT "
+                            + "rowid FROM " + SOURCE_SCHEMA + "." + quotedTable + " WHERE "
+                            + lowerBound + " ORDER BY rowid LIMIT " + mOptions.rowsPerTransaction
+                            + ");", null, mConnectionFlags, cancellationSignal);
+                    if (count == 0) {
+                        done = true;
+                    } else {
+                        final long upperBound = mSession.executeForLong("SELECT max(rowid) "
+                                + "FROM (SELECT rowid FROM " + SOURCE_SCHEMA + "." + quotedTable
+                                + " WHERE " + lowerBound + " ORDER BY rowid LIMIT "
+                                + mOptions.rowsPerTransaction + ");", null, mConnectionFlags,
+                                cancellationSignal);
+                        copiedRows += mSession.executeForChangedRowCount("INSERT INTO main."
+                                + quotedTable + " SELECT * FROM " + SOURCE_SCHEMA + "."
+                                + quotedTable + " WHERE " + lowerBound + " AND rowid <= "
+                                + upperBound + " ORDER BY rowid;", null, mConnectionFlags,
+                                cancellationSignal);
+                        lastRowid = upperBound;
+                        done = count < mOptions.rowsPerTransaction;
+                    }
+                }
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
+
+            if (mOptions.progressListener != null) {
+                mOptions.progressListener.onProgress(table, copiedRows,
+                        done ? copiedTables + 1 : copiedTables, totalTables);
+            }
+        }
+    }
+
+    // Gets the tables in which the virtual tables of the source keep their contents,
+    // as reported by the modules that own them.
+    private HashSet<String> getShadowTables() {
+        final HashSet<String> shadowTables = new HashSet<String>();
+        final Cursor cursor = mDatabase.rawQuery("PRAGMA " + SOURCE_SCHEMA + ".table_list;", null);
+        try {
+            final int nameIndex = cursor.getColumnIndexOrThrow("name");
+            final int typeIndex = cursor.getColumnIndexOrThrow("type");
+            while (cursor.moveToNext()) {
+                if ("shadow".equals(cursor.getString(typeIndex))) {
+                    shadowTables.add(cursor.getString(nameIndex));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return shadowTables;
+    }
+
+    private boolean existsInMain(String name) {
+        return DatabaseUtils.longForQuery(mDatabase,
+                "SELECT count(*) FROM main.sqlite_master WHERE name = ?;",
+                new String[] { name }) != 0;
+    }
+
+    private static String quoteIdentifier(String name) {
+        return "\"" + name.replace("\"", "\"\"") + "\"";
+    }
+}
@@ -0,0 +1,60 @@
+package net.zetetic.database.sqlcipher;
+
+import android.os.CancellationSignal;
+
+/**
+ * Describes how {@link SQLiteDatabase#importUnencryptedDatabase} copies the rows of
+ * another database.
+ * <p>
+ * Each table is copied in batches of {@link #rowsPerTransaction} rows, each in a
+ * transaction of its own, so that other threads can use the database between
+ * batches and a failure only loses the batch in progress.
+ * </p>
+ */
+public final class SQLiteImportOptions {
+    /**
+     * Receives the progress of an import.
+     */
+    public interface ProgressListener {
+        /**
+         * Called on the importing thread after each batch.
+         *
+         * @param table The table being copied.
+         * @param copiedRows The number of rows of the table copied so far.
+         * @param copiedTables The number of tables copied entirely so far.
+         * @param totalTables The number of tables to copy.
+         */
+        void onProgress(String table, long copiedRows, int copiedTables, int totalTables);
+    }
+
+    /**
+     * The largest number of rows copied in each transaction.  Tables declared
+     * WITHOUT ROWID are copied in one transaction regardless.
+     *
+     * Default is 5000.
+     */
+    public int rowsPerTransaction;
+
+    /**
+     * The listener told about the progress of the import, or null if none.
+     *
+     * Default is null.
+     */
+    public ProgressListener progressListener;
+
+    /**
+     * A signal to cancel the import in progress, or null if none.  A canceled import
+     * throws {@link android.os.OperationCanceledException} and keeps the batches
+     * already committed.
+     *
+     * Default is null.
+     */
+    public CancellationSignal cancellationSignal;
+
+    /**
+     * Creates import options with default values.
+     */
+    public SQLiteImportOptions() {
+        rowsPerTransaction = 5000;
+    }
+}
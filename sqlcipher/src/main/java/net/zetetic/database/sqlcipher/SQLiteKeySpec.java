@@ -0,0 +1,258 @@
+package net.zetetic.database.sqlcipher;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Locale;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Wraps the keys of SQLCipher databases so that they can be stored and used to
+ * open a database without deriving the key from a password again.
+ * <p>
+ * A wrapped key holds either a raw 256-bit key, or a key derived from a password
+ * together with the salt of the database, encrypted with AES-GCM under an AES key
+ * supplied by the caller.  That key may live in the Android keystore, as long as it
+ * allows encryption and decryption in GCM mode without padding, since it is only
+ * used through {@link Cipher}.  Open a database with a wrapped key with
+ * {@link SQLiteDatabase#openDatabaseWithWrappedKey}.  A database opened with a
+ * password exports its derived key with {@link SQLiteDatabase#exportWrappedKey}.
+ * </p>
+ */
+public final class SQLiteKeySpec {
+    /** The size in bytes of a SQLCipher key. */
+    public static final int KEY_SIZE = 32;
+
+    /** The size in bytes of a SQLCipher salt. */
+    public static final int SALT_SIZE = 16;
+
+    private static final String WRAP_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int WRAP_IV_SIZE = 12;
+    private static final int WRAP_TAG_BITS = 128;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private SQLiteKeySpec() {
+    }
+
+    /**
+     * Wraps a raw key.  The database uses the key as is, and its salt is read from
+     * the database file, or chosen at random when the file is created.
+     *
+     * @param key The {@link #KEY_SIZE} bytes of the key.
+     * @param keyWrappingKey The AES key to wrap it with.
+     * @return The wrapped key.
+     */
+    public static byte[] wrapRawKey(byte[] key, SecretKey keyWrappingKey) {
+        checkSize(key, KEY_SIZE, "key");
+        final byte[] keySpec = toKeySpec(key, null);
+        try {
+            return wrap(keySpec, keyWrappingKey);
+        } finally {
+            Arrays.fill(keySpec, (byte) 0);
+        }
+    }
+
+    /**
+     * Wraps a key derived from a password with the salt it was derived with.
+     *
+     * @param key The {@link #KEY_SIZE} bytes of the derived key.
+     * @param salt The {@link #SALT_SIZE} bytes of the salt of the database.
+     * @param keyWrappingKey The AES key to wrap it with.
+     * @return The wrapped key.
+     */
+    public static byte[] wrapDerivedKey(byte[] key, byte[] salt, SecretKey keyWrappingKey) {
+        checkSize(key, KEY_SIZE, "key");
+        checkSize(salt, SALT_SIZE, "salt");
+        final byte[] keySpec = toKeySpec(key, salt);
+        try {
+            return wrap(keySpec, keyWrappingKey);
+        } finally {
+            Arrays.fill(keySpec, (byte) 0);
+        }
+    }
+
+    // Called by SQLiteDatabase only.
+    // Returns the key in the x'...' form SQLCipher accepts as a password.
+    static byte[] unwrap(byte[] wrappedKey, SecretKey keyWrappingKey) {
+        if (wrappedKey == null || wrappedKey.length <= WRAP_IV_SIZE) {
+            throw new IllegalArgumentException("wrappedKey is not a wrapped key.");
+        }
+        checkWrappingKey(keyWrappingKey);
+        final byte[] keySpec;
+        try {
+            final Cipher cipher = Cipher.getInstance(WRAP_TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, keyWrappingKey,
+                    new GCMParameterSpec(WRAP_TAG_BITS, wrappedKey, 0, WRAP_IV_SIZE));
+            keySpec = cipher.doFinal(wrappedKey, WRAP_IV_SIZE, wrappedKey.length - WRAP_IV_SIZE);
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalArgumentException(
+                    "wrappedKey could not be unwrapped with keyWrappingKey.", ex);
+        }
+        if (!isKeySpec(keySpec)) {
+            Arrays.fill(keySpec, (byte) 0);
+            throw new IllegalArgumentException("wrappedKey is not a wrapped key.");
+        }
+        return keySpec;
+    }
+
+    // Called by SQLiteDatabase only.
+    // Returns the wrapped derived key and salt of a database keyed with the given
+    // password, or x'...' key, using the KDF settings read from one of its connections.
+    static byte[] export(byte[] password, String saltHex, int kdfIter, String kdfAlgorithm,
+            SecretKey keyWrappingKey) {
+        final byte[] salt = fromHex(saltHex, 0, saltHex.length());
+        checkSize(salt, SALT_SIZE, "salt");
+        final byte[] key;
+        if (isKeySpec(password)) {
+            // Already a raw key, which SQLCipher uses without derivation.
+            key = fromHex(new String(password, 2, KEY_SIZE * 2, ASCII), 0, KEY_SIZE * 2);
+        } else {
+            key = pbkdf2(toMacAlgorithm(kdfAlgorithm), password, salt, kdfIter, KEY_SIZE);
+        }
+        try {
+            return wrapDerivedKey(key, salt, keyWrappingKey);
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    private static boolean isKeySpec(byte[] password) {
+        if (password == null
+                || (password.length != KEY_SIZE * 2 + 3
+                        && password.length != (KEY_SIZE + SALT_SIZE) * 2 + 3)
+                || (password[0] != 'x' && password[0] != 'X') || password[1] != '\''
+                || password[password.length - 1] != '\'') {
+            return false;
+        }
+        for (int i = 2; i < password.length - 1; i++) {
+            if (Character.digit(password[i], 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] wrap(byte[] keySpec, SecretKey keyWrappingKey) {
+        checkWrappingKey(keyWrappingKey);
+        try {
+            // The cipher picks the IV, as keystore keys don't accept one from the caller.
+            final Cipher cipher = Cipher.getInstance(WRAP_TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, keyWrappingKey);
+            final byte[] iv = cipher.getIV();
+            if (iv == null || iv.length != WRAP_IV_SIZE) {
+                throw new IllegalStateException("Unexpected IV size for " + WRAP_TRANSFORMATION);
+            }
+            final byte[] sealed = cipher.doFinal(keySpec);
+            final byte[] wrappedKey = new byte[WRAP_IV_SIZE + sealed.length];
+            System.arraycopy(iv, 0, wrappedKey, 0, WRAP_IV_SIZE);
+            System.arraycopy(sealed, 0, wrappedKey, WRAP_IV_SIZE, sealed.length);
+            return wrappedKey;
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("Could not wrap the key.", ex);
+        }
+    }
+
+    private static void checkWrappingKey(SecretKey keyWrappingKey) {
+        if (keyWrappingKey == null || !"AES".equalsIgnoreCase(keyWrappingKey.getAlgorithm())) {
+            throw new IllegalArgumentException("keyWrappingKey must be an AES key.");
+        }
+    }
+
+    // Returns x'<key><salt>' in the ASCII form SQLCipher parses.
+    private static byte[] toKeySpec(byte[] key, byte[] salt) {
+        final int size = key.length + (salt != null ? salt.length : 0);
+        final byte[] keySpec = new byte[size * 2 + 3];
+        keySpec[0] = 'x';
+        keySpec[1] = '\'';
+        int offset = appendHex(keySpec, 2, key);
+        if (salt != null) {
+            offset = appendHex(keySpec, offset, salt);
+        }
+        keySpec[offset] = '\'';
+        return keySpec;
+    }
+
+    private static int appendHex(byte[] out, int offset, byte[] bytes) {
+        for (byte b : bytes) {
+            out[offset++] = (byte) Character.forDigit((b >> 4) & 0xf, 16);
+            out[offset++] = (byte) Character.forDigit(b & 0xf, 16);
+        }
+        return offset;
+    }
+
+    private static byte[] fromHex(String hex, int start, int end) {
+        if ((end - start) % 2 != 0) {
+            throw new IllegalArgumentException("Not a hex string.");
+        }
+        final byte[] bytes = new byte[(end - start) / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            final int high = Character.digit(hex.charAt(start + i * 2), 16);
+            final int low = Character.digit(hex.charAt(start + i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Not a hex string.");
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+
+    private static void checkSize(byte[] bytes, int size, String name) {
+        if (bytes == null || bytes.length != size) {
+            throw new IllegalArgumentException(name + " must be " + size + " bytes.");
+        }
+    }
+
+    private static String toMacAlgorithm(String kdfAlgorithm) {
+        final String algorithm = kdfAlgorithm != null
+                ? kdfAlgorithm.toUpperCase(Locale.US) : "";
+        if (algorithm.equals("PBKDF2_HMAC_SHA512")) {
+            return "HmacSHA512";
+        } else if (algorithm.equals("PBKDF2_HMAC_SHA256")) {
+            return "HmacSHA256";
+        } else if (algorithm.equals("PBKDF2_HMAC_SHA1")) {
+            return "HmacSHA1";
+        }
+        throw new IllegalStateException("Unsupported KDF algorithm: " + kdfAlgorithm);
+    }
+
+    // PBKDF2 as specified by RFC 8018, written out because the SHA-2 variants of
+    // SecretKeyFactory are only available from API 26.
+    private static byte[] pbkdf2(String macAlgorithm, byte[] password, byte[] salt,
+            int iterations, int length) {
+        try {
+            final Mac mac = Mac.getInstance(macAlgorithm);
+            mac.init(new SecretKeySpec(password, macAlgorithm));
+            final int hashLength = mac.getMacLength();
+            final byte[] result = new byte[length];
+            final byte[] u = new byte[hashLength];
+            final byte[] t = new byte[hashLength];
+            for (int block = 1, offset = 0; offset < length; block++, offset += hashLength) {
+                mac.update(salt);
+                mac.update(new byte[] {
+                        (byte) (block >>> 24), (byte) (block >>> 16),
+                        (byte) (block >>> 8), (byte) block });
+                mac.doFinal(u, 0);
+                System.arraycopy(u, 0, t, 0, hashLength);
+                for (int i = 1; i < iterations; i++) {
+                    mac.update(u);
+                    mac.doFinal(u, 0);
+                    for (int j = 0; j < hashLength; j++) {
+                        t[j] ^= u[j];
+                    }
+                }
+                System.arraycopy(t, 0, result, offset, Math.min(hashLength, length - offset));
+            }
+            Arrays.fill(u, (byte) 0);
+            Arrays.fill(t, (byte) 0);
+            return result;
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("Could not derive the key.", ex);
+        }
+    }
+}
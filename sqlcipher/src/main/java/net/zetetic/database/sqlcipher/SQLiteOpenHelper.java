@@ -34,6 +34,12 @@ import java.io.File;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * A helper class to manage database creation and version management.
@@ -70,13 +76,30 @@ public abstract class SQLiteOpenHelper implements SupportSQLiteOpenHelper {
     private final int mNewVersion;
     private final int mMinimumSupportedVersion;
 
-    private SQLiteDatabase mDatabase;
+    // Read without holding the lock by getWritableDatabaseAsync().
+    private volatile SQLiteDatabase mDatabase;
     private byte[] mPassword;
     private boolean mIsInitializing;
     private boolean mEnableWriteAheadLogging;
     private final DatabaseErrorHandler mErrorHandler;
     private final SQLiteDatabaseHook mDatabaseHook;
 
+    // Guards the state of getWritableDatabaseAsync().  Unlike the lock of the helper
+    // itself, it is never held while the database is being opened.
+    private final Object mAsyncLock = new Object();
+
+    // The open started by getWritableDatabaseAsync() that has not finished yet, and
+    // the worker thread it runs on.
+    // INVARIANT: Guarded by mAsyncLock.
+    private PendingOpen mPendingOpen;
+    private SQLiteAsyncExecutor mAsyncExecutor;
+
+    // True while the worker thread is opening the database, and the number of times
+    // close() has been called, so that an open overtaken by close() undoes itself.
+    // INVARIANT: Guarded by mAsyncLock.
+    private boolean mAsyncOpening;
+    private int mCloseCount;
+
     /**
      * Create a helper object to create, open, and/or manage a database.
      * This method always returns very quickly.  The database is not actually
@@ -303,6 +326,57 @@ public abstract class SQLiteOpenHelper implements SupportSQLiteOpenHelper {
         }
     }
 
+    /**
+     * Create and/or open a database that will be used for reading and writing, on a
+     * worker thread.
+     * <p>
+     * Key derivation, key verification, {@link #onConfigure}, {@link #onCreate},
+     * {@link #onUpgrade} and {@link #onOpen} all run on the worker thread, so this
+     * method may be called from the application main thread.  The database is
+     * opened only once however many callers race: a call made while an open is in
+     * progress shares its result, and {@link #getWritableDatabase} waits for it.
+     * Once the database is open, the returned future is already done.
+     * </p><p>
+     * Canceling the returned future only stops an open that has not started yet,
+     * and does so for every caller sharing it.  Calling {@link #close} does not wait
+     * for an open in progress: the open closes the database once it is done and
+     * fails with {@link IllegalStateException}, and an open that has not started
+     * yet is canceled.
+     * </p>
+     *
+     * @param callback The callback to notify with the database or the failure, or
+     * null to only use the returned future.
+     * @return A future for the read/write database object, valid until {@link #close}
+     * is called.
+     */
+    public Future<SQLiteDatabase> getWritableDatabaseAsync(
+            SQLiteDatabase.AsyncCallback<SQLiteDatabase> callback) {
+        final PendingOpen open;
+        final SQLiteDatabase db;
+        synchronized (mAsyncLock) {
+            if (mPendingOpen != null) {
+                mPendingOpen.addCallbackLocked(callback);
+                return mPendingOpen;
+            }
+            db = mDatabase;
+            if (db == null || !db.isOpen() || db.isReadOnly()) {
+                mPendingOpen = new PendingOpen(mCloseCount);
+                mPendingOpen.addCallbackLocked(callback);
+                if (mAsyncExecutor == null) {
+                    mAsyncExecutor = new SQLiteAsyncExecutor(
+                            mName != null ? mName : SQLiteDatabaseConfiguration.MEMORY_DB_PATH);
+                }
+                mAsyncExecutor.execute(mPendingOpen, 1);
+                return mPendingOpen;
+            }
+            open = new PendingOpen(mCloseCount);
+            open.addCallbackLocked(callback);
+        }
+        // Completes the future and notifies the callback outside of the lock.
+        open.set(db);
+        return open;
+    }
+
     private SQLiteDatabase getDatabaseLocked(boolean writable) {
         if (mDatabase != null) {
             if (!mDatabase.isOpen()) {
@@ -427,15 +501,140 @@ public abstract class SQLiteOpenHelper implements SupportSQLiteOpenHelper {
         }
     }
 
+    // An open started by getWritableDatabaseAsync(), which notifies every caller that
+    // shares it once it is done.
+    private final class PendingOpen extends FutureTask<SQLiteDatabase> {
+        // INVARIANT: Guarded by mAsyncLock.
+        private final ArrayList<SQLiteDatabase.AsyncCallback<SQLiteDatabase>> mCallbacks =
+                new ArrayList<SQLiteDatabase.AsyncCallback<SQLiteDatabase>>();
+
+        PendingOpen(final int closeCount) {
+            super(new Callable<SQLiteDatabase>() {
+                @Override
+                public SQLiteDatabase call() {
+                    return openDatabaseAsync(closeCount);
+                }
+            });
+        }
+
+        void addCallbackLocked(SQLiteDatabase.AsyncCallback<SQLiteDatabase> callback) {
+            if (callback != null) {
+                mCallbacks.add(callback);
+            }
+        }
+
+        // Overridden so that getWritableDatabaseAsync() can complete the future
+        // with a database that is already open.
+        @Override
+        protected void set(SQLiteDatabase result) {
+            super.set(result);
+        }
+
+        @Override
+        protected void done() {
+            final ArrayList<SQLiteDatabase.AsyncCallback<SQLiteDatabase>> callbacks;
+            synchronized (mAsyncLock) {
+                // Callers that come after this point see the open database, or
+                // start over if the open failed.
+                if (mPendingOpen == this) {
+                    mPendingOpen = null;
+                }
+                callbacks = new ArrayList<SQLiteDatabase.AsyncCallback<SQLiteDatabase>>(
+                        mCallbacks);
+                mCallbacks.clear();
+            }
+
+            SQLiteDatabase result = null;
+            Throwable error = null;
+            try {
+                result = get();
+            } catch (ExecutionException ex) {
+                error = ex.getCause();
+            } catch (CancellationException ex) {
+                error = ex;
+            } catch (InterruptedException ex) {
+                // Can't happen, the open is already done.
+                error = ex;
+            }
+            for (SQLiteDatabase.AsyncCallback<SQLiteDatabase> callback : callbacks) {
+                try {
+                    if (error == null) {
+                        callback.onResult(result);
+                    } else {
+                        callback.onError(error);
+                    }
+                } catch (RuntimeException ex) {
+                    Log.e(TAG, "Async open callback threw an exception.", ex);
+                }
+            }
+        }
+    }
+
+    // Called on the worker thread by PendingOpen only.
+    private SQLiteDatabase openDatabaseAsync(int closeCount) {
+        synchronized (mAsyncLock) {
+            if (closeCount != mCloseCount) {
+                throw new IllegalStateException("The helper was closed before the "
+                        + "database was opened.");
+            }
+            mAsyncOpening = true;
+        }
+
+        synchronized (this) {
+            boolean closed;
+            final SQLiteDatabase db;
+            try {
+                db = getDatabaseLocked(true);
+            } finally {
+                synchronized (mAsyncLock) {
+                    mAsyncOpening = false;
+                    closed = closeCount != mCloseCount;
+                }
+            }
+            if (closed) {
+                // close() was called meanwhile and left the database to us.  Closed
+                // before releasing the lock, so that no caller that came after
+                // close() can be handed it.
+                mDatabase = null;
+                db.close();
+                throw new IllegalStateException("The helper was closed while the "
+                        + "database was being opened.");
+            }
+            return db;
+        }
+    }
+
     /**
      * Close any open database object.
+     * <p>
+     * If {@link #getWritableDatabaseAsync} is opening the database, this method
+     * returns without waiting, and the database is closed once the open is done.
+     * A later call to {@link #getWritableDatabase} waits for that and opens the
+     * database again.
+     * </p>
      */
-    public synchronized void close() {
-        if (mIsInitializing) throw new IllegalStateException("Closed during initialization");
+    public void close() {
+        final PendingOpen pendingOpen;
+        synchronized (mAsyncLock) {
+            mCloseCount += 1;
+            if (mAsyncOpening) {
+                return;
+            }
+            pendingOpen = mPendingOpen;
+            mPendingOpen = null;
+        }
+        if (pendingOpen != null) {
+            // The open has not started yet, and fails if it starts anyway.
+            pendingOpen.cancel(false);
+        }
 
-        if (mDatabase != null && mDatabase.isOpen()) {
-            mDatabase.close();
-            mDatabase = null;
+        synchronized (this) {
+            if (mIsInitializing) throw new IllegalStateException("Closed during initialization");
+
+            if (mDatabase != null && mDatabase.isOpen()) {
+                mDatabase.close();
+                mDatabase = null;
+            }
         }
     }
 
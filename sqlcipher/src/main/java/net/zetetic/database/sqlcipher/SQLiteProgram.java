@@ -38,6 +38,7 @@ public abstract class SQLiteProgram extends SQLiteClosable implements SupportSQL
     private static final String[] EMPTY_STRING_ARRAY = new String[0];
 
     private final SQLiteDatabase mDatabase;
+    private final SQLiteSession mSession; // null to use the thread's session
     private final String mSql;
     private final boolean mReadOnly;
     private final String[] mColumnNames;
@@ -46,7 +47,13 @@ public abstract class SQLiteProgram extends SQLiteClosable implements SupportSQL
 
     SQLiteProgram(SQLiteDatabase db, String sql, Object[] bindArgs,
             CancellationSignal cancellationSignalForPrepare) {
+        this(db, null, sql, bindArgs, cancellationSignalForPrepare);
+    }
+
+    SQLiteProgram(SQLiteDatabase db, SQLiteSession session, String sql, Object[] bindArgs,
+            CancellationSignal cancellationSignalForPrepare) {
         mDatabase = db;
+        mSession = session;
         mSql = sql.trim();
 
         int n = DatabaseUtils.getSqlStatementType(mSql);
@@ -62,8 +69,7 @@ public abstract class SQLiteProgram extends SQLiteClosable implements SupportSQL
             default:
                 boolean assumeReadOnly = (n == DatabaseUtils.STATEMENT_SELECT);
                 SQLiteStatementInfo info = new SQLiteStatementInfo();
-                db.getThreadSession().prepare(mSql,
-                        db.getThreadDefaultConnectionFlags(assumeReadOnly),
+                getSession().prepare(mSql, getConnectionFlags(assumeReadOnly),
                         cancellationSignalForPrepare, info);
                 mReadOnly = info.readOnly;
                 mColumnNames = info.columnNames;
@@ -105,12 +111,18 @@ public abstract class SQLiteProgram extends SQLiteClosable implements SupportSQL
 
     /** @hide */
     protected final SQLiteSession getSession() {
-        return mDatabase.getThreadSession();
+        return mSession != null ? mSession : mDatabase.getThreadSession();
     }
 
     /** @hide */
     protected final int getConnectionFlags() {
-        return mDatabase.getThreadDefaultConnectionFlags(mReadOnly);
+        return getConnectionFlags(mReadOnly);
+    }
+
+    private int getConnectionFlags(boolean readOnly) {
+        // Explicit sessions are not bound to a thread, so the flags do not depend on it.
+        return mSession != null ? SQLiteDatabase.getDefaultConnectionFlags(readOnly)
+                : mDatabase.getThreadDefaultConnectionFlags(readOnly);
     }
 
     /** @hide */
@@ -41,7 +41,12 @@ public final class SQLiteQuery extends SQLiteProgram {
     private final CancellationSignal mCancellationSignal;
 
     SQLiteQuery(SQLiteDatabase db, String query, CancellationSignal cancellationSignal) {
-        super(db, query, null, cancellationSignal);
+        this(db, null, query, cancellationSignal);
+    }
+
+    SQLiteQuery(SQLiteDatabase db, SQLiteSession session, String query,
+            CancellationSignal cancellationSignal) {
+        super(db, session, query, null, cancellationSignal);
 
         mCancellationSignal = cancellationSignal;
     }
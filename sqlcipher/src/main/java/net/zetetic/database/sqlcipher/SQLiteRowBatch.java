@@ -0,0 +1,35 @@
+package net.zetetic.database.sqlcipher;
+
+import net.zetetic.database.AbstractWindowedCursor;
+import net.zetetic.database.CursorWindow;
+
+/**
+ * A cursor over one batch of rows delivered by a {@link SQLiteRowPublisher}.
+ * <p>
+ * The batch owns its cursor window, which holds every row of the batch, so
+ * reading it never touches the database.  Closing the batch frees the window.
+ * </p>
+ */
+final class SQLiteRowBatch extends AbstractWindowedCursor {
+    private final String[] mColumnNames;
+
+    SQLiteRowBatch(String[] columnNames, CursorWindow window) {
+        mColumnNames = columnNames;
+        setWindow(window);
+    }
+
+    @Override
+    public int getCount() {
+        return mWindow != null ? mWindow.getNumRows() : 0;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        return true;
+    }
+}
@@ -0,0 +1,288 @@
+package net.zetetic.database.sqlcipher;
+
+import android.database.Cursor;
+import android.os.CancellationSignal;
+import android.util.Log;
+
+import net.zetetic.database.CursorWindow;
+
+/**
+ * Streams the result set of a query in batches, following the
+ * <a href="https://www.reactive-streams.org/">Reactive Streams</a> protocol.
+ * Obtained from {@link SQLiteDatabase#queryStream}.
+ * <p>
+ * The {@link Subscriber} and {@link Subscription} interfaces mirror those of
+ * <code>org.reactivestreams</code> and <code>java.util.concurrent.Flow</code>, which
+ * are not available on every supported API level, so adapting to either is trivial.
+ * Every element is a batch of rows; {@link Subscription#request(long)} asks for
+ * more batches.
+ * </p><p>
+ * Each subscription runs the query separately.  The query starts when the first
+ * batch is requested, and rows are stepped and decrypted only as batches are
+ * requested, so a slow subscriber never causes the whole result set to be read
+ * into memory.  The subscription holds a connection from the pool from the first
+ * request until all rows have been delivered, the query fails or the subscription
+ * is canceled.  When write-ahead logging is enabled that is always a reader
+ * connection, so writers are not blocked; otherwise it is the only connection.
+ * </p><p>
+ * Signals are delivered on the database's worker threads, one at a time.
+ * Each batch delivered to {@link Subscriber#onNext} is owned by the subscriber,
+ * which must close it.
+ * </p><p>
+ * This class is thread-safe.
+ * </p>
+ */
+public final class SQLiteRowPublisher {
+    private static final String TAG = "SQLiteRowPublisher";
+
+    private final SQLiteDatabase mDatabase;
+    private final String mSql;
+    private final Object[] mBindArgs;
+    private final int mMaxRowsPerBatch;
+
+    SQLiteRowPublisher(SQLiteDatabase database, String sql, Object[] bindArgs,
+            int maxRowsPerBatch) {
+        mDatabase = database;
+        mSql = sql;
+        mBindArgs = bindArgs;
+        mMaxRowsPerBatch = maxRowsPerBatch;
+    }
+
+    /**
+     * Starts a new subscription that runs the query and delivers its rows to the
+     * subscriber.  {@link Subscriber#onSubscribe} is called on the calling thread.
+     *
+     * @param subscriber The subscriber.
+     */
+    public void subscribe(Subscriber subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber must not be null.");
+        }
+        subscriber.onSubscribe(new RowSubscription(subscriber));
+    }
+
+    /**
+     * Receives the batches of a {@link SQLiteRowPublisher}.
+     */
+    public interface Subscriber {
+        /**
+         * Called once before any other method with the subscription to request
+         * batches from.  No rows are read until batches are requested.
+         */
+        public void onSubscribe(Subscription subscription);
+
+        /**
+         * Called with the next batch of rows, once per requested batch.
+         * The subscriber must close the batch.
+         */
+        public void onNext(Cursor batch);
+
+        /**
+         * Called once if the query fails.  No further methods are called.
+         */
+        public void onError(Throwable error);
+
+        /**
+         * Called once after the last batch has been delivered.  No further methods
+         * are called.
+         */
+        public void onComplete();
+    }
+
+    /**
+     * Controls the flow of batches to a {@link Subscriber}.
+     */
+    public interface Subscription {
+        /**
+         * Asks for up to <code>n</code> more batches.  Requests add up.
+         *
+         * @param n The number of batches, greater than 0.
+         */
+        public void request(long n);
+
+        /**
+         * Stops the query and returns its connection to the pool.  Some signals
+         * that were already underway may still be delivered.
+         */
+        public void cancel();
+    }
+
+    private final class RowSubscription implements Subscription, Runnable {
+        private final Subscriber mSubscriber;
+        private final CancellationSignal mCancellationSignal = new CancellationSignal();
+        private final Object mLock = new Object();
+
+        // INVARIANT: Guarded by mLock.
+        private long mDemandLocked;
+        private boolean mDrainingLocked; // true while a thread owns the subscription
+        private boolean mCanceledLocked;
+        private IllegalArgumentException mBadRequestLocked;
+
+        // Only touched by the thread that owns the subscription.
+        private boolean mStarted;
+        private boolean mTerminated;
+        private SQLiteConnectionPool mPool;
+        private SQLiteConnection mConnection;
+        private SQLiteConnection.RowStream mRowStream;
+
+        RowSubscription(Subscriber subscriber) {
+            mSubscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized (mLock) {
+                if (mCanceledLocked) {
+                    return;
+                }
+                if (n <= 0) {
+                    mBadRequestLocked = new IllegalArgumentException(
+                            "Requested batch count must be greater than 0 but was " + n + ".");
+                } else {
+                    mDemandLocked = mDemandLocked + n < 0 ? Long.MAX_VALUE : mDemandLocked + n;
+                }
+                if (mDrainingLocked) {
+                    return;
+                }
+                mDrainingLocked = true;
+            }
+
+            try {
+                mDatabase.executeAsyncTask(this);
+            } catch (RuntimeException ex) {
+                // The database was closed.
+                terminate(ex);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            final boolean ownsSubscription;
+            synchronized (mLock) {
+                if (mCanceledLocked) {
+                    return;
+                }
+                mCanceledLocked = true;
+                ownsSubscription = !mDrainingLocked;
+                mDrainingLocked = true;
+            }
+
+            mCancellationSignal.cancel();
+            if (ownsSubscription) {
+                terminate(null);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (;;) {
+                    final boolean canceled;
+                    final IllegalArgumentException badRequest;
+                    synchronized (mLock) {
+                        canceled = mCanceledLocked;
+                        badRequest = mBadRequestLocked;
+                        if (!canceled && badRequest == null) {
+                            if (mDemandLocked == 0) {
+                                mDrainingLocked = false;
+                                return;
+                            }
+                            if (mDemandLocked != Long.MAX_VALUE) {
+                                mDemandLocked -= 1;
+                            }
+                        }
+                    }
+                    if (canceled || badRequest != null) {
+                        terminate(badRequest);
+                        return;
+                    }
+
+                    if (!mStarted) {
+                        start();
+                    }
+
+                    CursorWindow window = new CursorWindow(mSql);
+                    final int rows;
+                    try {
+                        rows = mRowStream.fillWindow(window, mMaxRowsPerBatch,
+                                mCancellationSignal);
+                    } catch (RuntimeException ex) {
+                        window.close();
+                        throw ex;
+                    }
+                    if (rows == 0) {
+                        window.close();
+                    } else {
+                        mSubscriber.onNext(new SQLiteRowBatch(mRowStream.getColumnNames(),
+                                window));
+                    }
+                    if (mRowStream.isDone()) {
+                        terminate(null);
+                        return;
+                    }
+                }
+            } catch (RuntimeException ex) {
+                terminate(ex);
+            }
+        }
+
+        private void start() {
+            mDatabase.acquireReference();
+            mStarted = true;
+            mPool = mDatabase.getConnectionPool();
+            int connectionFlags = mDatabase.getThreadDefaultConnectionFlags(true /*readOnly*/);
+            if (mPool.getMaxConnectionPoolSize() > 1) {
+                // Never hold the primary connection for the whole subscription, or
+                // writers would wait for the subscriber.
+                connectionFlags |= SQLiteConnectionPool.CONNECTION_FLAG_NON_PRIMARY_CONNECTION;
+            }
+            mConnection = mPool.acquireConnection(mSql, connectionFlags,
+                    mCancellationSignal); // might throw
+            mRowStream = mConnection.openRowStream(mSql, mBindArgs); // might throw
+        }
+
+        // Releases the connection and, unless the subscription was canceled, tells the
+        // subscriber that it failed with the given error or completed if there is none.
+        // Only called by the thread that owns the subscription.
+        private void terminate(RuntimeException error) {
+            if (mTerminated) {
+                return;
+            }
+            mTerminated = true;
+
+            final boolean canceled;
+            synchronized (mLock) {
+                canceled = mCanceledLocked;
+                mCanceledLocked = true;
+            }
+
+            try {
+                if (mRowStream != null) {
+                    mRowStream.close();
+                    mRowStream = null;
+                }
+            } finally {
+                if (mConnection != null) {
+                    mPool.releaseConnection(mConnection);
+                    mConnection = null;
+                }
+                if (mStarted) {
+                    mDatabase.releaseReference();
+                }
+            }
+
+            if (canceled) {
+                return;
+            }
+            try {
+                if (error != null) {
+                    mSubscriber.onError(error);
+                } else {
+                    mSubscriber.onComplete();
+                }
+            } catch (RuntimeException ex) {
+                Log.e(TAG, "Subscriber threw an exception from a terminal signal.", ex);
+            }
+        }
+    }
+}
@@ -173,6 +173,7 @@ public final class SQLiteSession {
     private int mConnectionUseCount;
     private Transaction mTransactionPool;
     private Transaction mTransactionStack;
+    private long mConnectionAcquireTimeoutMillis = -1;
 
     /**
      * Transaction mode: Deferred.
@@ -224,6 +225,24 @@ public final class SQLiteSession {
      */
     public static final int TRANSACTION_MODE_EXCLUSIVE = 2;
 
+    /**
+     * Transaction mode: Savepoint.
+     * <p>
+     * A nested transaction begun in savepoint mode can be rolled back on its own.
+     * If it is not successful, the changes made since it began are rolled back
+     * when it is ended, and the transaction it is nested in carries on as if it
+     * had never begun.  A successful savepoint transaction is committed or rolled
+     * back with the transaction it is nested in, like any nested transaction.
+     * </p><p>
+     * An outermost transaction begun in savepoint mode behaves like
+     * {@link #TRANSACTION_MODE_IMMEDIATE}.
+     * </p><p>
+     * Corresponds to the SQLite <code>SAVEPOINT</code>, <code>RELEASE</code> and
+     * <code>ROLLBACK TO</code> statements.
+     * </p>
+     */
+    public static final int TRANSACTION_MODE_SAVEPOINT = 3;
+
     /**
      * Creates a session bound to the specified connection pool.
      *
@@ -237,6 +256,20 @@ public final class SQLiteSession {
         mConnectionPool = connectionPool;
     }
 
+    /**
+     * Sets how long this session waits for a connection from the pool before
+     * throwing {@link SQLiteConnectionPoolBusyException}.
+     *
+     * @param timeoutMillis The longest time to wait in milliseconds, 0 to wait
+     * indefinitely, or -1 to use the timeout from the database configuration.
+     */
+    public void setConnectionAcquireTimeout(long timeoutMillis) {
+        if (timeoutMillis < -1) {
+            throw new IllegalArgumentException("timeoutMillis must be >= -1.");
+        }
+        mConnectionAcquireTimeoutMillis = timeoutMillis;
+    }
+
     /**
      * Returns true if the session has a transaction in progress.
      *
@@ -276,12 +309,15 @@ public final class SQLiteSession {
      * call {@link #setTransactionSuccessful} before calling {@link #endTransaction}.
      * If the transaction is not successful, or if any of its nested
      * transactions were not successful, then the entire transaction will
-     * be rolled back when the outermost transaction is ended.
+     * be rolled back when the outermost transaction is ended.  Nested transactions
+     * begun in {@link #TRANSACTION_MODE_SAVEPOINT} are the exception: they only
+     * roll back their own changes.
      * </p>
      *
      * @param transactionMode The transaction mode.  One of: {@link #TRANSACTION_MODE_DEFERRED},
-     * {@link #TRANSACTION_MODE_IMMEDIATE}, or {@link #TRANSACTION_MODE_EXCLUSIVE}.
-     * Ignored when creating a nested transaction.
+     * {@link #TRANSACTION_MODE_IMMEDIATE}, {@link #TRANSACTION_MODE_EXCLUSIVE}, or
+     * {@link #TRANSACTION_MODE_SAVEPOINT}.  Only savepoint mode has an effect when
+     * creating a nested transaction.
      * @param transactionListener The transaction listener, or null if none.
      * @param connectionFlags The connection flags to use if a connection must be
      * acquired by this operation.  Refer to {@link SQLiteConnectionPool}.
@@ -304,6 +340,52 @@ public final class SQLiteSession {
                 cancellationSignal);
     }
 
+    /**
+     * Begins a read-only transaction that sees the database as it was when the given
+     * snapshot was opened.
+     * <p>
+     * The transaction is ended like any other, by {@link #endTransaction}.  Nested
+     * transactions may begin inside it, but writes fail.  If the transaction is
+     * yielded, the new transaction begins at the same snapshot.
+     * </p>
+     *
+     * @param snapshot The snapshot.
+     * @param connectionFlags The connection flags to use to acquire a connection.
+     * Refer to {@link SQLiteConnectionPool}.
+     * @param cancellationSignal A signal to cancel the operation in progress, or null if none.
+     *
+     * @throws IllegalStateException if a transaction is already in progress or
+     * the snapshot has been closed.
+     * @throws SQLiteException if an error occurs, such as when the snapshot is no
+     * longer available.
+     * @throws OperationCanceledException if the operation was canceled.
+     *
+     * @see SQLiteSnapshot
+     */
+    public void beginTransactionAtSnapshot(SQLiteSnapshot snapshot, int connectionFlags,
+            CancellationSignal cancellationSignal) {
+        if (mTransactionStack != null) {
+            throw new IllegalStateException("Cannot begin a transaction at a snapshot "
+                    + "while a transaction is already in progress.");
+        }
+        beginTransactionAtSnapshotUnchecked(snapshot, connectionFlags, cancellationSignal);
+    }
+
+    private void beginTransactionAtSnapshotUnchecked(SQLiteSnapshot snapshot,
+            int connectionFlags, CancellationSignal cancellationSignal) {
+        beginTransactionUnchecked(TRANSACTION_MODE_DEFERRED, null, connectionFlags,
+                cancellationSignal); // might throw
+        try {
+            snapshot.openOn(mConnection); // might throw
+            mTransactionStack.mSnapshot = snapshot;
+            // Writing would succeed as long as the snapshot is the latest state.
+            mConnection.execute("PRAGMA query_only = 1;", null, null); // might throw
+        } catch (RuntimeException ex) {
+            endTransactionUnchecked(cancellationSignal, false); // might throw
+            throw ex;
+        }
+    }
+
     private void beginTransactionUnchecked(int transactionMode,
             SQLiteTransactionListener transactionListener, int connectionFlags,
             CancellationSignal cancellationSignal) {
@@ -314,6 +396,7 @@ public final class SQLiteSession {
         if (mTransactionStack == null) {
             acquireConnection(null, connectionFlags, cancellationSignal); // might throw
         }
+        String savepoint = null;
         try {
             // Set up the transaction such that we can back out safely
             // in case we fail part way.
@@ -321,6 +404,7 @@ public final class SQLiteSession {
                 // Execute SQL might throw a runtime exception.
                 switch (transactionMode) {
                     case TRANSACTION_MODE_IMMEDIATE:
+                    case TRANSACTION_MODE_SAVEPOINT:
                         mConnection.execute("BEGIN IMMEDIATE;", null,
                                 cancellationSignal); // might throw
                         break;
@@ -332,6 +416,10 @@ public final class SQLiteSession {
                         mConnection.execute("BEGIN;", null, cancellationSignal); // might throw
                         break;
                 }
+            } else if (transactionMode == TRANSACTION_MODE_SAVEPOINT) {
+                savepoint = "sqlcipher_android_" + getTransactionDepth();
+                mConnection.execute("SAVEPOINT " + savepoint + ";", null,
+                        cancellationSignal); // might throw
             }
 
             // Listener might throw a runtime exception.
@@ -341,6 +429,8 @@ public final class SQLiteSession {
                 } catch (RuntimeException ex) {
                     if (mTransactionStack == null) {
                         mConnection.execute("ROLLBACK;", null, cancellationSignal); // might throw
+                    } else if (savepoint != null) {
+                        rollbackSavepoint(savepoint, cancellationSignal); // might throw
                     }
                     throw ex;
                 }
@@ -348,6 +438,7 @@ public final class SQLiteSession {
 
             // Bookkeeping can't throw, except an OOM, which is just too bad...
             Transaction transaction = obtainTransaction(transactionMode, transactionListener);
+            transaction.mSavepoint = savepoint;
             transaction.mParent = mTransactionStack;
             mTransactionStack = transaction;
         } finally {
@@ -379,6 +470,29 @@ public final class SQLiteSession {
         mTransactionStack.mMarkedSuccessful = true;
     }
 
+    /**
+     * Sets the time budget of the current transaction for {@link #yieldTransactionIfNeeded}.
+     * <p>
+     * The budget applies to the outermost transaction and carries over to the
+     * transactions that replace it when it is yielded.  Setting it on a nested
+     * transaction has no effect.
+     * </p>
+     *
+     * @param yieldBudgetMillis How long the transaction may run before it is yielded
+     * at the next safe point, or 0 to only yield to waiting sessions.
+     *
+     * @throws IllegalStateException if there is no current transaction.
+     *
+     * @see #yieldTransactionIfNeeded
+     */
+    public void setTransactionYieldBudget(long yieldBudgetMillis) {
+        throwIfNoTransaction();
+
+        if (mTransactionStack.mParent == null) {
+            mTransactionStack.mYieldBudgetNanos = yieldBudgetMillis * 1000000L;
+        }
+    }
+
     /**
      * Ends the current transaction and commits or rolls back changes.
      * <p>
@@ -429,11 +543,25 @@ public final class SQLiteSession {
             }
         }
 
+        final String savepoint = top.mSavepoint;
+        final boolean atSnapshot = top.mSnapshot != null;
         mTransactionStack = top.mParent;
         recycleTransaction(top);
 
         if (mTransactionStack != null) {
-            if (!successful) {
+            if (savepoint != null) {
+                try {
+                    if (successful) {
+                        mConnection.execute("RELEASE " + savepoint + ";", null,
+                                cancellationSignal); // might throw
+                    } else {
+                        rollbackSavepoint(savepoint, cancellationSignal); // might throw
+                    }
+                } catch (RuntimeException ex) {
+                    mTransactionStack.mChildFailed = true;
+                    throw ex;
+                }
+            } else if (!successful) {
                 mTransactionStack.mChildFailed = true;
             }
         } else {
@@ -444,7 +572,13 @@ public final class SQLiteSession {
                     mConnection.execute("ROLLBACK;", null, cancellationSignal); // might throw
                 }
             } finally {
-                releaseConnection(); // might throw
+                try {
+                    if (atSnapshot) {
+                        mConnection.execute("PRAGMA query_only = 0;", null, null); // might throw
+                    }
+                } finally {
+                    releaseConnection(); // might throw
+                }
             }
         }
 
@@ -536,9 +670,63 @@ public final class SQLiteSession {
             return false;
         }
 
+        yieldTransactionNow(sleepAfterYieldDelayMillis, true /*contended*/,
+                cancellationSignal); // might throw
+        return true;
+    }
+
+    /**
+     * Yields the current transaction if other sessions are waiting for its connection
+     * or if it has run for longer than its time budget.  Meant to be called at safe
+     * points of a long transaction, such as between the rows of a bulk import.
+     * <p>
+     * Unlike {@link #yieldTransaction}, this method never throws because the
+     * transaction cannot be yielded: it returns <code>false</code> when there is no
+     * transaction in progress, a nested transaction is in progress, the transaction
+     * has been marked successful or a nested transaction failed.
+     * </p>
+     *
+     * @param sleepAfterYieldDelayMillis A delay time to wait after yielding
+     * the database connection to allow other threads some time to run.
+     * @param cancellationSignal A signal to cancel the operation in progress, or null if none.
+     * @return True if the transaction was actually yielded.
+     *
+     * @throws SQLiteException if an error occurs.
+     * @throws OperationCanceledException if the operation was canceled.
+     *
+     * @see #setTransactionYieldBudget
+     */
+    public boolean yieldTransactionIfNeeded(long sleepAfterYieldDelayMillis,
+            CancellationSignal cancellationSignal) {
+        final Transaction top = mTransactionStack;
+        if (top == null || top.mMarkedSuccessful || top.mParent != null || top.mChildFailed) {
+            return false;
+        }
+        if (cancellationSignal != null) {
+            cancellationSignal.throwIfCanceled();
+        }
+
+        final boolean contended = mConnectionPool.shouldYieldConnection(mConnection,
+                mConnectionFlags);
+        if (!contended && (top.mYieldBudgetNanos == 0
+                || System.nanoTime() - top.mStartNanos < top.mYieldBudgetNanos)) {
+            return false;
+        }
+
+        yieldTransactionNow(sleepAfterYieldDelayMillis, contended,
+                cancellationSignal); // might throw
+        return true;
+    }
+
+    private void yieldTransactionNow(long sleepAfterYieldDelayMillis, boolean contended,
+            CancellationSignal cancellationSignal) {
         final int transactionMode = mTransactionStack.mMode;
         final SQLiteTransactionListener listener = mTransactionStack.mListener;
         final int connectionFlags = mConnectionFlags;
+        final SQLiteSnapshot snapshot = mTransactionStack.mSnapshot;
+        final long yieldBudgetNanos = mTransactionStack.mYieldBudgetNanos;
+        mConnectionPool.onTransactionYielded(contended,
+                System.nanoTime() - mTransactionStack.mStartNanos);
         endTransactionUnchecked(cancellationSignal, true); // might throw
 
         if (sleepAfterYieldDelayMillis > 0) {
@@ -549,9 +737,14 @@ public final class SQLiteSession {
             }
         }
 
-        beginTransactionUnchecked(transactionMode, listener, connectionFlags,
-                cancellationSignal); // might throw
-        return true;
+        if (snapshot != null) {
+            beginTransactionAtSnapshotUnchecked(snapshot, connectionFlags,
+                    cancellationSignal); // might throw
+        } else {
+            beginTransactionUnchecked(transactionMode, listener, connectionFlags,
+                    cancellationSignal); // might throw
+        }
+        mTransactionStack.mYieldBudgetNanos = yieldBudgetNanos;
     }
 
     /**
@@ -877,6 +1070,106 @@ public final class SQLiteSession {
         }
     }
 
+    /**
+     * Attaches a change session to the connection that this session writes on, so
+     * that it records the changes made to the given tables.
+     *
+     * @param changeSession The change session.
+     * @param tables The names of the tables to record, or null to record all tables.
+     * @param connectionFlags The connection flags to use if a connection must be
+     * acquired by this operation.  Refer to {@link SQLiteConnectionPool}.
+     *
+     * @throws SQLiteException if an error occurs.
+     */
+    public void attachChangeSession(SQLiteChangeSession changeSession, String[] tables,
+            int connectionFlags) {
+        if (changeSession == null) {
+            throw new IllegalArgumentException("changeSession must not be null.");
+        }
+
+        acquireConnection(null, connectionFlags, null); // might throw
+        try {
+            changeSession.attachTo(mConnection, tables); // might throw
+        } finally {
+            releaseConnection(); // might throw
+        }
+    }
+
+    /**
+     * Collects the changes recorded by a change session as a changeset or patchset.
+     *
+     * @param changeSession The change session, attached by {@link #attachChangeSession}.
+     * @param patchset True to collect a patchset, false to collect a changeset.
+     * @param connectionFlags The connection flags to use if a connection must be
+     * acquired by this operation.  Refer to {@link SQLiteConnectionPool}.
+     * @return The changeset or patchset.
+     *
+     * @throws IllegalStateException if the change session is not attached to the
+     * connection this session uses.
+     * @throws SQLiteException if an error occurs.
+     */
+    public byte[] getChangeSessionChanges(SQLiteChangeSession changeSession, boolean patchset,
+            int connectionFlags) {
+        if (changeSession == null) {
+            throw new IllegalArgumentException("changeSession must not be null.");
+        }
+
+        acquireConnection(null, connectionFlags, null); // might throw
+        try {
+            return changeSession.getChangesOn(mConnection, patchset); // might throw
+        } finally {
+            releaseConnection(); // might throw
+        }
+    }
+
+    /**
+     * Detaches a change session from its connection so that it stops recording.
+     *
+     * @param changeSession The change session, attached by {@link #attachChangeSession}.
+     * @param connectionFlags The connection flags to use if a connection must be
+     * acquired by this operation.  Refer to {@link SQLiteConnectionPool}.
+     */
+    public void detachChangeSession(SQLiteChangeSession changeSession, int connectionFlags) {
+        if (changeSession == null) {
+            throw new IllegalArgumentException("changeSession must not be null.");
+        }
+
+        acquireConnection(null, connectionFlags, null); // might throw
+        try {
+            changeSession.detachFrom(mConnection);
+        } finally {
+            releaseConnection(); // might throw
+        }
+    }
+
+    /**
+     * Applies a changeset or patchset to the database.
+     *
+     * @param changeset The changeset or patchset.
+     * @param handler The handler that decides what to do about conflicting changes,
+     * or null to abort on the first conflict.
+     * @param connectionFlags The connection flags to use if a connection must be
+     * acquired by this operation.  Refer to {@link SQLiteConnectionPool}.
+     * @param cancellationSignal A signal to cancel the operation in progress, or null if none.
+     *
+     * @throws SQLiteException if an error occurs, such as when a conflict aborts
+     * the changeset.
+     * @throws OperationCanceledException if the operation was canceled.
+     */
+    public void applyChangeset(byte[] changeset, SQLiteChangesetConflictHandler handler,
+            int connectionFlags, CancellationSignal cancellationSignal) {
+        if (changeset == null) {
+            throw new IllegalArgumentException("changeset must not be null.");
+        }
+
+        acquireConnection(null, connectionFlags, cancellationSignal); // might throw
+        try {
+            mConnection.applyChangeset(changeset, handler, cancellationSignal); // might throw
+        } finally {
+            releaseConnection(); // might throw
+        }
+    }
+
     /**
      * Performs special reinterpretation of certain SQL statements such as "BEGIN",
      * "COMMIT" and "ROLLBACK" to ensure that transaction state invariants are
@@ -928,7 +1221,7 @@ public final class SQLiteSession {
         if (mConnection == null) {
             assert mConnectionUseCount == 0;
             mConnection = mConnectionPool.acquireConnection(sql, connectionFlags,
-                    cancellationSignal); // might throw
+                    mConnectionAcquireTimeoutMillis, cancellationSignal); // might throw
             mConnectionFlags = connectionFlags;
         }
         mConnectionUseCount += 1;
@@ -946,6 +1239,24 @@ public final class SQLiteSession {
         }
     }
 
+    // Rolls back the changes made since the savepoint and removes it, leaving the
+    // enclosing transaction open.
+    private void rollbackSavepoint(String savepoint, CancellationSignal cancellationSignal) {
+        mConnection.execute("ROLLBACK TO " + savepoint + ";", null,
+                cancellationSignal); // might throw
+        mConnection.execute("RELEASE " + savepoint + ";", null,
+                cancellationSignal); // might throw
+    }
+
+    private int getTransactionDepth() {
+        int depth = 0;
+        for (Transaction transaction = mTransactionStack; transaction != null;
+                transaction = transaction.mParent) {
+            depth += 1;
+        }
+        return depth;
+    }
+
     private void throwIfNoTransaction() {
         if (mTransactionStack == null) {
             throw new IllegalStateException("Cannot perform this operation because "
@@ -975,17 +1286,21 @@ public final class SQLiteSession {
             transaction.mParent = null;
             transaction.mMarkedSuccessful = false;
             transaction.mChildFailed = false;
+            transaction.mYieldBudgetNanos = 0;
         } else {
             transaction = new Transaction();
         }
         transaction.mMode = mode;
         transaction.mListener = listener;
+        transaction.mStartNanos = System.nanoTime();
         return transaction;
     }
 
     private void recycleTransaction(Transaction transaction) {
         transaction.mParent = mTransactionPool;
         transaction.mListener = null;
+        transaction.mSnapshot = null;
+        transaction.mSavepoint = null;
         mTransactionPool = transaction;
     }
 
@@ -995,5 +1310,9 @@ public final class SQLiteSession {
         public SQLiteTransactionListener mListener;
         public boolean mMarkedSuccessful;
         public boolean mChildFailed;
+        public SQLiteSnapshot mSnapshot;
+        public String mSavepoint;
+        public long mStartNanos;
+        public long mYieldBudgetNanos;
     }
 }
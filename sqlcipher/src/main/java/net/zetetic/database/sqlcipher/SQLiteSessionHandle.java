@@ -0,0 +1,312 @@
+package net.zetetic.database.sqlcipher;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.os.CancellationSignal;
+
+import java.io.Closeable;
+
+/**
+ * A session of a {@link SQLiteDatabase} that is not bound to a thread.
+ * Obtained from {@link SQLiteDatabase#openSession}.
+ * <p>
+ * The methods of {@link SQLiteDatabase} run on the session of the calling thread,
+ * so a transaction begun on one thread cannot be continued on another.  A session
+ * handle holds its own transaction, and the connection the transaction runs on,
+ * whichever thread calls it.  Work can move between threads in the middle of a
+ * transaction, as with coroutines, executors and virtual threads, without pinning
+ * a thread for the duration of the transaction.
+ * </p><p>
+ * As with thread sessions, a connection is held from the beginning of a transaction
+ * to its end, and only for the duration of each statement otherwise.  Statements
+ * and cursors created by the handle run on the handle's session and keep doing so
+ * whichever thread uses them.  The transactions of the handle and of the thread
+ * calling it are unrelated, so do not mix them.
+ * </p><p>
+ * This class is not thread-safe.  It may be handed from one thread to another,
+ * but must only be used by one thread at a time.
+ * </p>
+ */
+public final class SQLiteSessionHandle implements Closeable {
+    private final CloseGuard mCloseGuard = CloseGuard.get();
+
+    private final SQLiteDatabase mDatabase;
+    private final SQLiteSession mSession;
+    private boolean mClosed;
+
+    SQLiteSessionHandle(SQLiteDatabase database, SQLiteSession session) {
+        mDatabase = database;
+        mSession = session;
+        mCloseGuard.open("close");
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+        try {
+            if (mCloseGuard != null) {
+                mCloseGuard.warnIfOpen();
+            }
+        } finally {
+            super.finalize();
+        }
+    }
+
+    /**
+     * Gets the database this session belongs to.
+     *
+     * @return The database.
+     */
+    public SQLiteDatabase getDatabase() {
+        return mDatabase;
+    }
+
+    /**
+     * Begins a transaction in EXCLUSIVE mode on this session.
+     *
+     * @see SQLiteDatabase#beginTransaction()
+     */
+    public void beginTransaction() {
+        beginTransaction(null, SQLiteSession.TRANSACTION_MODE_EXCLUSIVE);
+    }
+
+    /**
+     * Begins a transaction in IMMEDIATE mode on this session.
+     *
+     * @see SQLiteDatabase#beginTransactionNonExclusive()
+     */
+    public void beginTransactionNonExclusive() {
+        beginTransaction(null, SQLiteSession.TRANSACTION_MODE_IMMEDIATE);
+    }
+
+    /**
+     * Begins a transaction in EXCLUSIVE mode on this session.
+     *
+     * @param transactionListener listener that should be notified when the transaction
+     * begins, commits, or is rolled back.
+     *
+     * @see SQLiteDatabase#beginTransactionWithListener(SQLiteTransactionListener)
+     */
+    public void beginTransactionWithListener(SQLiteTransactionListener transactionListener) {
+        beginTransaction(transactionListener, SQLiteSession.TRANSACTION_MODE_EXCLUSIVE);
+    }
+
+    /**
+     * Begins a transaction in IMMEDIATE mode on this session.
+     *
+     * @param transactionListener listener that should be notified when the transaction
+     * begins, commits, or is rolled back.
+     *
+     * @see SQLiteDatabase#beginTransactionWithListenerNonExclusive
+     */
+    public void beginTransactionWithListenerNonExclusive(
+            SQLiteTransactionListener transactionListener) {
+        beginTransaction(transactionListener, SQLiteSession.TRANSACTION_MODE_IMMEDIATE);
+    }
+
+    /**
+     * Begins a transaction in IMMEDIATE mode on this session that
+     * {@link #yieldIfNeeded} yields once it has run past the given time budget.
+     *
+     * @param timeBudgetMillis How long the transaction may run before it is yielded at
+     * the next safe point, or 0 to only yield to waiting sessions.
+     *
+     * @see SQLiteDatabase#beginTransactionWithAutoYield
+     */
+    public void beginTransactionWithAutoYield(long timeBudgetMillis) {
+        if (timeBudgetMillis < 0) {
+            throw new IllegalArgumentException("timeBudgetMillis must be >= 0.");
+        }
+        beginTransaction(null, SQLiteSession.TRANSACTION_MODE_IMMEDIATE);
+        mSession.setTransactionYieldBudget(timeBudgetMillis);
+    }
+
+    private void beginTransaction(SQLiteTransactionListener transactionListener, int mode) {
+        throwIfClosed();
+        mSession.beginTransaction(mode, transactionListener,
+                SQLiteDatabase.getDefaultConnectionFlags(false /*readOnly*/), null);
+    }
+
+    /**
+     * Begins a read-only transaction on this session at the given snapshot.
+     *
+     * @param snapshot The snapshot, opened on the database of this session.
+     *
+     * @see SQLiteDatabase#beginTransactionAtSnapshot
+     */
+    public void beginTransactionAtSnapshot(SQLiteSnapshot snapshot) {
+        if (snapshot == null) {
+            throw new IllegalArgumentException("snapshot must not be null.");
+        }
+        if (snapshot.getDatabase() != mDatabase) {
+            throw new IllegalArgumentException("snapshot was opened on another database.");
+        }
+        throwIfClosed();
+        mSession.beginTransactionAtSnapshot(snapshot,
+                SQLiteDatabase.getDefaultConnectionFlags(true /*readOnly*/)
+                        | SQLiteConnectionPool.CONNECTION_FLAG_NON_PRIMARY_CONNECTION, null);
+    }
+
+    /**
+     * Marks the current transaction of this session as successful.
+     *
+     * @see SQLiteDatabase#setTransactionSuccessful()
+     */
+    public void setTransactionSuccessful() {
+        throwIfClosed();
+        mSession.setTransactionSuccessful();
+    }
+
+    /**
+     * Ends the current transaction of this session.
+     *
+     * @see SQLiteDatabase#endTransaction()
+     */
+    public void endTransaction() {
+        throwIfClosed();
+        mSession.endTransaction(null);
+    }
+
+    /**
+     * Returns true if this session has a transaction pending.
+     *
+     * @return True if this session is in a transaction.
+     */
+    public boolean inTransaction() {
+        throwIfClosed();
+        return mSession.hasTransaction();
+    }
+
+    /**
+     * Temporarily ends the transaction of this session to let other sessions run.
+     *
+     * @return true if the transaction was yielded
+     *
+     * @see SQLiteDatabase#yieldIfContendedSafely()
+     */
+    public boolean yieldIfContendedSafely() {
+        throwIfClosed();
+        return mSession.yieldTransaction(-1, true /*throwIfUnsafe*/, null);
+    }
+
+    /**
+     * Yields the transaction of this session if other sessions are waiting for its
+     * connection or it has run past its time budget.
+     *
+     * @return true if the transaction was yielded
+     *
+     * @see SQLiteDatabase#yieldIfNeeded()
+     */
+    public boolean yieldIfNeeded() {
+        throwIfClosed();
+        return mSession.yieldTransactionIfNeeded(-1, null);
+    }
+
+    /**
+     * Executes a single SQL statement that is NOT a SELECT on this session.
+     *
+     * @param sql the SQL statement to be executed.
+     * @throws SQLException if the SQL string is invalid
+     *
+     * @see SQLiteDatabase#execSQL(String)
+     */
+    public void execSQL(String sql) throws SQLException {
+        throwIfClosed();
+        mDatabase.executeSql(mSession, sql, null);
+    }
+
+    /**
+     * Executes a single SQL statement that is NOT a SELECT on this session.
+     *
+     * @param sql the SQL statement to be executed.
+     * @param bindArgs only byte[], String, Long and Double are supported in bindArgs.
+     * @throws SQLException if the SQL string is invalid
+     *
+     * @see SQLiteDatabase#execSQL(String, Object[])
+     */
+    public void execSQL(String sql, Object[] bindArgs) throws SQLException {
+        if (bindArgs == null) {
+            throw new IllegalArgumentException("Empty bindArgs");
+        }
+        throwIfClosed();
+        mDatabase.executeSql(mSession, sql, bindArgs);
+    }
+
+    /**
+     * Compiles an SQL statement into a reusable pre-compiled statement object that
+     * runs on this session.
+     *
+     * @param sql The raw SQL statement, may contain ? for unknown values to be
+     *            bound later.
+     * @return A pre-compiled {@link SQLiteStatement} object. Note that
+     * {@link SQLiteStatement}s are not synchronized, see the documentation for more details.
+     *
+     * @see SQLiteDatabase#compileStatement
+     */
+    public SQLiteStatement compileStatement(String sql) throws SQLException {
+        throwIfClosed();
+        return new SQLiteStatement(mDatabase, mSession, sql, null);
+    }
+
+    /**
+     * Runs the provided SQL on this session and returns a {@link Cursor} over the
+     * result set.  The cursor reads more rows on this session as it moves.
+     *
+     * @param sql the SQL query. The SQL string must not be ; terminated
+     * @param bindArgs the values to bind to ?s in the query, or null if none.
+     * @return A {@link Cursor} object, which is positioned before the first entry.
+     *
+     * @see SQLiteDatabase#rawQuery(String, Object[])
+     */
+    public Cursor rawQuery(String sql, Object[] bindArgs) {
+        return rawQuery(sql, bindArgs, null);
+    }
+
+    /**
+     * Runs the provided SQL on this session and returns a {@link Cursor} over the
+     * result set.  The cursor reads more rows on this session as it moves.
+     *
+     * @param sql the SQL query. The SQL string must not be ; terminated
+     * @param bindArgs the values to bind to ?s in the query, or null if none.
+     * @param cancellationSignal A signal to cancel the operation in progress, or null if none.
+     * @return A {@link Cursor} object, which is positioned before the first entry.
+     *
+     * @see SQLiteDatabase#rawQuery(String, String[], CancellationSignal)
+     */
+    public Cursor rawQuery(String sql, Object[] bindArgs,
+            CancellationSignal cancellationSignal) {
+        throwIfClosed();
+        SQLiteDirectCursorDriver driver = new SQLiteDirectCursorDriver(mDatabase, mSession, sql,
+                null, cancellationSignal);
+        return driver.query(null, bindArgs);
+    }
+
+    /**
+     * Closes the session.  A transaction still in progress is ended as if by
+     * {@link #endTransaction}, so it is rolled back unless it was marked successful.
+     * Does nothing if the session is already closed.
+     */
+    @Override
+    public void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+
+        if (mCloseGuard != null) {
+            mCloseGuard.close();
+        }
+        try {
+            while (mSession.hasTransaction()) {
+                mSession.endTransaction(null); // might throw
+            }
+        } finally {
+            mDatabase.releaseReference();
+        }
+    }
+
+    private void throwIfClosed() {
+        if (mClosed) {
+            throw new IllegalStateException("The session has been closed.");
+        }
+    }
+}
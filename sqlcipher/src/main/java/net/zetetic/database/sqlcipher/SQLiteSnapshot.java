@@ -0,0 +1,152 @@
+package net.zetetic.database.sqlcipher;
+
+import java.io.Closeable;
+
+/**
+ * A fixed state of a database in write-ahead logging mode that several
+ * transactions can read from.  Obtained from {@link SQLiteDatabase#openSnapshot}.
+ * <p>
+ * Any thread can begin a read-only transaction at the snapshot with
+ * {@link SQLiteDatabase#beginTransactionAtSnapshot}.  Each such transaction runs
+ * on whichever connection the pool hands to that thread, so several threads can
+ * query the same snapshot in parallel, and none of them see changes committed
+ * after the snapshot was opened.
+ * </p><p>
+ * To keep the snapshot readable, the snapshot holds a read transaction open on
+ * a reader connection of its own until it is closed, so writers are not blocked.  This stops checkpoints from
+ * overwriting the pages of the database that the snapshot refers to, so the
+ * write-ahead log keeps growing while the snapshot is open.  Close snapshots as
+ * soon as they are no longer needed.  The database is not closed until all of
+ * its snapshots have been closed.
+ * </p><p>
+ * Closing the snapshot does not affect transactions that have already begun at it.
+ * </p><p>
+ * This class is thread-safe.
+ * </p>
+ */
+public final class SQLiteSnapshot implements Closeable {
+    private final CloseGuard mCloseGuard = CloseGuard.get();
+
+    private final SQLiteDatabase mDatabase;
+    private final SQLiteConnectionPool mPool;
+    private final Object mLock = new Object();
+
+    // INVARIANT: Guarded by mLock.
+    private SQLiteConnection mConnectionLocked;
+    private long mSnapshotPtrLocked;
+
+    private SQLiteSnapshot(SQLiteDatabase database, SQLiteConnectionPool pool,
+            SQLiteConnection connection, long snapshotPtr) {
+        mDatabase = database;
+        mPool = pool;
+        mConnectionLocked = connection;
+        mSnapshotPtrLocked = snapshotPtr;
+        mCloseGuard.open("close");
+    }
+
+    // Called by SQLiteDatabase only.
+    // Begins a read transaction on a non-primary connection from the pool and records
+    // the state it sees.  The connection flags must require a non-primary connection,
+    // or writers would wait for the snapshot to be closed.  The database must hold a reference on behalf of the snapshot, which
+    // the snapshot releases when it is closed.
+    static SQLiteSnapshot open(SQLiteDatabase database, SQLiteConnectionPool pool,
+            int connectionFlags) {
+        final SQLiteConnection connection = pool.acquireConnection("BEGIN;",
+                connectionFlags, null); // might throw
+        assert !connection.isPrimaryConnection();
+        try {
+            connection.execute("BEGIN;", null, null); // might throw
+            try {
+                // BEGIN is deferred, so read something to actually start the
+                // read transaction.
+                connection.executeForLong("SELECT COUNT(*) FROM sqlite_master;",
+                        null, null); // might throw
+                final long snapshotPtr = connection.getSnapshot(); // might throw
+                return new SQLiteSnapshot(database, pool, connection, snapshotPtr);
+            } catch (RuntimeException ex) {
+                connection.execute("ROLLBACK;", null, null); // might throw
+                throw ex;
+            }
+        } catch (RuntimeException ex) {
+            pool.releaseConnection(connection);
+            throw ex;
+        }
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+        try {
+            if (mCloseGuard != null) {
+                mCloseGuard.warnIfOpen();
+            }
+            // The connection takes care of itself when its own finalizer runs.
+            synchronized (mLock) {
+                if (mSnapshotPtrLocked != 0) {
+                    SQLiteConnection.freeSnapshot(mSnapshotPtrLocked);
+                    mSnapshotPtrLocked = 0;
+                }
+            }
+        } finally {
+            super.finalize();
+        }
+    }
+
+    /**
+     * Closes the snapshot and ends the read transaction that kept it readable.
+     * Transactions can no longer begin at the snapshot.  Does nothing if the
+     * snapshot is already closed.
+     */
+    @Override
+    public void close() {
+        final SQLiteConnection connection;
+        final long snapshotPtr;
+        synchronized (mLock) {
+            if (mSnapshotPtrLocked == 0) {
+                return;
+            }
+            connection = mConnectionLocked;
+            snapshotPtr = mSnapshotPtrLocked;
+            mConnectionLocked = null;
+            mSnapshotPtrLocked = 0;
+        }
+
+        if (mCloseGuard != null) {
+            mCloseGuard.close();
+        }
+        SQLiteConnection.freeSnapshot(snapshotPtr);
+        try {
+            connection.execute("ROLLBACK;", null, null); // might throw
+        } finally {
+            mPool.releaseConnection(connection);
+            mDatabase.releaseReference();
+        }
+    }
+
+    /**
+     * Returns true if the snapshot has not been closed.
+     *
+     * @return True if the snapshot is open.
+     */
+    public boolean isOpen() {
+        synchronized (mLock) {
+            return mSnapshotPtrLocked != 0;
+        }
+    }
+
+    // Called by SQLiteDatabase only.
+    SQLiteDatabase getDatabase() {
+        return mDatabase;
+    }
+
+    // Called by SQLiteSession only.
+    // Starts the read transaction of the transaction just begun on the connection at
+    // this snapshot.  Holds the lock so that the snapshot cannot be freed meanwhile.
+    void openOn(SQLiteConnection connection) {
+        synchronized (mLock) {
+            if (mSnapshotPtrLocked == 0) {
+                throw new IllegalStateException("The snapshot has been closed.");
+            }
+            connection.openSnapshot(mSnapshotPtrLocked); // might throw
+        }
+    }
+}
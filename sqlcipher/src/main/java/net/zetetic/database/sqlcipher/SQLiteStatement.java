@@ -38,6 +38,10 @@ public final class SQLiteStatement extends SQLiteProgram implements SupportSQLit
         super(db, sql, bindArgs, null);
     }
 
+    SQLiteStatement(SQLiteDatabase db, SQLiteSession session, String sql, Object[] bindArgs) {
+        super(db, session, sql, bindArgs, null);
+    }
+
     /**
      * Execute this SQL statement, if it is not a SELECT / INSERT / DELETE / UPDATE, for example
      * CREATE / DROP table, view, trigger, index etc.
@@ -0,0 +1,19 @@
+package net.zetetic.database.sqlcipher;
+
+import java.util.Set;
+
+/**
+ * A listener for the tables changed by committed transactions.
+ * Registered with {@link SQLiteDatabase#addTableChangeListener}.
+ */
+public interface SQLiteTableChangeListener {
+    /**
+     * Called on the thread that committed one or more transactions, once the
+     * connection they ran on has been returned to the pool.
+     *
+     * @param tables The names of the tables in which rows were inserted, updated
+     * or deleted.  Tables of attached databases are qualified by the name of the
+     * database.
+     */
+    void onTablesChanged(Set<String> tables);
+}
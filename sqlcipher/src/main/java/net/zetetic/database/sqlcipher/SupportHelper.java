@@ -4,6 +4,8 @@ import androidx.annotation.Nullable;
 import androidx.sqlite.db.SupportSQLiteDatabase;
 import androidx.sqlite.db.SupportSQLiteOpenHelper;
 
+import java.util.concurrent.Future;
+
 public class SupportHelper implements SupportSQLiteOpenHelper {
 
   private SQLiteOpenHelper openHelper;
@@ -60,6 +62,15 @@ public class SupportHelper implements SupportSQLiteOpenHelper {
     return openHelper.getWritableDatabase();
   }
 
+  /**
+   * Opens the database on a worker thread, deriving the key and running the
+   * migrations there.  See {@link SQLiteOpenHelper#getWritableDatabaseAsync}.
+   */
+  public Future<SQLiteDatabase> getWritableDatabaseAsync(
+      SQLiteDatabase.AsyncCallback<SQLiteDatabase> callback) {
+    return openHelper.getWritableDatabaseAsync(callback);
+  }
+
   @Override
   public SupportSQLiteDatabase getReadableDatabase() {
     return openHelper.getReadableDatabase();
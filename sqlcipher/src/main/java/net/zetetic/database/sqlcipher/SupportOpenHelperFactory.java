@@ -12,6 +12,7 @@ public class SupportOpenHelperFactory implements SupportSQLiteOpenHelper.Factory
   private final boolean enableWriteAheadLogging;
 
   private final int minimumSupportedVersion;
+  private final boolean openInBackground;
 
   public SupportOpenHelperFactory(byte[] password){
     this(password, null, false);
@@ -23,20 +24,40 @@ public class SupportOpenHelperFactory implements SupportSQLiteOpenHelper.Factory
 
   public SupportOpenHelperFactory(byte[] password, SQLiteDatabaseHook hook,
                                   boolean enableWriteAheadLogging, int minimumSupportedVersion) {
+    this(password, hook, enableWriteAheadLogging, minimumSupportedVersion, false);
+  }
+
+  /**
+   * @param openInBackground True to start opening each database on a worker thread as
+   * soon as its helper is created, so that the key derivation and the migrations are
+   * under way, or done, by the time the database is first used.  A later call to
+   * {@link SupportHelper#getWritableDatabase()} waits for that open instead of
+   * starting another.
+   */
+  public SupportOpenHelperFactory(byte[] password, SQLiteDatabaseHook hook,
+                                  boolean enableWriteAheadLogging, int minimumSupportedVersion,
+                                  boolean openInBackground) {
     this.password = password;
     this.hook = hook;
     this.enableWriteAheadLogging = enableWriteAheadLogging;
     this.minimumSupportedVersion = minimumSupportedVersion;
+    this.openInBackground = openInBackground;
   }
 
   @NonNull
   @Override
   public SupportSQLiteOpenHelper create(@NonNull SupportSQLiteOpenHelper.Configuration configuration) {
+    SupportHelper helper;
     if (minimumSupportedVersion == UNCHANGED) {
-      return new SupportHelper(configuration, this.password, this.hook, enableWriteAheadLogging);
+      helper = new SupportHelper(configuration, this.password, this.hook, enableWriteAheadLogging);
     } else {
-      return new SupportHelper(configuration, this.password, this.hook,
+      helper = new SupportHelper(configuration, this.password, this.hook,
               enableWriteAheadLogging, minimumSupportedVersion);
     }
+    if (openInBackground) {
+      // Failures are reported again by the first synchronous open.
+      helper.getWritableDatabaseAsync(null);
+    }
+    return helper;
   }
 }
@@ -27,21 +27,24 @@
 #include <sys/mman.h>
 #include <cstring>
 #include <cinttypes>
+#include <ctime>
 #include <unistd.h>
 #include <cassert>
+#include <pthread.h>
 
 #include <sqlite3.h>
 
 #include "android_database_SQLiteCommon.h"
 #include "CursorWindow.h"
 #include <string>
+#include <set>
 
 // Set to 1 to use UTF16 storage for localized indexes.
 #define UTF16_STORAGE 0
 
 namespace android {
 
-/* Busy timeout in milliseconds.
+/* Default busy timeout in milliseconds.
  * If another connection (possibly in another process) has the database locked for
  * longer than this amount of time then SQLite will generate a SQLITE_BUSY error.
  * The SQLITE_BUSY error is then raised as a SQLiteDatabaseLockedException.
@@ -52,9 +55,24 @@ namespace android {
  * operation.  The busy timeout needs to be long enough to tolerate slow I/O write
  * operations but not so long as to cause the application to hang indefinitely if
  * there is a problem acquiring a database lock.
+ *
+ * The timeout can be changed per connection with nativeSetBusyTimeout.
  */
 static const int BUSY_TIMEOUT_MS = 2500;
 
+/* Bounds of the exponential backoff used by the busy handler, in microseconds.
+ * Short first sleeps let a contended reader resume quickly once a brief lock
+ * drops, while the cap keeps a long wait from turning into a busy loop.
+ */
+static const int64_t BUSY_BACKOFF_MIN_US = 100;
+static const int64_t BUSY_BACKOFF_MAX_US = 50 * 1000;
+
+/* How often a thread blocked in waitForUnlockNotify wakes up to check for
+ * cancellation, in microseconds.  The unlock notification itself wakes the
+ * thread immediately.
+ */
+static const int64_t UNLOCK_NOTIFY_CANCEL_POLL_US = 50 * 1000;
+
 /* The original code uses AndroidRuntime::getJNIEnv() to obtain a 
 ** pointer to the VM. This is not available in the NDK, so instead
 ** the following global variable is set as part of this module's
@@ -71,6 +89,10 @@ static struct {
     jclass clazz;
 } gStringClassInfo;
 
+static struct {
+    jmethodID onConflict;
+} gSQLiteChangesetConflictHandlerClassInfo;
+
 struct SQLiteConnection {
     // Open flags.
     // Must be kept in sync with the constants defined in SQLiteDatabase.java.
@@ -82,6 +104,17 @@ struct SQLiteConnection {
         CREATE_IF_NECESSARY     = 0x10000000,
     };
 
+    // Indices into the array filled by nativeTakeLockWaitStats.
+    // Must be kept in sync with the constants defined in SQLiteConnection.java.
+    enum {
+        LOCK_WAIT_STAT_BUSY_RETRIES         = 0,
+        LOCK_WAIT_STAT_BUSY_WAIT_MICROS     = 1,
+        LOCK_WAIT_STAT_BUSY_TIMEOUTS        = 2,
+        LOCK_WAIT_STAT_UNLOCK_NOTIFY_WAITS  = 3,
+        LOCK_WAIT_STAT_UNLOCK_NOTIFY_MICROS = 4,
+        LOCK_WAIT_STAT_COUNT                = 5,
+    };
+
     sqlite3* const db;
     const int openFlags;
     std::string path;
@@ -89,10 +122,42 @@ struct SQLiteConnection {
 
     volatile bool canceled;
 
+    // Lock waiting state and statistics.  Only touched by the thread that
+    // currently owns the connection.
+    int busyTimeoutMs;
+    int64_t busyStartMicros;
+    int64_t lockWaitStats[LOCK_WAIT_STAT_COUNT];
+
+    // Names of the tables changed by the transaction in progress, and by the
+    // transactions committed since nativeTakeChangedTables was last called.
+    // Only touched by the thread that currently owns the connection.
+    std::set<std::string> pendingChangedTables;
+    std::set<std::string> committedChangedTables;
+    bool trackTableChanges;
+
+    // The number of change sessions open on the connection.  Sessions own the
+    // preupdate hook while any is open.
+    int sessionCount;
+
+    // Frames in the write-ahead log after the last commit, and how many of them
+    // the last checkpoint copied back into the database.  Only touched by the
+    // thread that currently owns the connection.
+    int walFrames;
+    int walCheckpointedFrames;
+
     SQLiteConnection(sqlite3* db, int openFlags, const std::string& path, const std::string& label) :
-        db(db), openFlags(openFlags), path(path), label(label), canceled(false) { }
+        db(db), openFlags(openFlags), path(path), label(label), canceled(false),
+        busyTimeoutMs(BUSY_TIMEOUT_MS), busyStartMicros(0), lockWaitStats(),
+        trackTableChanges(false), sessionCount(0),
+        walFrames(0), walCheckpointedFrames(0) { }
 };
 
+static int64_t monotonicMicros() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return int64_t(ts.tv_sec) * 1000000 + ts.tv_nsec / 1000;
+}
+
 // Called each time a statement begins execution, when tracing is enabled.
 static void sqliteTraceCallback(void *data, const char *sql) {
     auto* connection = static_cast<SQLiteConnection*>(data);
@@ -113,6 +178,125 @@ static int sqliteProgressHandlerCallback(void* data) {
     return connection->canceled;
 }
 
+// Called by SQLite when a lock held by another connection prevents progress.
+// Sleeps with exponential backoff until the busy timeout elapses, instead of
+// the fixed schedule of sqlite3_busy_timeout, and records how long it waited.
+static int sqliteBusyHandlerCallback(void* data, int count) {
+    auto* connection = static_cast<SQLiteConnection*>(data);
+    const int64_t now = monotonicMicros();
+    if (count == 0) {
+        connection->busyStartMicros = now;
+    }
+    const int64_t remaining = int64_t(connection->busyTimeoutMs) * 1000
+            - (now - connection->busyStartMicros);
+    if (remaining <= 0 || connection->canceled) {
+        connection->lockWaitStats[SQLiteConnection::LOCK_WAIT_STAT_BUSY_TIMEOUTS] += 1;
+        return 0;
+    }
+
+    int64_t sleepMicros = BUSY_BACKOFF_MIN_US << (count < 16 ? count : 16);
+    if (sleepMicros > BUSY_BACKOFF_MAX_US) {
+        sleepMicros = BUSY_BACKOFF_MAX_US;
+    }
+    if (sleepMicros > remaining) {
+        sleepMicros = remaining;
+    }
+    usleep(useconds_t(sleepMicros));
+    connection->lockWaitStats[SQLiteConnection::LOCK_WAIT_STAT_BUSY_RETRIES] += 1;
+    connection->lockWaitStats[SQLiteConnection::LOCK_WAIT_STAT_BUSY_WAIT_MICROS] += sleepMicros;
+    return 1;
+}
+
+struct UnlockNotification {
+    bool fired;
+    pthread_mutex_t mutex;
+    pthread_cond_t cond;
+};
+
+// Called by SQLite, on the thread that released the lock, for every connection
+// that registered interest with sqlite3_unlock_notify.
+static void sqliteUnlockNotifyCallback(void** args, int count) {
+    for (int i = 0; i < count; i++) {
+        auto* notification = static_cast<UnlockNotification*>(args[i]);
+        pthread_mutex_lock(&notification->mutex);
+        notification->fired = true;
+        pthread_cond_signal(&notification->cond);
+        pthread_mutex_unlock(&notification->mutex);
+    }
+}
+
+// Blocks until the connection that holds the shared-cache lock which made the
+// last step fail with SQLITE_LOCKED_SHAREDCACHE finishes its transaction.
+// Returns SQLITE_OK if the statement should be retried, SQLITE_LOCKED if
+// waiting would deadlock, or SQLITE_BUSY if the busy timeout elapsed or the
+// operation was canceled first.
+static int waitForUnlockNotify(SQLiteConnection* connection) {
+    UnlockNotification notification;
+    notification.fired = false;
+    pthread_mutex_init(&notification.mutex, NULL);
+    pthread_condattr_t condattr;
+    pthread_condattr_init(&condattr);
+    pthread_condattr_setclock(&condattr, CLOCK_MONOTONIC);
+    pthread_cond_init(&notification.cond, &condattr);
+    pthread_condattr_destroy(&condattr);
+
+    int rc = sqlite3_unlock_notify(connection->db, sqliteUnlockNotifyCallback, &notification);
+    if (rc == SQLITE_OK) {
+        const int64_t start = monotonicMicros();
+        const int64_t deadline = start + int64_t(connection->busyTimeoutMs) * 1000;
+        pthread_mutex_lock(&notification.mutex);
+        while (!notification.fired) {
+            const int64_t now = monotonicMicros();
+            if (now >= deadline || connection->canceled) {
+                rc = SQLITE_BUSY;
+                break;
+            }
+            int64_t wakeMicros = now + UNLOCK_NOTIFY_CANCEL_POLL_US;
+            if (wakeMicros > deadline) {
+                wakeMicros = deadline;
+            }
+            struct timespec wakeTime;
+            wakeTime.tv_sec = time_t(wakeMicros / 1000000);
+            wakeTime.tv_nsec = long(wakeMicros % 1000000) * 1000;
+            pthread_cond_timedwait(&notification.cond, &notification.mutex, &wakeTime);
+        }
+        pthread_mutex_unlock(&notification.mutex);
+
+        if (rc != SQLITE_OK) {
+            // Withdraw the registration.  SQLite invokes callbacks while holding the
+            // same mutex, so none can be in flight once this returns.
+            sqlite3_unlock_notify(connection->db, NULL, NULL);
+        }
+        connection->lockWaitStats[SQLiteConnection::LOCK_WAIT_STAT_UNLOCK_NOTIFY_WAITS] += 1;
+        connection->lockWaitStats[SQLiteConnection::LOCK_WAIT_STAT_UNLOCK_NOTIFY_MICROS] +=
+                monotonicMicros() - start;
+    }
+
+    pthread_cond_destroy(&notification.cond);
+    pthread_mutex_destroy(&notification.mutex);
+    return rc;
+}
+
+// Steps a statement that has not returned any rows yet, waiting for shared-cache
+// locks held by other connections instead of failing with SQLITE_LOCKED.
+// The statement is reset before each retry, so this must not be used once rows
+// have been consumed.
+static int stepBlocking(SQLiteConnection* connection, sqlite3_stmt* statement) {
+    int err = sqlite3_step(statement);
+    while (err == SQLITE_LOCKED
+            && sqlite3_extended_errcode(connection->db) == SQLITE_LOCKED_SHAREDCACHE) {
+        int rc = waitForUnlockNotify(connection);
+        sqlite3_reset(statement);
+        err = sqlite3_step(statement);
+        if (rc != SQLITE_OK) {
+            // One last attempt after giving up, so that the error reported to the
+            // caller comes from the statement rather than from the wait.
+            break;
+        }
+    }
+    return err;
+}
+
 /*
 ** This function is a collation sequence callback equivalent to the built-in
 ** BINARY sequence. 
@@ -199,6 +383,11 @@ static jlong nativeOpen(JNIEnv* env, jclass clazz, jstring pathStr, jint openFla
     std::string label(labelChars);
     env->ReleaseStringUTFChars(labelStr, labelChars);
 
+    // Shared in-memory databases are opened as file:/name?vfs=memdb URIs.
+    if (path.compare(0, 5, "file:") == 0) {
+        sqliteFlags |= SQLITE_OPEN_URI;
+    }
+
     sqlite3* db;
     int err = sqlite3_open_v2(path.c_str(), &db, sqliteFlags, NULL);
     if (err != SQLITE_OK) {
@@ -219,17 +408,18 @@ static jlong nativeOpen(JNIEnv* env, jclass clazz, jstring pathStr, jint openFla
         return 0;
     }
 
-    // Set the default busy handler to retry automatically before returning SQLITE_BUSY.
-    err = sqlite3_busy_timeout(db, BUSY_TIMEOUT_MS);
+    // Create wrapper object.
+    auto* connection = new SQLiteConnection(db, openFlags, path, label);
+
+    // Set the busy handler to retry automatically before returning SQLITE_BUSY.
+    err = sqlite3_busy_handler(db, sqliteBusyHandlerCallback, connection);
     if (err != SQLITE_OK) {
-        throw_sqlite3_exception(env, db, "Could not set busy timeout");
+        throw_sqlite3_exception(env, db, "Could not set busy handler");
         sqlite3_close(db);
+        delete connection;
         return 0;
     }
 
-    // Create wrapper object.
-    auto* connection = new SQLiteConnection(db, openFlags, path, label);
-
     // Enable tracing and profiling if requested.
     if (enableTrace) {
         sqlite3_trace(db, &sqliteTraceCallback, connection);
@@ -489,10 +679,10 @@ static void nativeResetStatementAndClearBindings(JNIEnv* env, jclass clazz, jlon
 }
 
 static int executeNonQueryRaw(JNIEnv* env, SQLiteConnection* connection, sqlite3_stmt* statement) {
-    int err;
-    do {
+    int err = stepBlocking(connection, statement);
+    while (err == SQLITE_ROW) {
       err = sqlite3_step(statement);
-    } while(err == SQLITE_ROW);
+    }
     return err;
 }
 
@@ -504,7 +694,7 @@ static void nativeExecuteRaw(JNIEnv* env, jclass clazz, jlong connectionPtr,
 }
 
 static int executeNonQuery(JNIEnv* env, SQLiteConnection* connection, sqlite3_stmt* statement) {
-    int err = sqlite3_step(statement);
+    int err = stepBlocking(connection, statement);
     if (err == SQLITE_ROW) {
         throw_sqlite3_exception(env,
                 "Queries can be performed using SQLiteDatabase query or rawQuery methods only.");
@@ -539,7 +729,7 @@ static jlong nativeExecuteForLastInsertedRowId(JNIEnv* env, jclass clazz,
 }
 
 static int executeOneRowQuery(JNIEnv* env, SQLiteConnection* connection, sqlite3_stmt* statement) {
-    int err = sqlite3_step(statement);
+    int err = stepBlocking(connection, statement);
     if (err != SQLITE_ROW) {
         throw_sqlite3_exception(env, connection->db);
     }
@@ -715,16 +905,17 @@ static jlong nativeExecuteForCursorWindow(
         throw_sqlite3_exception(env, connection->db, "Failed to set the cursor window column count");
         return 0;
     }
-    int retryCount = 0;
     int totalRows = 0;
     int addedRows = 0;
     bool windowFull = false;
     bool gotException = false;
     while (!gotException && (!windowFull || countAllRows)) {
-        int err = sqlite3_step(statement);
+        // Until the first row has been read the statement can safely be restarted,
+        // so wait out shared-cache locks then.  SQLITE_BUSY is only returned once the
+        // busy handler has exhausted the busy timeout.
+        int err = totalRows == 0 ? stepBlocking(connection, statement) : sqlite3_step(statement);
         if (err == SQLITE_ROW) {
             ALOGD("Stepped statement %p to row %d", statement, totalRows);
-            retryCount = 0;
             totalRows += 1;
 
             // Skip the row if the window is full or we haven't reached the start position yet.
@@ -758,18 +949,6 @@ static jlong nativeExecuteForCursorWindow(
             // All rows processed, bail
             ALOGD("Processed all rows");
             break;
-        } else if (err == SQLITE_LOCKED || err == SQLITE_BUSY) {
-            // The table is locked, retry
-            ALOGD("Database locked, retrying");
-            if (retryCount > 50) {
-                ALOGE("Bailing on database busy retry");
-                throw_sqlite3_exception(env, connection->db, "retrycount exceeded");
-                gotException = true;
-            } else {
-                // Sleep to give the thread holding the lock a chance to finish
-                usleep(1000);
-                retryCount++;
-            }
         } else {
             throw_sqlite3_exception(env, connection->db);
             gotException = true;
@@ -789,6 +968,86 @@ static jlong nativeExecuteForCursorWindow(
     return result;
 }
 
+// Flags returned in the upper half of the result of nativeFillWindowFromStatement.
+// Must be kept in sync with the constants defined in SQLiteConnection.java.
+static const jlong FILL_WINDOW_DONE        = jlong(1) << 32;
+static const jlong FILL_WINDOW_ROW_PENDING = jlong(1) << 33;
+
+// Continues stepping a statement that was stepped by earlier calls, filling the window
+// with at most maxRows rows (no limit if maxRows <= 0).  Unlike
+// nativeExecuteForCursorWindow the statement is not reset, so rows are only stepped once.
+// When the window fills up, the row that did not fit stays current and rowPending
+// tells the next call to copy it before stepping again.
+static jlong nativeFillWindowFromStatement(
+        JNIEnv* env,
+        jclass clazz,
+        jlong connectionPtr,
+        jlong statementPtr,
+        jlong windowPtr,
+        jint maxRows,
+        jboolean rowPending) {
+    auto* connection = reinterpret_cast<SQLiteConnection*>(connectionPtr);
+    auto* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
+    auto* window = reinterpret_cast<CursorWindow*>(windowPtr);
+    status_t status = window->clear();
+    if (status) {
+        throw_sqlite3_exception(env, connection->db, "Failed to clear the cursor window");
+        return 0;
+    }
+    int numColumns = sqlite3_column_count(statement);
+    status = window->setNumColumns(numColumns);
+    if (status) {
+        throw_sqlite3_exception(env, connection->db, "Failed to set the cursor window column count");
+        return 0;
+    }
+    int addedRows = 0;
+    jlong flags = 0;
+    while (maxRows <= 0 || addedRows < maxRows) {
+        if (!rowPending) {
+            // Only wait for shared-cache locks before the first row: stepBlocking()
+            // resets the statement, which would deliver the rows already streamed
+            // by this or earlier calls again.
+            int err = sqlite3_stmt_busy(statement)
+                    ? sqlite3_step(statement) : stepBlocking(connection, statement);
+            if (err == SQLITE_DONE) {
+                ALOGD("Processed all rows");
+                flags |= FILL_WINDOW_DONE;
+                break;
+            } else if (err != SQLITE_ROW) {
+                throw_sqlite3_exception(env, connection->db);
+                return 0;
+            }
+        }
+        rowPending = false;
+
+        CopyRowResult cpr = copyRow(env, window, statement, numColumns, 0, addedRows);
+        if (cpr == CPR_FULL) {
+            if (addedRows == 0) {
+                throw_sqlite3_exception(env, "Row too big to fit in CursorWindow");
+                return 0;
+            }
+            flags |= FILL_WINDOW_ROW_PENDING;
+            break;
+        } else if (cpr == CPR_ERROR) {
+            return 0;
+        }
+        addedRows += 1;
+    }
+
+    ALOGD("Filled window with %d rows from statement %p in %zu bytes",
+          addedRows, statement, window->size() - window->freeSpace());
+    return flags | jlong(addedRows);
+}
+
+static jint nativeGetDbStatus(JNIEnv* env, jobject clazz, jlong connectionPtr, jint op) {
+    auto* connection = reinterpret_cast<SQLiteConnection*>(connectionPtr);
+
+    int cur = -1;
+    int unused;
+    sqlite3_db_status(connection->db, op, &cur, &unused, 0);
+    return cur;
+}
+
 static jint nativeGetDbLookaside(JNIEnv* env, jobject clazz, jlong connectionPtr) {
     auto* connection = reinterpret_cast<SQLiteConnection*>(connectionPtr);
     int cur = -1;
@@ -814,6 +1073,406 @@ static void nativeResetCancel(JNIEnv* env, jobject clazz, jlong connectionPtr,
     }
 }
 
+static void nativeSetBusyTimeout(JNIEnv* env, jobject clazz, jlong connectionPtr,
+        jint timeoutMillis) {
+    auto* connection = reinterpret_cast<SQLiteConnection*>(connectionPtr);
+    connection->busyTimeoutMs = timeoutMillis;
+}
+
+static void nativeTakeLockWaitStats(JNIEnv* env, jobject clazz, jlong connectionPtr,
+        jlongArray statsArray) {
+    auto* connection = reinterpret_cast<SQLiteConnection*>(connectionPtr);
+    jlong stats[SQLiteConnection::LOCK_WAIT_STAT_COUNT];
+    env->GetLongArrayRegion(statsArray, 0, SQLiteConnection::LOCK_WAIT_STAT_COUNT, stats);
+    for (int i = 0; i < SQLiteConnection::LOCK_WAIT_STAT_COUNT; i++) {
+        stats[i] += connection->lockWaitStats[i];
+        connection->lockWaitStats[i] = 0;
+    }
+    env->SetLongArrayRegion(statsArray, 0, SQLiteConnection::LOCK_WAIT_STAT_COUNT, stats);
+}
+
+static jlong nativeSnapshotGet(JNIEnv* env, jobject clazz, jlong connectionPtr) {
+    auto* connection = reinterpret_cast<SQLiteConnection*>(connectionPtr);
+    sqlite3_snapshot* snapshot = NULL;
+    int err = sqlite3_snapshot_get(connection->db, "main", &snapshot);
+    if (err != SQLITE_OK) {
+        throw_sqlite3_exception(env, connection->db, "Could not get snapshot");
+        return 0;
+    }
+    return reinterpret_cast<jlong>(snapshot);
+}
+
+static void nativeSnapshotOpen(JNIEnv* env, jobject clazz, jlong connectionPtr,
+        jlong snapshotPtr) {
+    auto* connection = reinterpret_cast<SQLiteConnection*>(connectionPtr);
+    auto* snapshot = reinterpret_cast<sqlite3_snapshot*>(snapshotPtr);
+    int err = sqlite3_snapshot_open(connection->db, "main", snapshot);
+    if (err != SQLITE_OK) {
+        throw_sqlite3_exception(env, connection->db, "Could not open snapshot");
+    }
+}
+
+static void nativeSnapshotFree(JNIEnv* env, jobject clazz, jlong snapshotPtr) {
+    sqlite3_snapshot_free(reinterpret_cast<sqlite3_snapshot*>(snapshotPtr));
+}
+
+// Called after each commit in write-ahead logging mode, with the number of
+// frames now in the log.
+static int sqliteWalHook(void* data, sqlite3* db, const char* dbName, int frames) {
+    auto* connection = static_cast<SQLiteConnection*>(data);
+    if (frames < connection->walFrames) {
+        // The log was restarted from the beginning, after a checkpoint.
+        connection->walCheckpointedFrames = 0;
+    }
+    connection->walFrames = frames;
+    return SQLITE_OK;
+}
+
+static void nativeSetWalHook(JNIEnv* env, jobject clazz, jlong connectionPtr) {
+    auto* connection = reinterpret_cast<SQLiteConnection*>(connectionPtr);
+    // Replaces the hook that runs automatic checkpoints, which must be disabled.
+    sqlite3_wal_hook(connection->db, &sqliteWalHook, connection);
+}
+
+static jint nativeGetWalPendingFrames(JNIEnv* env, jobject clazz, jlong connectionPtr) {
+    auto* connection = reinterpret_cast<SQLiteConnection*>(connectionPtr);
+    int pending = connection->walFrames - connection->walCheckpointedFrames;
+    return pending > 0 ? pending : 0;
+}
+
+static jboolean nativeWalCheckpoint(JNIEnv* env, jobject clazz, jlong connectionPtr,
+        jint mode) {
+    auto* connection = reinterpret_cast<SQLiteConnection*>(connectionPtr);
+    int logFrames = -1;
+    int checkpointedFrames = -1;
+    int err = sqlite3_wal_checkpoint_v2(connection->db, NULL, mode,
+            &logFrames, &checkpointedFrames);
+    if (err != SQLITE_OK && err != SQLITE_BUSY) {
+        throw_sqlite3_exception(env, connection->db, "Could not checkpoint");
+        return false;
+    }
+    if (logFrames < 0) {
+        // The database is not in write-ahead logging mode.
+        return err == SQLITE_OK;
+    }
+
+    // A checkpoint that returns SQLITE_OK may still stop short of the end of the
+    // log when a reader is using an older snapshot.
+    connection->walFrames = logFrames;
+    connection->walCheckpointedFrames = checkpointedFrames;
+    return err == SQLITE_OK && checkpointedFrames == logFrames;
+}
+
+static void addPendingChangedTable(SQLiteConnection* connection, const char* dbName,
+        const char* table) {
+    if (strcmp(dbName, "main") == 0) {
+        connection->pendingChangedTables.insert(table);
+    } else {
+        connection->pendingChangedTables.insert(std::string(dbName) + "." + table);
+    }
+}
+
+// Called before each row is inserted, updated or deleted while table changes are
+// tracked.  Unlike the update hook, this is also called for WITHOUT ROWID tables
+// and for rows deleted by REPLACE, and registering it keeps DELETE statements
+// without a WHERE clause from truncating tables without visiting their rows.
+static void sqlitePreupdateHook(void* data, sqlite3* db, int op, const char* dbName,
+        const char* table, sqlite3_int64 oldRowid, sqlite3_int64 newRowid) {
+    addPendingChangedTable(static_cast<SQLiteConnection*>(data), dbName, table);
+}
+
+// Called for each row inserted, updated or deleted while table changes are tracked
+// and change sessions own the preupdate hook.  Sessions register a preupdate hook
+// of their own, which also keeps DELETE statements from truncating tables, but
+// changes to WITHOUT ROWID tables are missed meanwhile.
+static void sqliteUpdateHook(void* data, int op, const char* dbName, const char* table,
+        sqlite3_int64 rowid) {
+    addPendingChangedTable(static_cast<SQLiteConnection*>(data), dbName, table);
+}
+
+// Called when a transaction is about to commit.
+static int sqliteCommitHook(void* data) {
+    auto* connection = static_cast<SQLiteConnection*>(data);
+    connection->committedChangedTables.insert(connection->pendingChangedTables.begin(),
+            connection->pendingChangedTables.end());
+    connection->pendingChangedTables.clear();
+    return 0;
+}
+
+// Called when a transaction is rolled back.
+static void sqliteRollbackHook(void* data) {
+    auto* connection = static_cast<SQLiteConnection*>(data);
+    connection->pendingChangedTables.clear();
+}
+
+// Registers the hooks that track table changes, if enabled.  The preupdate hook
+// is left alone while change sessions own it.
+static void setChangeHooks(SQLiteConnection* connection) {
+    const bool enabled = connection->trackTableChanges;
+    const bool sessions = connection->sessionCount > 0;
+    if (!sessions) {
+        sqlite3_preupdate_hook(connection->db, enabled ? &sqlitePreupdateHook : NULL,
+                enabled ? connection : NULL);
+    }
+    sqlite3_update_hook(connection->db, enabled && sessions ? &sqliteUpdateHook : NULL,
+            enabled && sessions ? connection : NULL);
+    sqlite3_commit_hook(connection->db, enabled ? &sqliteCommitHook : NULL,
+            enabled ? connection : NULL);
+    sqlite3_rollback_hook(connection->db, enabled ? &sqliteRollbackHook : NULL,
+            enabled ? connection : NULL);
+}
+
+static jlong nativeSessionCreate(JNIEnv* env, jobject clazz, jlong connectionPtr,
+        jobjectArray tablesArray) {
+    auto* connection = reinterpret_cast<SQLiteConnection*>(connectionPtr);
+    sqlite3_session* session = NULL;
+    if (connection->sessionCount == 0) {
+        // Sessions chain themselves through the preupdate hook, so hand it over.
+        sqlite3_preupdate_hook(connection->db, NULL, NULL);
+    }
+    connection->sessionCount += 1;
+    setChangeHooks(connection);
+    int err = sqlite3session_create(connection->db, "main", &session);
+    if (err != SQLITE_OK) {
+        connection->sessionCount -= 1;
+        setChangeHooks(connection);
+        throw_sqlite3_exception(env, connection->db, "Could not create session");
+        return 0;
+    }
+
+    // A null array attaches all tables.
+    jsize tableCount = tablesArray ? env->GetArrayLength(tablesArray) : 0;
+    if (!tablesArray) {
+        err = sqlite3session_attach(session, NULL);
+    }
+    for (jsize i = 0; i < tableCount && err == SQLITE_OK; i++) {
+        auto tableStr = jstring(env->GetObjectArrayElement(tablesArray, i));
+        const char* table = env->GetStringUTFChars(tableStr, NULL);
+        err = sqlite3session_attach(session, table);
+        env->ReleaseStringUTFChars(tableStr, table);
+        env->DeleteLocalRef(tableStr);
+    }
+    if (err != SQLITE_OK) {
+        sqlite3session_delete(session);
+        connection->sessionCount -= 1;
+        setChangeHooks(connection);
+        throw_sqlite3_exception_errcode(env, err, "Could not attach session");
+        return 0;
+    }
+    return reinterpret_cast<jlong>(session);
+}
+
+static void nativeSessionDelete(JNIEnv* env, jobject clazz, jlong connectionPtr,
+        jlong sessionPtr) {
+    auto* connection = reinterpret_cast<SQLiteConnection*>(connectionPtr);
+    sqlite3session_delete(reinterpret_cast<sqlite3_session*>(sessionPtr));
+    connection->sessionCount -= 1;
+    setChangeHooks(connection);
+}
+
+static jbyteArray nativeSessionChanges(JNIEnv* env, jobject clazz, jlong connectionPtr,
+        jlong sessionPtr, jboolean patchset) {
+    auto* connection = reinterpret_cast<SQLiteConnection*>(connectionPtr);
+    auto* session = reinterpret_cast<sqlite3_session*>(sessionPtr);
+    int size = 0;
+    void* changes = NULL;
+    int err = patchset ? sqlite3session_patchset(session, &size, &changes)
+            : sqlite3session_changeset(session, &size, &changes);
+    if (err != SQLITE_OK) {
+        throw_sqlite3_exception(env, connection->db, "Could not collect changes");
+        return NULL;
+    }
+
+    jbyteArray changesArray = env->NewByteArray(size);
+    if (changesArray) {
+        env->SetByteArrayRegion(changesArray, 0, size, static_cast<const jbyte*>(changes));
+    }
+    sqlite3_free(changes);
+    return changesArray;
+}
+
+struct ChangesetConflictContext {
+    JNIEnv* env;
+    jobject handlerObj;
+};
+
+// Called for each change that cannot be applied cleanly.
+static int sqliteChangesetConflictCallback(void* data, int conflict,
+        sqlite3_changeset_iter* iter) {
+    auto* context = static_cast<ChangesetConflictContext*>(data);
+    JNIEnv* env = context->env;
+    if (!context->handlerObj || env->ExceptionCheck()) {
+        return SQLITE_CHANGESET_ABORT;
+    }
+
+    const char* table = NULL;
+    int columnCount = 0;
+    int op = 0;
+    int indirect = 0;
+    sqlite3changeset_op(iter, &table, &columnCount, &op, &indirect);
+
+    jstring tableStr = env->NewStringUTF(table);
+    if (!tableStr) {
+        return SQLITE_CHANGESET_ABORT; // out of memory error
+    }
+    jint result = env->CallIntMethod(context->handlerObj,
+            gSQLiteChangesetConflictHandlerClassInfo.onConflict, tableStr, conflict, op);
+    env->DeleteLocalRef(tableStr);
+
+    // Leave the exception pending for nativeApplyChangeset to rethrow.
+    if (env->ExceptionCheck()) {
+        return SQLITE_CHANGESET_ABORT;
+    }
+    return result;
+}
+
+static void nativeApplyChangeset(JNIEnv* env, jobject clazz, jlong connectionPtr,
+        jbyteArray changesetArray, jobject handlerObj) {
+    auto* connection = reinterpret_cast<SQLiteConnection*>(connectionPtr);
+    ChangesetConflictContext context = { env, handlerObj };
+
+    jsize size = env->GetArrayLength(changesetArray);
+    jbyte* changeset = env->GetByteArrayElements(changesetArray, NULL);
+    int err = sqlite3changeset_apply(connection->db, size, changeset, NULL,
+            &sqliteChangesetConflictCallback, &context);
+    env->ReleaseByteArrayElements(changesetArray, changeset, JNI_ABORT);
+
+    if (env->ExceptionCheck()) {
+        return;
+    }
+    if (err != SQLITE_OK) {
+        throw_sqlite3_exception(env, connection->db, "Could not apply changeset");
+    }
+}
+
+static void nativeSetTableChangeTracking(JNIEnv* env, jobject clazz, jlong connectionPtr,
+        jboolean enabled) {
+    auto* connection = reinterpret_cast<SQLiteConnection*>(connectionPtr);
+    connection->trackTableChanges = enabled;
+    setChangeHooks(connection);
+    if (!enabled) {
+        connection->pendingChangedTables.clear();
+        connection->committedChangedTables.clear();
+    }
+}
+
+static jobjectArray nativeTakeChangedTables(JNIEnv* env, jobject clazz, jlong connectionPtr) {
+    auto* connection = reinterpret_cast<SQLiteConnection*>(connectionPtr);
+    if (connection->committedChangedTables.empty()) {
+        return NULL;
+    }
+
+    jobjectArray tablesArray = env->NewObjectArray(
+            connection->committedChangedTables.size(), gStringClassInfo.clazz, NULL);
+    if (tablesArray) {
+        jsize i = 0;
+        for (const std::string& table : connection->committedChangedTables) {
+            jstring tableStr = env->NewStringUTF(table.c_str());
+            if (!tableStr) {
+                break; // out of memory error
+            }
+            env->SetObjectArrayElement(tablesArray, i++, tableStr);
+            env->DeleteLocalRef(tableStr);
+        }
+    }
+    connection->committedChangedTables.clear();
+    return tablesArray;
+}
+
+// An incremental copy of a connection's main database into a destination file
+// that is opened and keyed separately.
+struct SQLiteBackup {
+    sqlite3* dest;
+    sqlite3_backup* backup;
+};
+
+static jlong nativeBackupOpen(JNIEnv* env, jobject clazz, jlong connectionPtr,
+        jstring destPathStr, jbyteArray destKeyArray, jobjectArray destPragmasArray) {
+    auto* connection = reinterpret_cast<SQLiteConnection*>(connectionPtr);
+
+    const char* destPath = env->GetStringUTFChars(destPathStr, NULL);
+    sqlite3* dest = NULL;
+    int err = sqlite3_open_v2(destPath, &dest,
+            SQLITE_OPEN_READWRITE | SQLITE_OPEN_CREATE, NULL);
+    env->ReleaseStringUTFChars(destPathStr, destPath);
+    if (err != SQLITE_OK) {
+        throw_sqlite3_exception(env, dest, "Could not open backup destination");
+        sqlite3_close(dest);
+        return 0;
+    }
+
+    if (destKeyArray && env->GetArrayLength(destKeyArray) > 0) {
+        jsize size = env->GetArrayLength(destKeyArray);
+        jbyte* key = env->GetByteArrayElements(destKeyArray, NULL);
+        err = sqlite3_key(dest, key, size);
+        env->ReleaseByteArrayElements(destKeyArray, key, JNI_ABORT);
+    }
+
+    // Cipher settings must be applied after keying and before the first page is
+    // written.
+    jsize pragmaCount = destPragmasArray ? env->GetArrayLength(destPragmasArray) : 0;
+    for (jsize i = 0; i < pragmaCount && err == SQLITE_OK; i++) {
+        auto pragmaStr = jstring(env->GetObjectArrayElement(destPragmasArray, i));
+        const char* pragma = env->GetStringUTFChars(pragmaStr, NULL);
+        err = sqlite3_exec(dest, pragma, NULL, NULL, NULL);
+        env->ReleaseStringUTFChars(pragmaStr, pragma);
+        env->DeleteLocalRef(pragmaStr);
+    }
+
+    // The first page is written with the key and settings before the backup starts,
+    // since the backup keeps the copy locked until it is complete, so that the copy
+    // can be opened meanwhile to check them.
+    if (err == SQLITE_OK && destKeyArray && env->GetArrayLength(destKeyArray) > 0) {
+        err = sqlite3_exec(dest, "PRAGMA user_version = 0;", NULL, NULL, NULL);
+    }
+
+    sqlite3_backup* backup = NULL;
+    if (err == SQLITE_OK) {
+        backup = sqlite3_backup_init(dest, "main", connection->db, "main");
+    }
+    if (!backup) {
+        throw_sqlite3_exception(env, dest, "Could not begin backup");
+        sqlite3_close(dest);
+        return 0;
+    }
+
+    auto* result = new SQLiteBackup();
+    result->dest = dest;
+    result->backup = backup;
+    return reinterpret_cast<jlong>(result);
+}
+
+static jboolean nativeBackupStep(JNIEnv* env, jobject clazz, jlong backupPtr, jint pages) {
+    auto* backup = reinterpret_cast<SQLiteBackup*>(backupPtr);
+    int err = sqlite3_backup_step(backup->backup, pages);
+    if (err == SQLITE_DONE) {
+        return true;
+    }
+    // The source or destination is locked; the step can be retried later.
+    if (err != SQLITE_OK && err != SQLITE_BUSY && err != SQLITE_LOCKED) {
+        throw_sqlite3_exception(env, backup->dest, "Could not copy pages");
+    }
+    return false;
+}
+
+static jint nativeBackupRemaining(JNIEnv* env, jobject clazz, jlong backupPtr) {
+    return sqlite3_backup_remaining(reinterpret_cast<SQLiteBackup*>(backupPtr)->backup);
+}
+
+static jint nativeBackupPageCount(JNIEnv* env, jobject clazz, jlong backupPtr) {
+    return sqlite3_backup_pagecount(reinterpret_cast<SQLiteBackup*>(backupPtr)->backup);
+}
+
+static void nativeBackupFinish(JNIEnv* env, jobject clazz, jlong backupPtr) {
+    auto* backup = reinterpret_cast<SQLiteBackup*>(backupPtr);
+    int err = sqlite3_backup_finish(backup->backup);
+    if (err != SQLITE_OK) {
+        throw_sqlite3_exception(env, backup->dest, "Could not finish backup");
+    }
+    sqlite3_close(backup->dest);
+    delete backup;
+}
+
 static jboolean nativeHasCodec(JNIEnv* env, jobject clazz){
 #ifdef SQLITE_HAS_CODEC
   return true;
@@ -878,12 +1537,55 @@ static JNINativeMethod sMethods[] =
             (void*)nativeExecuteForLastInsertedRowId },
     { "nativeExecuteForCursorWindow", "(JJJIIZ)J",
             (void*)nativeExecuteForCursorWindow },
+    { "nativeFillWindowFromStatement", "(JJJIZ)J",
+            (void*)nativeFillWindowFromStatement },
     { "nativeGetDbLookaside", "(J)I",
             (void*)nativeGetDbLookaside },
+    { "nativeGetDbStatus", "(JI)I",
+            (void*)nativeGetDbStatus },
     { "nativeCancel", "(J)V",
             (void*)nativeCancel },
     { "nativeResetCancel", "(JZ)V",
             (void*)nativeResetCancel },
+    { "nativeSetBusyTimeout", "(JI)V",
+            (void*)nativeSetBusyTimeout },
+    { "nativeTakeLockWaitStats", "(J[J)V",
+            (void*)nativeTakeLockWaitStats },
+    { "nativeSnapshotGet", "(J)J",
+            (void*)nativeSnapshotGet },
+    { "nativeSnapshotOpen", "(JJ)V",
+            (void*)nativeSnapshotOpen },
+    { "nativeSnapshotFree", "(J)V",
+            (void*)nativeSnapshotFree },
+    { "nativeSetWalHook", "(J)V",
+            (void*)nativeSetWalHook },
+    { "nativeGetWalPendingFrames", "(J)I",
+            (void*)nativeGetWalPendingFrames },
+    { "nativeWalCheckpoint", "(JI)Z",
+            (void*)nativeWalCheckpoint },
+    { "nativeSessionCreate", "(J[Ljava/lang/String;)J",
+            (void*)nativeSessionCreate },
+    { "nativeSessionDelete", "(JJ)V",
+            (void*)nativeSessionDelete },
+    { "nativeSessionChanges", "(JJZ)[B",
+            (void*)nativeSessionChanges },
+    { "nativeApplyChangeset",
+            "(J[BLnet/zetetic/database/sqlcipher/SQLiteChangesetConflictHandler;)V",
+            (void*)nativeApplyChangeset },
+    { "nativeSetTableChangeTracking", "(JZ)V",
+            (void*)nativeSetTableChangeTracking },
+    { "nativeTakeChangedTables", "(J)[Ljava/lang/String;",
+            (void*)nativeTakeChangedTables },
+    { "nativeBackupOpen", "(JLjava/lang/String;[B[Ljava/lang/String;)J",
+            (void*)nativeBackupOpen },
+    { "nativeBackupStep", "(JI)Z",
+            (void*)nativeBackupStep },
+    { "nativeBackupRemaining", "(J)I",
+            (void*)nativeBackupRemaining },
+    { "nativeBackupPageCount", "(J)I",
+            (void*)nativeBackupPageCount },
+    { "nativeBackupFinish", "(J)V",
+            (void*)nativeBackupFinish },
 
     { "nativeHasCodec", "()Z", (void*)nativeHasCodec },
 };
@@ -903,6 +1605,10 @@ int register_android_database_SQLiteConnection(JNIEnv *env)
     FIND_CLASS(clazz, "java/lang/String");
     gStringClassInfo.clazz = jclass(env->NewGlobalRef(clazz));
 
+    FIND_CLASS(clazz, "net/zetetic/database/sqlcipher/SQLiteChangesetConflictHandler");
+    GET_METHOD_ID(gSQLiteChangesetConflictHandlerClassInfo.onConflict,
+            clazz, "onConflict", "(Ljava/lang/String;II)I");
+
     return jniRegisterNativeMethods(env, 
         "net/zetetic/database/sqlcipher/SQLiteConnection",
         sMethods, NELEM(sMethods)